@@ -1,5 +1,6 @@
 package com.cctv.api.config;
 
+import com.cctv.api.service.RecordingPlaybackService;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.EnableCaching;
@@ -38,6 +39,23 @@ public class CacheConfig {
                 .recordStats()
                 .build());
         
+        // Pinned flag per camera - 5 minutes TTL, read on every live playlist request
+        cacheManager.registerCustomCache("pinnedCameras", Caffeine.newBuilder()
+                .expireAfterWrite(5, TimeUnit.MINUTES)
+                .maximumSize(5000)
+                .recordStats()
+                .build());
+        
+        // Recording playback playlists - 2 minutes TTL, reused while an operator scrubs a range;
+        // bounded by size, since a 24 h playlist runs to several hundred KB
+        cacheManager.registerCustomCache("playbackPlaylists", Caffeine.newBuilder()
+                .expireAfterWrite(2, TimeUnit.MINUTES)
+                .maximumWeight(16 * 1024 * 1024)
+                .weigher((Object key, Object value) -> value instanceof RecordingPlaybackService.Playlist playlist
+                        ? playlist.body().length : 1)
+                .recordStats()
+                .build());
+        
         return cacheManager;
     }
 }
@@ -33,7 +33,10 @@ public class SecurityConfig {
                 .csrf(AbstractHttpConfigurer::disable)
                 .cors(Customizer.withDefaults())
                 .authorizeHttpRequests(auth -> auth
-                        .requestMatchers("/api/auth/**", "/api/stream/**", "/actuator/health").permitAll()
+                        // Recorded footage and clip exports are never anonymous, unlike live streams
+                        .requestMatchers("/api/stream/*/*/playback", "/api/stream/*/*/recording/**",
+                                "/api/stream/*/*/export", "/api/stream/exports/**").authenticated()
+                        .requestMatchers("/api/auth/**", "/api/stream/**", "/internal/hls/**", "/actuator/health").permitAll()
                         .anyRequest().authenticated())
                 .httpBasic(Customizer.withDefaults());
 
@@ -8,6 +8,9 @@ public class AppConstants {
 
     // HLS related
     public static final String HLS_PLAYLIST_NAME = "index.m3u8";
+    public static final String HLS_MASTER_PLAYLIST_NAME = "master.m3u8";
+    public static final String HLS_SUBSTREAM_PLAYLIST_NAME = "sub.m3u8";
+    public static final String THUMBNAIL_NAME = "thumbnail.jpg";
 
     // CORS
     public static final String CORS_ALLOWED_ORIGINS_PROP = "app.cors.allowed-origins";
@@ -0,0 +1,74 @@
+package com.cctv.api.controller;
+
+import com.cctv.api.service.HlsSegmentStore;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Local sink for FFmpeg's HLS muxer when the in-memory segment store is enabled
+ * (ffmpeg -method PUT). Only reachable from the loopback interface.
+ */
+@Slf4j
+@RestController
+@RequestMapping("/internal/hls")
+@RequiredArgsConstructor
+public class HlsIngestController {
+
+    private final HlsSegmentStore segmentStore;
+
+    @RequestMapping(value = "/{streamId}/{fileName:.+}", method = { RequestMethod.PUT, RequestMethod.POST })
+    public ResponseEntity<Void> ingest(
+            @PathVariable String streamId,
+            @PathVariable String fileName,
+            HttpServletRequest request) throws IOException {
+
+        if (!segmentStore.isEnabled() || !isLoopback(request)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+
+        boolean stored;
+        if (fileName.endsWith(".m3u8")) {
+            stored = segmentStore.putPlaylist(streamId, fileName, request.getInputStream().readAllBytes());
+        } else if (fileName.endsWith(".ts")) {
+            stored = segmentStore.putSegment(streamId, fileName, request.getInputStream(),
+                    request.getContentLengthLong());
+        } else {
+            log.debug("[{}] Ignoring unexpected HLS upload: {}", streamId, fileName);
+            return ResponseEntity.noContent().build();
+        }
+        if (!stored) {
+            log.debug("[{}] Refusing HLS upload for a stream that is not running: {}", streamId, fileName);
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.noContent().build();
+    }
+
+    @DeleteMapping("/{streamId}/{fileName:.+}")
+    public ResponseEntity<Void> delete(
+            @PathVariable String streamId,
+            @PathVariable String fileName,
+            HttpServletRequest request) {
+
+        if (!segmentStore.isEnabled() || !isLoopback(request)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+        segmentStore.deleteSegment(streamId, fileName);
+        return ResponseEntity.noContent().build();
+    }
+
+    private boolean isLoopback(HttpServletRequest request) {
+        try {
+            return InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress();
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+}
@@ -1,29 +1,58 @@
 package com.cctv.api.controller;
 
+import com.cctv.api.constant.AppConstants;
 import com.cctv.api.dto.CameraStreamDto;
+import com.cctv.api.dto.MosaicDto;
 import com.cctv.api.dto.StreamInfoDto;
+import com.cctv.api.exception.StreamCapacityException;
+import com.cctv.api.model.StreamPriority;
 import com.cctv.api.model.User;
 import com.cctv.api.model.UserRole;
+import com.cctv.api.service.ClipExportService;
+import com.cctv.api.service.HlsPlaylistCache;
+import com.cctv.api.service.HlsSegmentStore;
 import com.cctv.api.service.HlsService;
+import com.cctv.api.service.LowLatencyHlsService;
 import com.cctv.api.service.MediaMtxService;
 import com.cctv.api.service.NvrService;
+import com.cctv.api.service.RecordingPlaybackService;
+import com.cctv.api.service.RecordingService;
+import com.cctv.api.service.RtspSessionLimiter;
+import com.cctv.api.service.ThumbnailService;
 import com.cctv.api.service.UserAuditService;
 import com.cctv.api.repository.UserRepository;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.WebAsyncTask;
 
-import java.net.MalformedURLException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.Principal;
+import java.time.Duration;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
 
 @Slf4j
 @RestController
@@ -31,9 +60,28 @@ import java.util.concurrent.TimeUnit;
 @RequiredArgsConstructor
 public class StreamController {
 
+    private static final MediaType PLAYLIST_MEDIA_TYPE = MediaType.parseMediaType("application/vnd.apple.mpegurl");
+    private static final MediaType SEGMENT_MEDIA_TYPE = MediaType.parseMediaType("video/mp2t");
+    private static final MediaType CMAF_MEDIA_TYPE = MediaType.parseMediaType("video/mp4");
+    private static final CacheControl SEGMENT_CACHE_CONTROL = CacheControl.maxAge(Duration.ofDays(1))
+            .cachePrivate()
+            .immutable();
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
     private final NvrService nvrService;
     private final HlsService hlsService;
+    private final HlsSegmentStore segmentStore;
+    private final HlsPlaylistCache playlistCache;
+    private final LowLatencyHlsService lowLatency;
+    private final RecordingService recordingService;
+    private final RecordingPlaybackService playbackService;
+    private final ClipExportService clipExportService;
+    private final ThumbnailService thumbnailService;
     private final MediaMtxService mediaMtxService;
+    private final RtspSessionLimiter rtspLimiter;
     private final UserAuditService userAuditService;
     private final UserRepository userRepository;
 
@@ -49,6 +97,16 @@ public class StreamController {
             userAuditService.logLocationView(principal.getName(), location, request.getRemoteAddr());
         }
 
+        List<CameraStreamDto> streams = visibleStreams(location, nvrId, principal);
+        log.debug("Found {} streams", streams.size());
+        return streams;
+    }
+
+    /**
+     * Cameras of the location (and NVR) the user may see: admins see all,
+     * others only their locations and, if any, their assigned cameras.
+     */
+    private List<CameraStreamDto> visibleStreams(String location, String nvrId, Principal principal) {
         java.util.Set<String> allowedLocations = null;
         java.util.Set<String> assignedCameraIds = null;
         if (principal != null) {
@@ -66,57 +124,162 @@ public class StreamController {
             }
         }
 
-        List<CameraStreamDto> streams = nvrService.getCameraStreams(location, nvrId, allowedLocations,
-                assignedCameraIds);
-        log.debug("Found {} streams", streams.size());
-        return streams;
+        return nvrService.getCameraStreams(location, nvrId, allowedLocations, assignedCameraIds);
     }
 
     @GetMapping(value = "/{nvrId}/{channelId}/index.m3u8")
-    public ResponseEntity<Resource> getPlaylist(
+    public CompletableFuture<ResponseEntity<Resource>> getPlaylist(
             @PathVariable String nvrId,
             @PathVariable int channelId,
+            @RequestParam(name = "_HLS_msn", required = false) Long msn,
+            @RequestParam(name = "_HLS_part", required = false) Integer part,
             Principal principal,
             HttpServletRequest request) {
 
         log.debug("Playlist request for NVR: {}, Channel: {}", nvrId, channelId);
 
         if (principal != null) {
-            userAuditService.logNvrAccess(principal.getName(), nvrId, request.getRemoteAddr());
+            userAuditService.logNvrAccess(principal.getName(), nvrId, channelId, request.getRemoteAddr());
         }
 
-        hlsService.startStreamIfNotActive(nvrId, channelId);
+        hlsService.touchViewer(nvrId, channelId, viewerKey(request));
+        CompletableFuture<Void> started = hlsService.startStream(nvrId, channelId,
+                resolvePriority(principal, nvrId, channelId));
 
-        Path playlistPath = hlsService.getHlsPlaylistPath(nvrId, channelId);
+        if (lowLatency.isEnabled()) {
+            return awaitLowLatencyPlaylist(started, nvrId, channelId, msn, part);
+        }
 
-        // Simple wait logic for first-time generation
-        int retries = 0;
-        while (!Files.exists(playlistPath) && retries < 40) { // Wait up to 8 seconds approx
-            try {
-                TimeUnit.MILLISECONDS.sleep(200);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
-            }
-            retries++;
+        // Release the servlet thread until the stream is admitted and the playlist has been written
+        return started.thenCompose(ready -> hlsService.awaitPlaylist(nvrId, channelId))
+                .thenApply(ready -> servePlaylist(nvrId, channelId, AppConstants.HLS_PLAYLIST_NAME))
+                .exceptionally(e -> {
+                    rethrowIfCapacity(e);
+                    log.warn("Playlist not ready for {}_{}: {}", nvrId, channelId, e.toString());
+                    return ResponseEntity.notFound().build();
+                });
+    }
+
+    /**
+     * Master playlist offering the substream and main stream as variants, so
+     * players pick the substream for small tiles and weak links. Starts the
+     * stream like {@link #getPlaylist}.
+     */
+    @GetMapping(value = "/{nvrId}/{channelId}/" + AppConstants.HLS_MASTER_PLAYLIST_NAME)
+    public CompletableFuture<ResponseEntity<Resource>> getMasterPlaylist(
+            @PathVariable String nvrId,
+            @PathVariable int channelId,
+            Principal principal,
+            HttpServletRequest request) {
+
+        if (principal != null) {
+            userAuditService.logNvrAccess(principal.getName(), nvrId, channelId, request.getRemoteAddr());
         }
 
-        if (Files.exists(playlistPath)) {
-            try {
-                Resource resource = new UrlResource(java.util.Objects.requireNonNull(playlistPath.toUri()));
-                return ResponseEntity.ok()
-                        .contentType(MediaType.parseMediaType("application/vnd.apple.mpegurl"))
-                        .header("Cache-Control", "no-cache, no-store, must-revalidate")
-                        .header("Pragma", "no-cache")
-                        .header("Expires", "0")
-                        .body(resource);
-            } catch (MalformedURLException e) {
-                log.error("Error serving playlist for {}_{}: {}", nvrId, channelId, e.getMessage());
-            }
+        hlsService.touchViewer(nvrId, channelId, viewerKey(request));
+
+        // Variants are known once the process has written its first playlist
+        return hlsService.startStream(nvrId, channelId, resolvePriority(principal, nvrId, channelId))
+                .thenCompose(ready -> hlsService.awaitPlaylist(nvrId, channelId))
+                .thenApply(ready -> {
+                    byte[] master = hlsService.getMasterPlaylist(nvrId, channelId);
+                    if (master == null) {
+                        return ResponseEntity.notFound().<Resource>build();
+                    }
+                    return ResponseEntity.ok()
+                            .contentType(PLAYLIST_MEDIA_TYPE)
+                            .cacheControl(CacheControl.noCache())
+                            .<Resource>body(new ByteArrayResource(master));
+                })
+                .exceptionally(e -> {
+                    rethrowIfCapacity(e);
+                    log.warn("Master playlist not ready for {}_{}: {}", nvrId, channelId, e.toString());
+                    return ResponseEntity.notFound().build();
+                });
+    }
+
+    /**
+     * Media playlist of the substream variant.
+     */
+    @GetMapping(value = "/{nvrId}/{channelId}/" + AppConstants.HLS_SUBSTREAM_PLAYLIST_NAME)
+    public ResponseEntity<Resource> getSubstreamPlaylist(
+            @PathVariable String nvrId,
+            @PathVariable int channelId,
+            HttpServletRequest request) {
+
+        hlsService.touchViewer(nvrId, channelId, viewerKey(request));
+        return servePlaylist(nvrId, channelId, AppConstants.HLS_SUBSTREAM_PLAYLIST_NAME);
+    }
+
+    /**
+     * LL-HLS blocking playlist reload: with {@code _HLS_msn} (and optionally
+     * {@code _HLS_part}) the response is held until the playlist contains that
+     * part. Always rendered fresh, so it is not cached or ETagged.
+     */
+    private CompletableFuture<ResponseEntity<Resource>> awaitLowLatencyPlaylist(CompletableFuture<Void> started,
+            String nvrId, int channelId, Long msn, Integer part) {
+        String streamId = hlsService.getStreamId(nvrId, channelId);
+        return started.thenCompose(ready -> hlsService.awaitPlaylist(nvrId, channelId))
+                .thenCompose(ready -> lowLatency.awaitPlaylist(streamId, msn, part))
+                .thenApply(data -> data == null
+                        ? ResponseEntity.notFound().<Resource>build()
+                        : ResponseEntity.ok()
+                                .contentType(PLAYLIST_MEDIA_TYPE)
+                                .cacheControl(CacheControl.noCache())
+                                .<Resource>body(new ByteArrayResource(data)))
+                .exceptionally(e -> {
+                    rethrowIfCapacity(e);
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    if (cause instanceof IllegalArgumentException) {
+                        // _HLS_msn more than two segments ahead of the live edge
+                        return ResponseEntity.badRequest().build();
+                    }
+                    if (cause instanceof TimeoutException) {
+                        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+                    }
+                    log.warn("LL-HLS playlist not ready for {}: {}", streamId, e.toString());
+                    return ResponseEntity.notFound().build();
+                });
+    }
+
+    private ResponseEntity<Resource> servePlaylist(String nvrId, int channelId, String name) {
+        return servePlaylist(hlsService.getStreamId(nvrId, channelId), name);
+    }
+
+    private ResponseEntity<Resource> servePlaylist(String streamId, String name) {
+        HlsPlaylistCache.CachedPlaylist playlist = playlistCache.get(streamId, name);
+        if (playlist == null) {
+            return ResponseEntity.notFound().build();
         }
+        // no-cache (not no-store) lets players revalidate with If-None-Match and get a 304
+        return ResponseEntity.ok()
+                .contentType(PLAYLIST_MEDIA_TYPE)
+                .cacheControl(CacheControl.noCache())
+                .eTag(playlist.eTag())
+                .body(new ByteArrayResource(playlist.data()));
+    }
 
-        log.warn("Playlist not found for {}_{} after retries", nvrId, channelId);
-        return ResponseEntity.notFound().build();
+    /**
+     * LL-HLS init segments, segments and partial segments. Every name is
+     * unique to its content, so responses are immutable; a request for the
+     * hinted next part is held until the part is complete.
+     */
+    @GetMapping(value = "/{nvrId}/{channelId}/{fileName:[\\w-]+\\.(?:m4s|mp4)}")
+    public CompletableFuture<ResponseEntity<Resource>> getCmafResource(
+            @PathVariable String nvrId,
+            @PathVariable int channelId,
+            @PathVariable String fileName,
+            HttpServletRequest request) {
+
+        hlsService.touchViewer(nvrId, channelId, viewerKey(request));
+        return lowLatency.awaitResource(hlsService.getStreamId(nvrId, channelId), fileName)
+                .thenApply(data -> data == null
+                        ? ResponseEntity.notFound().<Resource>build()
+                        : ResponseEntity.ok()
+                                .contentType(CMAF_MEDIA_TYPE)
+                                .cacheControl(SEGMENT_CACHE_CONTROL)
+                                .<Resource>body(new ByteArrayResource(data)))
+                .exceptionally(e -> ResponseEntity.notFound().build());
     }
 
     /**
@@ -134,7 +297,12 @@ public class StreamController {
         log.debug("Stream info request for NVR: {}, Channel: {}, Substream: {}", nvrId, channelId, substream);
 
         if (principal != null) {
-            userAuditService.logNvrAccess(principal.getName(), nvrId, request.getRemoteAddr());
+            userAuditService.logNvrAccess(principal.getName(), nvrId, channelId, request.getRemoteAddr());
+        }
+
+        if (mediaMtxService.isEnabled()) {
+            // Playing the path makes MediaMTX pull it, which counts against the NVR's session limit
+            substream = rtspLimiter.admitMediaMtxPath(nvrId, channelId, substream);
         }
 
         // Get RTSP URL first
@@ -162,7 +330,8 @@ public class StreamController {
 
         // Fallback to HLS if MediaMTX is disabled
         log.debug("MediaMTX not available, using HLS fallback");
-        String hlsUrl = String.format("/api/stream/%s/%d/index.m3u8", nvrId, channelId);
+        String hlsUrl = String.format("/api/stream/%s/%d/%s", nvrId, channelId, hlsService.isVariantsEnabled()
+                ? AppConstants.HLS_MASTER_PLAYLIST_NAME : AppConstants.HLS_PLAYLIST_NAME);
 
         return ResponseEntity.ok(new StreamInfoDto(
                 null, // No WebRTC
@@ -173,26 +342,382 @@ public class StreamController {
                 null)); // No ICE servers
     }
 
+    /**
+     * Serves a finished segment. Segment names are never reused, so responses
+     * carry a strong ETag (stream, sequence, size) and may be cached as
+     * immutable. Disk segments go out via Tomcat sendfile (or
+     * {@link FileChannel#transferTo} where sendfile is unavailable) without
+     * passing through the heap; byte ranges are honoured in both modes.
+     */
     @GetMapping(value = "/{nvrId}/{channelId}/{segmentName}.ts")
     public ResponseEntity<Resource> getSegment(
             @PathVariable String nvrId,
             @PathVariable int channelId,
-            @PathVariable String segmentName) {
+            @PathVariable String segmentName,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+
+        hlsService.touchViewer(nvrId, channelId, viewerKey(request));
+        return serveSegment(hlsService.getStreamId(nvrId, channelId),
+                hlsService.getHlsPlaylistPath(nvrId, channelId).getParent(), segmentName, request, response);
+    }
+
+    private ResponseEntity<Resource> serveSegment(String streamId, Path streamDir, String segmentName,
+            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (segmentStore.isEnabled()) {
+            Resource segment = segmentStore.openSegment(streamId, segmentName + ".ts");
+            if (segment == null) {
+                return ResponseEntity.notFound().build();
+            }
+            // Spring answers If-None-Match and Range requests for Resource bodies
+            return ResponseEntity.ok()
+                    .contentType(SEGMENT_MEDIA_TYPE)
+                    .eTag(segmentETag(streamId, segmentName, segment.contentLength()))
+                    .cacheControl(SEGMENT_CACHE_CONTROL)
+                    .body(segment);
+        }
+
+        return sendSegmentFile(streamDir.resolve(segmentName + ".ts"), streamId, segmentName, request, response);
+    }
+
+    /**
+     * Registers the visible cameras of a location (or the listed cameras, in
+     * the given order) as one tiled stream and returns where to play it.
+     * Starting and stopping follow the mosaic's own playlist viewers.
+     */
+    @GetMapping("/mosaic")
+    public ResponseEntity<MosaicDto> getMosaic(
+            @RequestParam(required = false, defaultValue = "All") String location,
+            @RequestParam(required = false, defaultValue = "All") String nvrId,
+            @RequestParam(required = false) List<String> cameras,
+            Principal principal,
+            HttpServletRequest request) {
+
+        if (!hlsService.isMosaicEnabled()) {
+            return ResponseEntity.notFound().build();
+        }
+        if (principal != null) {
+            userAuditService.logLocationView(principal.getName(), location, request.getRemoteAddr());
+        }
+        List<CameraStreamDto> visible = visibleStreams(location, nvrId, principal);
+        List<CameraStreamDto> selected;
+        if (cameras != null && !cameras.isEmpty()) {
+            java.util.Map<String, CameraStreamDto> byId = new java.util.HashMap<>();
+            visible.forEach(camera -> byId.put(camera.getId(), camera));
+            selected = cameras.stream().map(byId::get).filter(java.util.Objects::nonNull).toList();
+        } else {
+            selected = visible;
+        }
+        if (selected.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        if (selected.size() > hlsService.getMosaicMaxTiles()) {
+            log.info("Mosaic for {} limited to the first {} of {} cameras", location,
+                    hlsService.getMosaicMaxTiles(), selected.size());
+            selected = selected.subList(0, hlsService.getMosaicMaxTiles());
+        }
+
+        String mosaicId = hlsService.registerMosaic(selected.stream()
+                .map(camera -> new HlsService.MosaicTile(camera.getNvrId(), camera.getChannelId()))
+                .toList());
+        return ResponseEntity.ok(new MosaicDto(
+                mosaicId,
+                "/api/stream/mosaic/" + mosaicId + "/" + AppConstants.HLS_PLAYLIST_NAME,
+                HlsService.mosaicColumns(selected.size()),
+                selected.stream().map(CameraStreamDto::getId).toList()));
+    }
+
+    @GetMapping(value = "/mosaic/{mosaicId:" + HlsService.MOSAIC_PREFIX + "[0-9a-f]+}/"
+            + AppConstants.HLS_PLAYLIST_NAME)
+    public CompletableFuture<ResponseEntity<Resource>> getMosaicPlaylist(
+            @PathVariable String mosaicId,
+            Principal principal,
+            HttpServletRequest request) {
+
+        hlsService.touchMosaicViewer(mosaicId, viewerKey(request));
+        CompletableFuture<Void> started;
+        try {
+            started = hlsService.startMosaicIfNotActive(mosaicId,
+                    isAdmin(principal) ? StreamPriority.HIGH : StreamPriority.NORMAL);
+        } catch (IllegalArgumentException e) {
+            // Registrations expire; the client asks /mosaic again
+            return CompletableFuture.completedFuture(ResponseEntity.notFound().build());
+        }
+        return started.thenCompose(ready -> hlsService.awaitMosaicPlaylist(mosaicId))
+                .thenApply(ready -> servePlaylist(mosaicId, AppConstants.HLS_PLAYLIST_NAME))
+                .exceptionally(e -> {
+                    rethrowIfCapacity(e);
+                    log.warn("Mosaic playlist not ready for {}: {}", mosaicId, e.toString());
+                    return ResponseEntity.notFound().build();
+                });
+    }
 
-        Path segmentPath = hlsService.getHlsPlaylistPath(nvrId, channelId).getParent()
-                .resolve(segmentName + ".ts");
+    @GetMapping(value = "/mosaic/{mosaicId:" + HlsService.MOSAIC_PREFIX + "[0-9a-f]+}/{segmentName}.ts")
+    public ResponseEntity<Resource> getMosaicSegment(
+            @PathVariable String mosaicId,
+            @PathVariable String segmentName,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
 
-        if (Files.exists(segmentPath)) {
+        hlsService.touchMosaicViewer(mosaicId, viewerKey(request));
+        return serveSegment(mosaicId, hlsService.getMosaicDir(mosaicId), segmentName, request, response);
+    }
+
+    /**
+     * VOD playlist over the recording archive between {@code from} and
+     * {@code to}, in epoch milliseconds.
+     */
+    @GetMapping(value = "/{nvrId}/{channelId}/playback")
+    public ResponseEntity<Resource> getPlayback(
+            @PathVariable String nvrId,
+            @PathVariable int channelId,
+            @RequestParam long from,
+            @RequestParam long to,
+            Principal principal,
+            HttpServletRequest request) {
+
+        if (!recordingService.isEnabled()) {
+            return ResponseEntity.notFound().build();
+        }
+        // Authenticated by SecurityConfig
+        userAuditService.logNvrAccess(principal.getName(), nvrId, request.getRemoteAddr());
+        RecordingPlaybackService.Playlist playlist;
+        try {
+            playlist = playbackService.buildPlaylist(principal.getName(), hlsService.getStreamId(nvrId, channelId),
+                    from, to);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+        if (playlist == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok()
+                .contentType(PLAYLIST_MEDIA_TYPE)
+                .cacheControl(CacheControl.noCache())
+                .body(new ByteArrayResource(playlist.body()));
+    }
+
+    /**
+     * Serves a recorded segment, the same way as live disk segments.
+     */
+    @GetMapping(value = "/{nvrId}/{channelId}/recording/{segment:\\d+}.ts")
+    public ResponseEntity<Resource> getRecordedSegment(
+            @PathVariable String nvrId,
+            @PathVariable int channelId,
+            @PathVariable long segment,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+
+        String streamId = hlsService.getStreamId(nvrId, channelId);
+        Path file = recordingService.isEnabled() ? playbackService.getSegmentFile(streamId, segment) : null;
+        if (file == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return sendSegmentFile(file, streamId, "rec" + segment, request, response);
+    }
+
+    /**
+     * Latest thumbnail of a camera. 404 while none is available yet; one is
+     * then being decoded or grabbed in the background.
+     */
+    @GetMapping(value = "/{nvrId}/{channelId}/" + AppConstants.THUMBNAIL_NAME)
+    public ResponseEntity<byte[]> getThumbnail(@PathVariable String nvrId, @PathVariable int channelId) {
+        ThumbnailService.Thumbnail thumbnail = thumbnailService.getThumbnail(nvrId, channelId);
+        if (thumbnail == null) {
+            return ResponseEntity.notFound().cacheControl(CacheControl.noStore()).build();
+        }
+        // If-None-Match is answered with 304 by Spring from the ETag
+        return ResponseEntity.ok()
+                .contentType(MediaType.IMAGE_JPEG)
+                .eTag(thumbnail.eTag())
+                .cacheControl(CacheControl.maxAge(Duration.ofSeconds(thumbnailService.getTtlSeconds())).cachePrivate())
+                .body(thumbnail.jpeg());
+    }
+
+    /**
+     * Downloads the recording between {@code from} and {@code to} (epoch
+     * milliseconds) as one file, remuxed to MP4 or concatenated TS. The body
+     * is streamed as it is produced; its progress can be polled under the
+     * X-Export-Id header's value.
+     */
+    @GetMapping(value = "/{nvrId}/{channelId}/export")
+    public WebAsyncTask<Void> exportClip(
+            @PathVariable String nvrId,
+            @PathVariable int channelId,
+            @RequestParam long from,
+            @RequestParam long to,
+            @RequestParam(defaultValue = "mp4") String format,
+            Principal principal,
+            HttpServletRequest request,
+            HttpServletResponse response) {
+
+        if (!recordingService.isEnabled()) {
+            response.setStatus(HttpStatus.NOT_FOUND.value());
+            return null;
+        }
+        ClipExportService.Format exportFormat;
+        try {
+            exportFormat = ClipExportService.Format.valueOf(format.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpStatus.BAD_REQUEST.value());
+            return null;
+        }
+        String streamId = hlsService.getStreamId(nvrId, channelId);
+        ClipExportService.Export export;
+        try {
+            export = clipExportService.prepare(streamId, from, to, exportFormat);
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpStatus.BAD_REQUEST.value());
+            return null;
+        }
+        if (export == null) {
+            response.setStatus(HttpStatus.NOT_FOUND.value());
+            return null;
+        }
+        try {
+            // Authenticated by SecurityConfig, so every export is attributed
+            userAuditService.logClipExport(principal.getName(), nvrId, request.getRemoteAddr());
+        } catch (RuntimeException e) {
+            export.release();
+            throw e;
+        }
+
+        boolean mp4 = exportFormat == ClipExportService.Format.MP4;
+        String fileName = streamId + "_" + from + "_" + to + (mp4 ? ".mp4" : ".ts");
+        response.setContentType((mp4 ? CMAF_MEDIA_TYPE : SEGMENT_MEDIA_TYPE).toString());
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+                ContentDisposition.attachment().filename(fileName).build().toString());
+        response.setHeader("X-Export-Id", export.getProgress().getId());
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noStore().getHeaderValue());
+        if (export.getContentLength() >= 0) {
+            response.setContentLengthLong(export.getContentLength());
+        }
+
+        // Long clips stream for minutes, on the export writers rather than the shared MVC async pool
+        WebAsyncTask<Void> task = new WebAsyncTask<>(clipExportService.getTimeoutMillis(),
+                clipExportService.getWriterExecutor(), () -> {
+                    export.writeTo(response.getOutputStream());
+                    return null;
+                });
+        // Frees the slot if the write was rejected, timed out before starting or never ran
+        task.onCompletion(export::release);
+        return task;
+    }
+
+    @GetMapping("/exports/{exportId}")
+    public ResponseEntity<ClipExportService.Progress> getExportProgress(@PathVariable String exportId) {
+        ClipExportService.Progress progress = clipExportService.getProgress(exportId);
+        return progress != null ? ResponseEntity.ok(progress) : ResponseEntity.notFound().build();
+    }
+
+    private ResponseEntity<Resource> sendSegmentFile(Path segmentPath, String streamId, String segmentName,
+            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long size;
+        try {
+            size = Files.size(segmentPath);
+        } catch (IOException e) {
+            return ResponseEntity.notFound().build();
+        }
+
+        String eTag = segmentETag(streamId, segmentName, size);
+        if (new ServletWebRequest(request, response).checkNotModified(eTag)) {
+            return null;
+        }
+        response.setHeader(HttpHeaders.CACHE_CONTROL, SEGMENT_CACHE_CONTROL.getHeaderValue());
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setContentType(SEGMENT_MEDIA_TYPE.toString());
+
+        long start = 0;
+        long end = size; // exclusive
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader != null) {
+            List<HttpRange> ranges;
             try {
-                Resource resource = new UrlResource(java.util.Objects.requireNonNull(segmentPath.toUri()));
-                return ResponseEntity.ok()
-                        .contentType(MediaType.parseMediaType("video/mp2t"))
-                        .body(resource);
-            } catch (MalformedURLException e) {
-                log.error("Error serving segment", e);
+                ranges = HttpRange.parseRanges(rangeHeader);
+            } catch (IllegalArgumentException e) {
+                ranges = List.of();
+            }
+            // Players only ask for single ranges; anything else gets the whole segment
+            if (ranges.size() == 1) {
+                HttpRange range = ranges.get(0);
+                if (range.getRangeStart(size) >= size) {
+                    response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+                    response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+                    return null;
+                }
+                start = range.getRangeStart(size);
+                end = range.getRangeEnd(size) + 1;
+                response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + (end - 1) + "/" + size);
             }
         }
+        response.setContentLengthLong(end - start);
+
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            // Tomcat copies the file to the socket after the handler returns
+            request.setAttribute(SENDFILE_FILENAME, segmentPath.toFile().getCanonicalPath());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end);
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            while (position < end) {
+                position += channel.transferTo(position, end - position, out);
+            }
+        }
+        return null;
+    }
+
+    private static String segmentETag(String streamId, String segmentName, long size) {
+        return "\"" + streamId + "-" + segmentName + "-" + size + "\"";
+    }
+
+    /**
+     * Admins and pinned cameras may preempt ordinary sessions when the server is
+     * at its stream limit.
+     */
+    private StreamPriority resolvePriority(Principal principal, String nvrId, int channelId) {
+        if (principal == null) {
+            // Anonymous viewers never preempt anyone
+            return StreamPriority.NORMAL;
+        }
+        if (isAdmin(principal)) {
+            return StreamPriority.HIGH;
+        }
+        return nvrService.isCameraPinned(nvrId, channelId) ? StreamPriority.HIGH : StreamPriority.NORMAL;
+    }
+
+    /**
+     * Reads the role from the authentication's authorities, so playlist polls
+     * cost no user lookup.
+     */
+    private boolean isAdmin(Principal principal) {
+        return principal instanceof Authentication authentication && authentication.getAuthorities().stream()
+                .anyMatch(authority -> ("ROLE_" + UserRole.ADMIN).equals(authority.getAuthority()));
+    }
+
+    /**
+     * Lets a capacity rejection from an asynchronous start reach the global
+     * handler, which answers 503 with Retry-After instead of 404.
+     */
+    private static void rethrowIfCapacity(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof StreamCapacityException capacity) {
+            throw capacity;
+        }
+    }
 
-        return ResponseEntity.notFound().build();
+    /**
+     * Identifies a viewer for lease tracking. Segment requests carry no
+     * principal, so the client address is the only stable key.
+     */
+    private String viewerKey(HttpServletRequest request) {
+        String forwarded = request.getHeader("X-Forwarded-For");
+        if (forwarded != null && !forwarded.isBlank()) {
+            return forwarded.split(",")[0].trim();
+        }
+        return request.getRemoteAddr();
     }
 }
@@ -1,6 +1,9 @@
 package com.cctv.api.controller;
 
 import com.cctv.api.service.HlsService;
+import com.cctv.api.service.ProcResourceSampler;
+import com.cctv.api.service.RtspSessionLimiter;
+import com.cctv.api.service.SiteBandwidthBudget;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.ResponseEntity;
@@ -8,6 +11,9 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.List;
+import java.util.Map;
+
 @Slf4j
 @RestController
 @RequestMapping("/api/stream/stats")
@@ -15,10 +21,37 @@ import org.springframework.web.bind.annotation.RestController;
 public class StreamStatsController {
 
     private final HlsService hlsService;
+    private final ProcResourceSampler procSampler;
+    private final RtspSessionLimiter rtspLimiter;
+    private final SiteBandwidthBudget siteBandwidth;
 
     @GetMapping
     public ResponseEntity<HlsService.StreamStats> getStreamStats() {
         return ResponseEntity.ok(hlsService.getStreamStats());
     }
-}
 
+    /**
+     * CPU, memory, I/O and context switches of each stream's FFmpeg process
+     * (live sessions, mosaics and recorders), most expensive first.
+     */
+    @GetMapping("/processes")
+    public ResponseEntity<List<ProcResourceSampler.ProcessUsage>> getProcessUsage() {
+        return ResponseEntity.ok(procSampler.getUsage());
+    }
+
+    /**
+     * RTSP sessions in use and the limit of each NVR with any session open.
+     */
+    @GetMapping("/nvr-sessions")
+    public ResponseEntity<Map<String, RtspSessionLimiter.Usage>> getNvrSessions() {
+        return ResponseEntity.ok(rtspLimiter.getUsage());
+    }
+
+    /**
+     * Pulled bitrate and uplink budget of each site (NVR location).
+     */
+    @GetMapping("/sites")
+    public ResponseEntity<Map<String, SiteBandwidthBudget.SiteUsage>> getSiteBandwidth() {
+        return ResponseEntity.ok(siteBandwidth.getUsage());
+    }
+}
@@ -0,0 +1,18 @@
+package com.cctv.api.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MosaicDto {
+    private String streamId;
+    private String hlsUrl;
+    private int columns;
+    // Camera IDs in tile order, row by row
+    private List<String> cameraIds;
+}
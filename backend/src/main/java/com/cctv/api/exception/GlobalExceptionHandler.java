@@ -3,6 +3,7 @@ package com.cctv.api.exception;
 import lombok.Builder;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
@@ -22,6 +23,19 @@ public class GlobalExceptionHandler {
         private LocalDateTime timestamp;
     }
 
+    @ExceptionHandler(StreamCapacityException.class)
+    public ResponseEntity<ErrorResponse> handleStreamCapacityException(StreamCapacityException e) {
+        log.warn("Stream capacity exhausted: {}", e.getMessage());
+        ErrorResponse error = ErrorResponse.builder()
+                .status(HttpStatus.SERVICE_UNAVAILABLE.value())
+                .message(e.getMessage())
+                .timestamp(LocalDateTime.now())
+                .build();
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .body(error);
+    }
+
     @ExceptionHandler(RuntimeException.class)
     public ResponseEntity<ErrorResponse> handleRuntimeException(RuntimeException e) {
         log.error("Runtime exception: ", e);
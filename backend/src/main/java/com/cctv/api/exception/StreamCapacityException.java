@@ -0,0 +1,20 @@
+package com.cctv.api.exception;
+
+import lombok.Getter;
+
+/**
+ * Thrown when a stream cannot be admitted because no capacity could be freed.
+ * Mapped to 503 Service Unavailable with a Retry-After header.
+ */
+@Getter
+public class StreamCapacityException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterSeconds;
+
+    public StreamCapacityException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+}
@@ -3,5 +3,6 @@ package com.cctv.api.model;
 public enum AuditAction {
     LOGIN,
     VIEW_LOCATION,
-    VIEW_NVR;
+    VIEW_NVR,
+    EXPORT_CLIP;
 }
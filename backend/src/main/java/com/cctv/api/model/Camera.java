@@ -22,4 +22,11 @@ public class Camera {
     private String streamUri;
     private String profileToken;
     private String status;
+    private Boolean pinned; // Pinned cameras get priority admission for live streams
+    private Boolean recording; // Continuously recorded to the segment archive
+
+    // Main stream capabilities, learned from FFmpeg's input banner
+    private String videoCodec;
+    private Integer videoWidth;
+    private Integer videoHeight;
 }
@@ -21,6 +21,7 @@ public class NVR {
     private String password;
     private String type; // Hikvision or CP Plus
     private Integer channels = 32;
+    private Integer maxRtspSessions; // Concurrent RTSP sessions the NVR accepts; null = server default
 
     private String onvifPort;
     private String onvifUsername;
@@ -0,0 +1,15 @@
+package com.cctv.api.model;
+
+/**
+ * Admission priority of an HLS stream request. Higher priorities may preempt
+ * running sessions of lower priority when the server is at capacity.
+ */
+public enum StreamPriority {
+    LOW,
+    NORMAL,
+    HIGH;
+
+    public boolean outranks(StreamPriority other) {
+        return compareTo(other) > 0;
+    }
+}
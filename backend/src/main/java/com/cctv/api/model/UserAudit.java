@@ -6,7 +6,7 @@ import java.time.LocalDateTime;
 
 @Data
 @Entity
-@Table(name = "user_audit")
+@Table(name = "user_audit", indexes = @Index(name = "idx_user_audit_action_timestamp", columnList = "action, timestamp"))
 public class UserAudit {
     @Id
     @GeneratedValue(strategy = GenerationType.UUID)
@@ -23,6 +23,8 @@ public class UserAudit {
 
     private String nvrId; // For NVR access tracking
 
+    private Integer channelId; // For live camera views (VIEW_NVR)
+
     @Column(nullable = false)
     private LocalDateTime timestamp;
 
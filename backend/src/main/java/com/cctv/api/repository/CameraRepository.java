@@ -13,4 +13,8 @@ public interface CameraRepository extends JpaRepository<Camera, String> {
     List<Camera> findByNvrId(String nvrId);
 
     List<Camera> findByLocationAndNvrId(String location, String nvrId);
+
+    List<Camera> findByNvrIdAndChannel(String nvrId, Integer channel);
+
+    List<Camera> findByRecordingTrue();
 }
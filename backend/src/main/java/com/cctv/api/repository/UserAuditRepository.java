@@ -3,6 +3,8 @@ package com.cctv.api.repository;
 import com.cctv.api.model.UserAudit;
 import com.cctv.api.model.AuditAction;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.time.LocalDateTime;
@@ -17,4 +19,20 @@ public interface UserAuditRepository extends JpaRepository<UserAudit, String> {
     List<UserAudit> findByUsernameOrderByTimestampDesc(String username);
 
     List<UserAudit> findByTimestampBetween(LocalDateTime start, LocalDateTime end);
+
+    /**
+     * Cameras most viewed live in one hour of the week since {@code since}, as
+     * rows of [nvrId, channelId, viewers]. A viewer counts once per day, so
+     * playlist reloads do not inflate the score. dayOfWeek is ISO (1 = Monday).
+     */
+    @Query(value = "SELECT a.nvr_id, a.channel_id, "
+            + "COUNT(DISTINCT a.username || ':' || CAST(CAST(a.timestamp AS date) AS varchar)) AS viewers "
+            + "FROM user_audit a "
+            + "WHERE a.action = 'VIEW_NVR' AND a.channel_id IS NOT NULL AND a.timestamp >= :since "
+            + "AND EXTRACT(ISODOW FROM a.timestamp) = :dayOfWeek AND EXTRACT(HOUR FROM a.timestamp) = :hour "
+            + "GROUP BY a.nvr_id, a.channel_id "
+            + "ORDER BY viewers DESC "
+            + "LIMIT :limit", nativeQuery = true)
+    List<Object[]> findTopLiveViewsInHour(@Param("since") LocalDateTime since, @Param("dayOfWeek") int dayOfWeek,
+            @Param("hour") int hour, @Param("limit") int limit);
 }
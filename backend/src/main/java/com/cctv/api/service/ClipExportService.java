@@ -0,0 +1,375 @@
+package com.cctv.api.service;
+
+import com.cctv.api.exception.StreamCapacityException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Exports recorded clips without re-encoding. TS exports are the archive
+ * segments concatenated straight into the response; MP4 exports pipe the
+ * same bytes through {@code ffmpeg -c copy} into fragmented MP4, which needs
+ * no seekable output. Either way memory use does not depend on clip length.
+ * <p>
+ * At most recording.export.workers exports run at once (more get a 503 with
+ * Retry-After), and the remux runs under {@code nice} so it yields to live
+ * sessions. Responses are written from the service's own writer threads,
+ * within recording.export.timeout.minutes. Progress is kept for 30 minutes
+ * under the export's ID.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ClipExportService {
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final long RETRY_AFTER_SECONDS = 30;
+
+    private final RecordingPlaybackService playbackService;
+    private final MeterRegistry meterRegistry;
+    private final Cache<String, Progress> progress = Caffeine.newBuilder()
+            .expireAfterWrite(30, TimeUnit.MINUTES)
+            .maximumSize(1000)
+            .build();
+
+    private Semaphore slots;
+    private ExecutorService feeders;
+    private ThreadPoolExecutor writers;
+    @Getter
+    private AsyncTaskExecutor writerExecutor;
+
+    @Value("${recording.export.workers:2}")
+    private int workers;
+
+    @Value("${recording.export.max.minutes:60}")
+    private long maxMinutes;
+
+    @Value("${recording.export.nice:true}")
+    private boolean nice;
+
+    @Value("${recording.export.timeout.minutes:30}")
+    private long timeoutMinutes;
+
+    public enum Format {
+        MP4,
+        TS
+    }
+
+    public enum State {
+        RUNNING,
+        DONE,
+        FAILED
+    }
+
+    @PostConstruct
+    void init() {
+        slots = new Semaphore(workers);
+        feeders = Executors.newFixedThreadPool(workers, r -> {
+            Thread thread = new Thread(r, "clip-export-feeder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Never more exports than slots, so the queue only holds writes outliving their request
+        writers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(workers), r -> {
+                    Thread thread = new Thread(r, "clip-export-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        writerExecutor = new TaskExecutorAdapter(writers);
+        Gauge.builder("recording.exports.active", slots, s -> workers - s.availablePermits())
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        writers.shutdownNow();
+        feeders.shutdownNow();
+    }
+
+    public long getTimeoutMillis() {
+        return TimeUnit.MINUTES.toMillis(timeoutMinutes);
+    }
+
+    /**
+     * Resolves the clip's segments, opens them and takes an export slot, which
+     * the returned export gives back once written or released. Open segments
+     * stay readable even if retention deletes them before they are copied.
+     *
+     * @return the export, or null if nothing was recorded in the range
+     * @throws IllegalArgumentException for an empty or overlong range
+     * @throws StreamCapacityException  if every export worker is busy
+     */
+    public Export prepare(String streamId, long from, long to, Format format) {
+        if (to <= from || to - from > TimeUnit.MINUTES.toMillis(maxMinutes)) {
+            throw new IllegalArgumentException("Export range must be positive and at most " + maxMinutes
+                    + " minutes");
+        }
+        if (!slots.tryAcquire()) {
+            throw new StreamCapacityException("All clip export workers are busy", RETRY_AFTER_SECONDS);
+        }
+        List<OpenSegment> segments = new ArrayList<>();
+        long totalBytes = 0;
+        try {
+            for (RecordingPlaybackService.RecordedSegment segment
+                    : playbackService.findSegments(streamId, from, to)) {
+                Path file = playbackService.getSegmentFile(streamId, segment.segment());
+                if (file == null) {
+                    continue;
+                }
+                try {
+                    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                    // The newest segment may still grow; the export ends where it was now
+                    OpenSegment open = new OpenSegment(file, channel, channel.size());
+                    segments.add(open);
+                    totalBytes += open.size();
+                } catch (NoSuchFileException e) {
+                    log.debug("[{}] Segment {} deleted before export", streamId, file);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            closeAll(segments);
+            slots.release();
+            throw e instanceof IOException io ? new UncheckedIOException(io) : (RuntimeException) e;
+        }
+        if (segments.isEmpty()) {
+            slots.release();
+            return null;
+        }
+        Progress state = new Progress(UUID.randomUUID().toString(), streamId, format, segments.size(), totalBytes);
+        progress.put(state.id, state);
+        log.info("[{}] Exporting {} segments as {} (export {})", streamId, segments.size(), format, state.id);
+        return new Export(state, segments);
+    }
+
+    private static void closeAll(List<OpenSegment> segments) {
+        for (OpenSegment segment : segments) {
+            try {
+                segment.channel().close();
+            } catch (IOException ignored) {
+                // read-only
+            }
+        }
+    }
+
+    public Progress getProgress(String exportId) {
+        return progress.getIfPresent(exportId);
+    }
+
+    /**
+     * A prepared export. Its slot is given back by {@link #writeTo}, or by
+     * {@link #release} on any path that does not write it.
+     */
+    public final class Export {
+        @Getter
+        private final Progress progress;
+        private final List<OpenSegment> segments;
+        // Set by whichever of writeTo and release comes first
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private Export(Progress progress, List<OpenSegment> segments) {
+            this.progress = progress;
+            this.segments = segments;
+        }
+
+        /**
+         * Exact body length for TS exports, -1 when unknown in advance.
+         */
+        public long getContentLength() {
+            return progress.format == Format.TS ? progress.totalBytes : -1;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            if (!claimed.compareAndSet(false, true)) {
+                throw new IOException("Export " + progress.id + " was abandoned");
+            }
+            try {
+                if (progress.format == Format.TS) {
+                    WritableByteChannel target = Channels.newChannel(out);
+                    copySegments(target, (int n) -> progress.bytesWritten += n);
+                } else {
+                    remux(out);
+                }
+                progress.state = State.DONE;
+                log.info("[{}] Export {} done, {} bytes", progress.streamId, progress.id, progress.bytesWritten);
+            } catch (IOException | RuntimeException e) {
+                progress.state = State.FAILED;
+                log.warn("[{}] Export {} failed: {}", progress.streamId, progress.id, e.getMessage());
+                throw e;
+            } finally {
+                closeAll(segments);
+                slots.release();
+                countResult();
+            }
+        }
+
+        /**
+         * Gives the slot back unless the export is being or was written, in
+         * which case {@link #writeTo} does. Safe to call more than once.
+         */
+        public void release() {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+            closeAll(segments);
+            slots.release();
+            progress.state = State.FAILED;
+            log.warn("[{}] Export {} abandoned before it was written", progress.streamId, progress.id);
+            countResult();
+        }
+
+        private void countResult() {
+            meterRegistry.counter("recording.exports", "format", progress.format.name().toLowerCase(),
+                    "result", progress.state.name().toLowerCase()).increment();
+        }
+
+        /**
+         * Copies the opened segments in order without passing them through the
+         * heap, exactly as many bytes as were counted when they were opened.
+         *
+         * @throws IOException if a segment ends early, which would cut the
+         *                     body short of its declared length
+         */
+        private void copySegments(WritableByteChannel target, ByteCounter counter) throws IOException {
+            for (OpenSegment segment : segments) {
+                long position = 0;
+                while (position < segment.size()) {
+                    long sent = segment.channel().transferTo(position, segment.size() - position, target);
+                    if (sent <= 0) {
+                        throw new IOException("Segment " + segment.file() + " ended at " + position + " of "
+                                + segment.size() + " bytes");
+                    }
+                    position += sent;
+                    counter.add((int) sent);
+                }
+                progress.segmentsDone++;
+            }
+        }
+
+        private void remux(OutputStream out) throws IOException {
+            List<String> command = new ArrayList<>();
+            if (nice) {
+                command.add("nice");
+                command.add("-n");
+                command.add("19");
+            }
+            command.add("ffmpeg");
+            command.add("-hide_banner");
+            command.add("-loglevel");
+            command.add("error");
+            command.add("-f");
+            command.add("mpegts");
+            command.add("-i");
+            command.add("pipe:0");
+            command.add("-map");
+            command.add("0:v");
+            command.add("-c");
+            command.add("copy");
+            command.add("-f");
+            command.add("mp4");
+            // Fragmented, so the output never needs seeking back
+            command.add("-movflags");
+            command.add("frag_keyframe+empty_moov+default_base_moof");
+            command.add("pipe:1");
+
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+            Process process = pb.start();
+            // stdin is fed from another thread so neither pipe can fill up and stall the other
+            Future<?> feeding = feeders.submit(() -> {
+                try (OutputStream stdin = process.getOutputStream()) {
+                    copySegments(Channels.newChannel(stdin), n -> { });
+                }
+                return null;
+            });
+            try (InputStream stdout = process.getInputStream()) {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int read;
+                while ((read = stdout.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    progress.bytesWritten += read;
+                }
+                feeding.get();
+                int exitCode = process.waitFor();
+                if (exitCode != 0) {
+                    throw new IOException("FFmpeg remux exited with code " + exitCode);
+                }
+            } catch (ExecutionException e) {
+                throw new IOException("Could not feed segments to FFmpeg", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Export interrupted", e);
+            } finally {
+                feeding.cancel(true);
+                if (process.isAlive()) {
+                    process.destroyForcibly();
+                }
+            }
+        }
+    }
+
+    private record OpenSegment(Path file, FileChannel channel, long size) {
+    }
+
+    @FunctionalInterface
+    private interface ByteCounter {
+        void add(int bytes);
+    }
+
+    /**
+     * Progress of one export, as reported to clients.
+     */
+    @Getter
+    public static final class Progress {
+        private final String id;
+        private final String streamId;
+        private final Format format;
+        private final int segmentsTotal;
+        private final long totalBytes;
+        private final long startedAt = System.currentTimeMillis();
+        private volatile int segmentsDone;
+        private volatile long bytesWritten;
+        private volatile State state = State.RUNNING;
+
+        private Progress(String id, String streamId, Format format, int segmentsTotal, long totalBytes) {
+            this.id = id;
+            this.streamId = streamId;
+            this.format = format;
+            this.segmentsTotal = segmentsTotal;
+            this.totalBytes = totalBytes;
+        }
+    }
+}
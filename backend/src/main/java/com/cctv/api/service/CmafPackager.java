@@ -0,0 +1,575 @@
+package com.cctv.api.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Turns one FFmpeg fragmented-MP4 stream into an LL-HLS presentation. Each
+ * moof+mdat pair FFmpeg writes (one per -frag_duration) becomes a partial
+ * segment; parts are grouped into segments that start on a keyframe once the
+ * previous one reached the target duration. Playlist requests and the hinted
+ * next part can block until the content they ask for exists.
+ * <p>
+ * Bytes arrive on the loopback selector thread; everything visible to HTTP
+ * threads is guarded by the instance lock. Resource names carry a token unique
+ * to this packager, so they are never reused by a later session.
+ */
+@Slf4j
+class CmafPackager implements LoopbackIngestServer.Sink {
+
+    private static final int MAX_BOX_SIZE = 64 * 1024 * 1024;
+    private static final int SEGMENTS_WITH_PARTS = 3;
+
+    private final String streamId;
+    private final HlsOutputWatcher outputWatcher;
+    private final double targetSegmentSeconds;
+    private final double configuredPartSeconds;
+    private final int segmentsRetained;
+    private final String token = Long.toString(System.currentTimeMillis(), 36);
+
+    // Box framing and track defaults, selector thread only
+    private byte[] box = new byte[64 * 1024];
+    private int boxFill;
+    private int headerLength = 8;
+    private long boxSize = -1;
+    private boolean corrupt;
+    private byte[] ftyp;
+    private byte[] pendingMoof;
+    private long timescale = 90_000;
+    private long trexSampleDuration;
+    private long trexSampleFlags;
+
+    // Published state, guarded by this
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final List<byte[]> inits = new ArrayList<>();
+    private final List<PlaylistWaiter> playlistWaiters = new ArrayList<>();
+    private final List<PartWaiter> partWaiters = new ArrayList<>();
+    private Segment current;
+    private int initVersion = -1;
+    private int firstInitVersion;
+    private long nextMsn;
+    private long nextPartSeq;
+    private boolean discontinuity;
+    private long discontinuitySequence;
+    private double longestSegment;
+    private double longestPart;
+    private boolean closed;
+
+    CmafPackager(String streamId, HlsOutputWatcher outputWatcher, double targetSegmentSeconds,
+            double partSeconds, int segmentsRetained) {
+        this.streamId = streamId;
+        this.outputWatcher = outputWatcher;
+        this.targetSegmentSeconds = targetSegmentSeconds;
+        this.configuredPartSeconds = partSeconds;
+        this.segmentsRetained = segmentsRetained;
+    }
+
+    // ---- ingest (selector thread) ----
+
+    @Override
+    public void onConnected() {
+        // A new FFmpeg process: new init segment, and a discontinuity if we already had media
+        boxFill = 0;
+        boxSize = -1;
+        headerLength = 8;
+        corrupt = false;
+        ftyp = null;
+        pendingMoof = null;
+        synchronized (this) {
+            if (current != null && !current.parts.isEmpty()) {
+                completeCurrent();
+            }
+            current = null;
+            discontinuity = nextMsn > 0;
+        }
+    }
+
+    @Override
+    public void onData(ByteBuffer data) {
+        while (data.hasRemaining() && !corrupt) {
+            if (boxSize < 0) {
+                int n = Math.min(headerLength - boxFill, data.remaining());
+                data.get(box, boxFill, n);
+                boxFill += n;
+                if (boxFill < headerLength) {
+                    return;
+                }
+                long size = readUint32(box, 0);
+                if (size == 1 && headerLength == 8) {
+                    headerLength = 16; // 64-bit largesize follows the type
+                    continue;
+                }
+                if (size == 1) {
+                    size = readUint64(box, 8);
+                }
+                if (size < headerLength || size > MAX_BOX_SIZE) {
+                    log.error("[{}] Unexpected MP4 box size {}, dropping input until FFmpeg reconnects", streamId,
+                            size);
+                    corrupt = true;
+                    return;
+                }
+                boxSize = size;
+                if (box.length < size) {
+                    box = Arrays.copyOf(box, (int) Math.max(size, box.length * 2L));
+                }
+            }
+            int n = (int) Math.min(boxSize - boxFill, data.remaining());
+            data.get(box, boxFill, n);
+            boxFill += n;
+            if (boxFill == boxSize) {
+                onBox((int) boxSize);
+                boxFill = 0;
+                boxSize = -1;
+                headerLength = 8;
+            }
+        }
+    }
+
+    private void onBox(int size) {
+        if (isType(box, 0, "ftyp")) {
+            ftyp = Arrays.copyOf(box, size);
+        } else if (isType(box, 0, "moov")) {
+            parseMoov(size);
+            byte[] init = new byte[(ftyp != null ? ftyp.length : 0) + size];
+            if (ftyp != null) {
+                System.arraycopy(ftyp, 0, init, 0, ftyp.length);
+            }
+            System.arraycopy(box, 0, init, init.length - size, size);
+            publishInit(init);
+        } else if (isType(box, 0, "moof")) {
+            pendingMoof = Arrays.copyOf(box, size);
+        } else if (isType(box, 0, "mdat") && pendingMoof != null) {
+            byte[] part = new byte[pendingMoof.length + size];
+            System.arraycopy(pendingMoof, 0, part, 0, pendingMoof.length);
+            System.arraycopy(box, 0, part, pendingMoof.length, size);
+            FragmentInfo info = parseMoof(pendingMoof);
+            pendingMoof = null;
+            publishPart(part, info.duration, info.independent);
+        }
+    }
+
+    private void parseMoov(int size) {
+        int trak = findChild(box, 8, size, "trak");
+        int mdia = trak >= 0 ? findChild(box, trak + 8, trak + (int) readUint32(box, trak), "mdia") : -1;
+        int mdhd = mdia >= 0 ? findChild(box, mdia + 8, mdia + (int) readUint32(box, mdia), "mdhd") : -1;
+        if (mdhd >= 0) {
+            int version = box[mdhd + 8];
+            timescale = readUint32(box, mdhd + (version == 1 ? 28 : 20));
+        }
+        int mvex = findChild(box, 8, size, "mvex");
+        int trex = mvex >= 0 ? findChild(box, mvex + 8, mvex + (int) readUint32(box, mvex), "trex") : -1;
+        if (trex >= 0) {
+            trexSampleDuration = readUint32(box, trex + 20);
+            trexSampleFlags = readUint32(box, trex + 28);
+        }
+    }
+
+    private FragmentInfo parseMoof(byte[] moof) {
+        int traf = findChild(moof, 8, moof.length, "traf");
+        if (traf < 0) {
+            return new FragmentInfo(0, false);
+        }
+        int trafEnd = traf + (int) readUint32(moof, traf);
+        long defaultDuration = trexSampleDuration;
+        long defaultFlags = trexSampleFlags;
+        int tfhd = findChild(moof, traf + 8, trafEnd, "tfhd");
+        if (tfhd >= 0) {
+            int flags = (int) readUint32(moof, tfhd + 8) & 0xFFFFFF;
+            int pos = tfhd + 16;
+            pos += (flags & 0x01) != 0 ? 8 : 0; // base_data_offset
+            pos += (flags & 0x02) != 0 ? 4 : 0; // sample_description_index
+            if ((flags & 0x08) != 0) {
+                defaultDuration = readUint32(moof, pos);
+                pos += 4;
+            }
+            pos += (flags & 0x10) != 0 ? 4 : 0; // default_sample_size
+            if ((flags & 0x20) != 0) {
+                defaultFlags = readUint32(moof, pos);
+            }
+        }
+
+        int trun = findChild(moof, traf + 8, trafEnd, "trun");
+        if (trun < 0) {
+            return new FragmentInfo(0, false);
+        }
+        int flags = (int) readUint32(moof, trun + 8) & 0xFFFFFF;
+        long sampleCount = readUint32(moof, trun + 12);
+        int pos = trun + 16;
+        pos += (flags & 0x01) != 0 ? 4 : 0; // data_offset
+        Long firstSampleFlags = null;
+        if ((flags & 0x04) != 0) {
+            firstSampleFlags = readUint32(moof, pos);
+            pos += 4;
+        }
+        long totalDuration = 0;
+        for (long i = 0; i < sampleCount; i++) {
+            if ((flags & 0x100) != 0) {
+                totalDuration += readUint32(moof, pos);
+                pos += 4;
+            } else {
+                totalDuration += defaultDuration;
+            }
+            pos += (flags & 0x200) != 0 ? 4 : 0; // sample_size
+            if ((flags & 0x400) != 0) {
+                if (i == 0 && firstSampleFlags == null) {
+                    firstSampleFlags = readUint32(moof, pos);
+                }
+                pos += 4;
+            }
+            pos += (flags & 0x800) != 0 ? 4 : 0; // composition time offset
+        }
+        long sampleFlags = firstSampleFlags != null ? firstSampleFlags : defaultFlags;
+        boolean independent = (sampleFlags & 0x00010000L) == 0; // sample_is_non_sync_sample
+        return new FragmentInfo(timescale > 0 ? (double) totalDuration / timescale : 0, independent);
+    }
+
+    // ---- publishing ----
+
+    private void publishInit(byte[] init) {
+        synchronized (this) {
+            inits.add(init);
+            initVersion = inits.size() - 1 + firstInitVersion;
+        }
+    }
+
+    private void publishPart(byte[] data, double duration, boolean independent) {
+        List<CompletableFuture<byte[]>> playlistReady = new ArrayList<>();
+        List<CompletableFuture<byte[]>> partReady = new ArrayList<>();
+        byte[] playlist = null;
+        synchronized (this) {
+            if (closed || initVersion < 0) {
+                return;
+            }
+            if (current == null) {
+                if (!independent) {
+                    return; // wait for a keyframe to open the first segment
+                }
+                startSegment();
+            } else if (independent && current.duration >= targetSegmentSeconds) {
+                completeCurrent();
+                startSegment();
+            }
+            Part part = new Part(nextPartSeq++, data, duration, independent);
+            current.parts.add(part);
+            current.duration += duration;
+            longestPart = Math.max(longestPart, duration);
+
+            for (Iterator<PartWaiter> it = partWaiters.iterator(); it.hasNext(); ) {
+                PartWaiter waiter = it.next();
+                if (waiter.future.isDone()) {
+                    it.remove();
+                } else if (waiter.sequence == part.sequence) {
+                    partReady.add(waiter.future);
+                    it.remove();
+                }
+            }
+            for (Iterator<PlaylistWaiter> it = playlistWaiters.iterator(); it.hasNext(); ) {
+                PlaylistWaiter waiter = it.next();
+                if (waiter.future.isDone()) {
+                    it.remove();
+                } else if (isSatisfied(waiter.msn, waiter.part)) {
+                    playlistReady.add(waiter.future);
+                    it.remove();
+                }
+            }
+            if (!playlistReady.isEmpty()) {
+                playlist = render();
+            }
+        }
+        // Complete outside the lock; dependents may call back into this packager
+        partReady.forEach(f -> f.complete(data));
+        for (CompletableFuture<byte[]> future : playlistReady) {
+            future.complete(playlist);
+        }
+        outputWatcher.onPlaylistWritten(streamId);
+        outputWatcher.onSegmentWritten(streamId);
+    }
+
+    private void startSegment() {
+        current = new Segment(nextMsn++, initVersion, discontinuity);
+        discontinuity = false;
+    }
+
+    private void completeCurrent() {
+        current.complete = true;
+        longestSegment = Math.max(longestSegment, current.duration);
+        segments.addLast(current);
+        current = null;
+        while (segments.size() > segmentsRetained) {
+            Segment evicted = segments.removeFirst();
+            if (evicted.discontinuity) {
+                discontinuitySequence++;
+            }
+        }
+        // Drop init segments no retained segment refers to
+        int oldestInit = segments.peekFirst().initVersion;
+        while (firstInitVersion < oldestInit && !inits.isEmpty()) {
+            inits.remove(0);
+            firstInitVersion++;
+        }
+    }
+
+    // ---- HTTP side ----
+
+    /**
+     * The playlist once it contains part {@code part} of segment {@code msn}
+     * (or the whole segment when {@code part} is null), per the LL-HLS
+     * blocking reload rules. Without {@code msn} the current playlist.
+     *
+     * @throws IllegalArgumentException if msn is more than two segments ahead
+     */
+    synchronized CompletableFuture<byte[]> awaitPlaylist(Long msn, Integer part) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Stream stopped"));
+        }
+        if (msn == null || isSatisfied(msn, part)) {
+            return CompletableFuture.completedFuture(render());
+        }
+        long lastMsn = current != null ? current.msn : nextMsn - 1;
+        if (msn > lastMsn + 2) {
+            throw new IllegalArgumentException("_HLS_msn " + msn + " is too far ahead of " + lastMsn);
+        }
+        PlaylistWaiter waiter = new PlaylistWaiter(msn, part, new CompletableFuture<>());
+        playlistWaiters.add(waiter);
+        return waiter.future;
+    }
+
+    /**
+     * Content of an init segment, segment or part by resource name. The part
+     * named in the preload hint completes once FFmpeg delivers it; unknown
+     * names complete with null.
+     */
+    synchronized CompletableFuture<byte[]> awaitResource(String fileName) {
+        String[] fields = fileName.split("[_.]");
+        if (fields.length != 4 || !token.equals(fields[1])) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long number;
+        try {
+            number = Long.parseLong(fields[2]);
+        } catch (NumberFormatException e) {
+            return CompletableFuture.completedFuture(null);
+        }
+        switch (fields[0]) {
+            case "init" -> {
+                int index = (int) (number - firstInitVersion);
+                return CompletableFuture.completedFuture(
+                        index >= 0 && index < inits.size() ? inits.get(index) : null);
+            }
+            case "seg" -> {
+                for (Segment segment : segments) {
+                    if (segment.msn == number) {
+                        return CompletableFuture.completedFuture(segment.join());
+                    }
+                }
+                return CompletableFuture.completedFuture(null);
+            }
+            case "part" -> {
+                Part part = findPart(number);
+                if (part != null) {
+                    return CompletableFuture.completedFuture(part.data);
+                }
+                if (number == nextPartSeq && !closed) {
+                    PartWaiter waiter = new PartWaiter(number, new CompletableFuture<>());
+                    partWaiters.add(waiter);
+                    return waiter.future;
+                }
+                return CompletableFuture.completedFuture(null);
+            }
+            default -> {
+                return CompletableFuture.completedFuture(null);
+            }
+        }
+    }
+
+    synchronized double getTargetDuration() {
+        return Math.max(targetSegmentSeconds, longestSegment);
+    }
+
+    void close() {
+        List<CompletableFuture<byte[]>> pending = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            playlistWaiters.forEach(w -> pending.add(w.future));
+            partWaiters.forEach(w -> pending.add(w.future));
+            playlistWaiters.clear();
+            partWaiters.clear();
+        }
+        pending.forEach(f -> f.completeExceptionally(new IllegalStateException("Stream stopped")));
+    }
+
+    private boolean isSatisfied(long msn, Integer part) {
+        long lastCompleteMsn = segments.isEmpty() ? -1 : segments.peekLast().msn;
+        if (part == null) {
+            return lastCompleteMsn >= msn;
+        }
+        if (lastCompleteMsn > msn || (current != null && current.msn > msn)) {
+            return true;
+        }
+        Segment segment = current != null && current.msn == msn ? current : findSegment(msn);
+        return segment != null && segment.parts.size() > part;
+    }
+
+    private Segment findSegment(long msn) {
+        for (Segment segment : segments) {
+            if (segment.msn == msn) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    private Part findPart(long sequence) {
+        if (current != null) {
+            for (Part part : current.parts) {
+                if (part.sequence == sequence) {
+                    return part;
+                }
+            }
+        }
+        for (Segment segment : segments) {
+            for (Part part : segment.parts) {
+                if (part.sequence == sequence) {
+                    return part;
+                }
+            }
+        }
+        return null;
+    }
+
+    private byte[] render() {
+        double partTarget = Math.max(configuredPartSeconds, longestPart);
+        List<Segment> all = new ArrayList<>(segments);
+        if (current != null) {
+            all.add(current);
+        }
+        long firstMsn = all.isEmpty() ? nextMsn : all.get(0).msn;
+
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append("#EXTM3U\n");
+        sb.append("#EXT-X-VERSION:9\n");
+        sb.append("#EXT-X-TARGETDURATION:").append((long) Math.ceil(getTargetDuration())).append('\n');
+        sb.append("#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=")
+                .append(format(partTarget * 3)).append('\n');
+        sb.append("#EXT-X-PART-INF:PART-TARGET=").append(format(partTarget)).append('\n');
+        sb.append("#EXT-X-MEDIA-SEQUENCE:").append(firstMsn).append('\n');
+        sb.append("#EXT-X-DISCONTINUITY-SEQUENCE:").append(discontinuitySequence).append('\n');
+
+        int mappedInit = -1;
+        for (int i = 0; i < all.size(); i++) {
+            Segment segment = all.get(i);
+            if (segment.discontinuity) {
+                sb.append("#EXT-X-DISCONTINUITY\n");
+            }
+            if (segment.initVersion != mappedInit) {
+                sb.append("#EXT-X-MAP:URI=\"init_").append(token).append('_').append(segment.initVersion)
+                        .append(".mp4\"\n");
+                mappedInit = segment.initVersion;
+            }
+            // Parts are only advertised near the live edge
+            if (i >= all.size() - SEGMENTS_WITH_PARTS - 1) {
+                for (Part part : segment.parts) {
+                    sb.append("#EXT-X-PART:DURATION=").append(format(part.duration))
+                            .append(",URI=\"part_").append(token).append('_').append(part.sequence).append(".m4s\"");
+                    if (part.independent) {
+                        sb.append(",INDEPENDENT=YES");
+                    }
+                    sb.append('\n');
+                }
+            }
+            if (segment.complete) {
+                sb.append("#EXTINF:").append(format(segment.duration)).append(",\n");
+                sb.append("seg_").append(token).append('_').append(segment.msn).append(".m4s\n");
+            }
+        }
+        sb.append("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"part_").append(token).append('_').append(nextPartSeq)
+                .append(".m4s\"\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // ---- MP4 helpers ----
+
+    private static String format(double seconds) {
+        return String.format(Locale.ROOT, "%.3f", seconds);
+    }
+
+    private static int findChild(byte[] data, int start, int end, String type) {
+        int pos = start;
+        while (pos + 8 <= end) {
+            long size = readUint32(data, pos);
+            if (isType(data, pos, type)) {
+                return pos;
+            }
+            if (size < 8) {
+                return -1;
+            }
+            pos += (int) size;
+        }
+        return -1;
+    }
+
+    private static boolean isType(byte[] data, int boxStart, String type) {
+        for (int i = 0; i < 4; i++) {
+            if (data[boxStart + 4 + i] != type.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long readUint32(byte[] data, int pos) {
+        return ((data[pos] & 0xFFL) << 24) | ((data[pos + 1] & 0xFFL) << 16)
+                | ((data[pos + 2] & 0xFFL) << 8) | (data[pos + 3] & 0xFFL);
+    }
+
+    private static long readUint64(byte[] data, int pos) {
+        return (readUint32(data, pos) << 32) | readUint32(data, pos + 4);
+    }
+
+    private record FragmentInfo(double duration, boolean independent) {
+    }
+
+    private record Part(long sequence, byte[] data, double duration, boolean independent) {
+    }
+
+    private record PlaylistWaiter(long msn, Integer part, CompletableFuture<byte[]> future) {
+    }
+
+    private record PartWaiter(long sequence, CompletableFuture<byte[]> future) {
+    }
+
+    private static final class Segment {
+        private final long msn;
+        private final int initVersion;
+        private final boolean discontinuity;
+        private final List<Part> parts = new ArrayList<>();
+        private double duration;
+        private boolean complete;
+        private byte[] joined;
+
+        private Segment(long msn, int initVersion, boolean discontinuity) {
+            this.msn = msn;
+            this.initVersion = initVersion;
+            this.discontinuity = discontinuity;
+        }
+
+        private byte[] join() {
+            if (joined == null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                parts.forEach(part -> out.writeBytes(part.data));
+                joined = out.toByteArray();
+            }
+            return joined;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.cctv.api.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Watches every FFmpeg process from one thread. Each process logs into its own
+ * file (opened O_APPEND, so it can be truncated under the writer once it
+ * passes hls.ffmpeg.log.max.bytes); the supervisor tails all of them through
+ * one shared buffer and delivers complete lines to the session. Exits are
+ * observed through {@link Process#onExit()} instead of a thread blocked in
+ * {@code waitFor}, and handed to the session after its last log lines.
+ * <p>
+ * Every running process also has its PID recorded in
+ * {@code <hls.root.dir>/<streamId>/ffmpeg.pid}, so processes orphaned by a
+ * crash of a previous instance are found and killed on startup.
+ */
+@Slf4j
+@Service
+public class FFmpegProcessSupervisor {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 1024;
+    private static final String PID_FILE_NAME = "ffmpeg.pid";
+
+    private final Set<Supervised> supervised = ConcurrentHashMap.newKeySet();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private ScheduledExecutorService executor;
+
+    @Value("${hls.root.dir}")
+    private String hlsRootDir;
+
+    @Value("${hls.shutdown.timeout.seconds:10}")
+    private long reapTimeoutSeconds;
+
+    @Value("${hls.ffmpeg.log.dir:${java.io.tmpdir}/cctv-ffmpeg}")
+    private String logDir;
+
+    @Value("${hls.ffmpeg.log.max.bytes:1048576}")
+    private long maxLogBytes;
+
+    @Value("${hls.ffmpeg.log.poll.ms:500}")
+    private long pollIntervalMs;
+
+    @PostConstruct
+    void init() throws IOException {
+        Files.createDirectories(Paths.get(logDir));
+        reapOrphans();
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ffmpeg-supervisor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::pollLogs, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdownNow();
+        // Sessions are stopped by HlsService first; anything still here leaked
+        for (Supervised entry : supervised) {
+            if (entry.process.isAlive()) {
+                log.warn("[{}] Killing leftover FFmpeg process {}", entry.streamId, entry.process.pid());
+                entry.process.destroyForcibly();
+            }
+            deletePidFile(entry);
+        }
+    }
+
+    /**
+     * Kills FFmpeg processes left running by a previous instance, identified
+     * by the PID files under hls.root.dir. A PID is only trusted if it still
+     * belongs to an ffmpeg process working on that stream.
+     */
+    private void reapOrphans() {
+        long started = System.nanoTime();
+        Path root = Paths.get(hlsRootDir);
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        List<ProcessHandle> orphans = new ArrayList<>();
+        try (DirectoryStream<Path> streamDirs = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path streamDir : streamDirs) {
+                Path pidFile = streamDir.resolve(PID_FILE_NAME);
+                if (!Files.exists(pidFile)) {
+                    continue;
+                }
+                String streamId = streamDir.getFileName().toString();
+                try {
+                    long pid = Long.parseLong(Files.readString(pidFile).trim());
+                    ProcessHandle.of(pid)
+                            .filter(handle -> isFFmpegFor(handle, streamId))
+                            .ifPresent(orphans::add);
+                } catch (NumberFormatException | IOException e) {
+                    log.debug("[{}] Unreadable PID file: {}", streamId, e.getMessage());
+                }
+                Files.deleteIfExists(pidFile);
+            }
+        } catch (IOException e) {
+            log.warn("Could not scan {} for orphaned FFmpeg processes: {}", root, e.getMessage());
+        }
+        if (orphans.isEmpty()) {
+            return;
+        }
+
+        orphans.forEach(ProcessHandle::destroy);
+        CompletableFuture<?>[] exits = orphans.stream().map(ProcessHandle::onExit).toArray(CompletableFuture[]::new);
+        try {
+            CompletableFuture.allOf(exits).get(reapTimeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            orphans.stream().filter(ProcessHandle::isAlive).forEach(ProcessHandle::destroyForcibly);
+        } catch (InterruptedException e) {
+            orphans.forEach(ProcessHandle::destroyForcibly);
+            Thread.currentThread().interrupt();
+        }
+        log.warn("Reaped {} orphaned FFmpeg processes in {} ms", orphans.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    private static boolean isFFmpegFor(ProcessHandle handle, String streamId) {
+        ProcessHandle.Info info = handle.info();
+        boolean ffmpeg = info.command().map(command -> command.endsWith("ffmpeg")).orElse(false);
+        // The output path or ingest URL always contains the stream ID
+        boolean forStream = info.arguments()
+                .map(args -> Arrays.stream(args).anyMatch(arg -> arg.contains(streamId)))
+                .orElse(false);
+        return ffmpeg && forStream;
+    }
+
+    /**
+     * Prepares the log file for a new process of the stream and points the
+     * builder's stdout and stderr at it.
+     */
+    public Path redirectLog(String streamId, ProcessBuilder pb) throws IOException {
+        Path logFile = Paths.get(logDir, streamId + ".log");
+        // A fresh inode per process; a previous process's reader keeps its own
+        Files.deleteIfExists(logFile);
+        Files.createFile(logFile);
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(ProcessBuilder.Redirect.appendTo(logFile.toFile()));
+        return logFile;
+    }
+
+    /**
+     * Starts tailing the process's log and watching for its exit. All
+     * callbacks run on the supervisor thread and must not block.
+     */
+    public void supervise(String streamId, Process process, Path logFile, Handler handler) throws IOException {
+        FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Path pidFile = Paths.get(hlsRootDir, streamId, PID_FILE_NAME);
+        try {
+            Files.createDirectories(pidFile.getParent());
+            Files.writeString(pidFile, String.valueOf(process.pid()));
+        } catch (IOException e) {
+            log.warn("[{}] Could not write PID file {}: {}", streamId, pidFile, e.getMessage());
+        }
+        Supervised entry = new Supervised(streamId, process, pidFile, channel, handler);
+        supervised.add(entry);
+        process.onExit().thenRunAsync(() -> onExit(entry, process), executor);
+    }
+
+    private void onExit(Supervised entry, Process process) {
+        supervised.remove(entry);
+        deletePidFile(entry);
+        drain(entry);
+        entry.flushLine();
+        try {
+            entry.channel.close();
+        } catch (IOException ignored) {
+            // nothing to release
+        }
+        try {
+            entry.handler.onExit(process.exitValue());
+        } catch (RuntimeException e) {
+            log.error("[{}] FFmpeg exit handler failed", entry.streamId, e);
+        }
+    }
+
+    private static void deletePidFile(Supervised entry) {
+        try {
+            // A newer process of the same stream may already have replaced it
+            if (Files.exists(entry.pidFile)
+                    && Files.readString(entry.pidFile).trim().equals(String.valueOf(entry.process.pid()))) {
+                Files.delete(entry.pidFile);
+            }
+        } catch (IOException e) {
+            log.debug("[{}] Could not remove PID file: {}", entry.streamId, e.getMessage());
+        }
+    }
+
+    private void pollLogs() {
+        for (Supervised entry : supervised) {
+            drain(entry);
+        }
+    }
+
+    private void drain(Supervised entry) {
+        try {
+            while (true) {
+                readBuffer.clear();
+                int read = entry.channel.read(readBuffer, entry.offset);
+                if (read <= 0) {
+                    break;
+                }
+                entry.offset += read;
+                readBuffer.flip();
+                while (readBuffer.hasRemaining()) {
+                    entry.accept(readBuffer.get());
+                }
+            }
+            if (entry.offset > maxLogBytes) {
+                // O_APPEND writers continue at the new end of file
+                entry.channel.truncate(0);
+                entry.offset = 0;
+            }
+        } catch (IOException e) {
+            log.debug("[{}] Could not read FFmpeg log: {}", entry.streamId, e.getMessage());
+        }
+    }
+
+    /**
+     * Receiver of one process's log lines and exit code.
+     */
+    interface Handler {
+        void onLogLine(String line);
+
+        void onExit(int exitCode);
+    }
+
+    private static final class Supervised {
+        private final String streamId;
+        private final Process process;
+        private final Path pidFile;
+        private final FileChannel channel;
+        private final Handler handler;
+        private final byte[] line = new byte[MAX_LINE_LENGTH];
+        private int lineLength;
+        private long offset;
+
+        private Supervised(String streamId, Process process, Path pidFile, FileChannel channel, Handler handler) {
+            this.streamId = streamId;
+            this.process = process;
+            this.pidFile = pidFile;
+            this.channel = channel;
+            this.handler = handler;
+        }
+
+        private void accept(byte b) {
+            if (b == '\n' || b == '\r') {
+                flushLine();
+            } else if (lineLength < MAX_LINE_LENGTH) {
+                // Longer lines are cut; nothing we parse is anywhere near this long
+                line[lineLength++] = b;
+            }
+        }
+
+        private void flushLine() {
+            if (lineLength == 0) {
+                return;
+            }
+            String text = new String(line, 0, lineLength, StandardCharsets.UTF_8);
+            lineLength = 0;
+            try {
+                handler.onLogLine(text);
+            } catch (RuntimeException e) {
+                log.error("[{}] FFmpeg log handler failed", streamId, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.cctv.api.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Latest values of one session's {@code -progress} feed. FFmpeg writes a block
+ * of {@code key=value} lines per update; the parser runs on the loopback
+ * selector thread and works on the raw bytes, so it allocates nothing per
+ * update. Readers (meter gauges) see the volatile fields.
+ */
+class FFmpegProgress implements LoopbackIngestServer.Sink {
+
+    private static final byte[] FPS = key("fps");
+    private static final byte[] BITRATE = key("bitrate");
+    private static final byte[] SPEED = key("speed");
+    private static final byte[] FRAME = key("frame");
+    private static final byte[] DROP_FRAMES = key("drop_frames");
+    private static final byte[] DUP_FRAMES = key("dup_frames");
+    private static final byte[] PROGRESS = key("progress");
+
+    private static final int MAX_KEY_LENGTH = 32;
+
+    private volatile double fps;
+    private volatile double bitrateKbps;
+    private volatile double speed;
+    private volatile long frames;
+    private volatile long droppedFrames;
+    private volatile long duplicatedFrames;
+    private volatile long lastUpdateAt;
+
+    // Parse state, only touched by the selector thread
+    private final byte[] keyBuffer = new byte[MAX_KEY_LENGTH];
+    private int keyLength;
+    private boolean inValue;
+    private boolean keyOverflow;
+    private long mantissa;
+    private int fractionDigits;
+    private boolean seenDot;
+    private boolean seenDigit;
+    private boolean numberEnded;
+
+    private static byte[] key(String name) {
+        return name.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public void onConnected() {
+        // A new FFmpeg process (e.g. after a transcode fallback) starts from scratch
+        resetLine();
+        fps = 0;
+        bitrateKbps = 0;
+        speed = 0;
+        frames = 0;
+        droppedFrames = 0;
+        duplicatedFrames = 0;
+    }
+
+    @Override
+    public void onData(ByteBuffer data) {
+        while (data.hasRemaining()) {
+            byte b = data.get();
+            if (b == '\n') {
+                endLine();
+            } else if (b == '\r') {
+                continue;
+            } else if (!inValue) {
+                if (b == '=') {
+                    inValue = true;
+                } else if (keyLength < MAX_KEY_LENGTH) {
+                    keyBuffer[keyLength++] = b;
+                } else {
+                    keyOverflow = true;
+                }
+            } else if (!numberEnded) {
+                if (b >= '0' && b <= '9') {
+                    mantissa = mantissa * 10 + (b - '0');
+                    seenDigit = true;
+                    if (seenDot) {
+                        fractionDigits++;
+                    }
+                } else if (b == '.' && !seenDot) {
+                    seenDot = true;
+                } else if (b != ' ' || seenDigit) {
+                    // Units such as "kbits/s" or "x" end the number; "N/A" leaves it empty
+                    numberEnded = true;
+                }
+            }
+        }
+    }
+
+    private void endLine() {
+        if (inValue && !keyOverflow) {
+            if (keyEquals(PROGRESS)) {
+                lastUpdateAt = System.currentTimeMillis();
+            } else if (seenDigit) {
+                double value = fractionDigits == 0 ? mantissa : mantissa / Math.pow(10, fractionDigits);
+                if (keyEquals(FPS)) {
+                    fps = value;
+                } else if (keyEquals(BITRATE)) {
+                    bitrateKbps = value;
+                } else if (keyEquals(SPEED)) {
+                    speed = value;
+                } else if (keyEquals(FRAME)) {
+                    frames = mantissa;
+                } else if (keyEquals(DROP_FRAMES)) {
+                    droppedFrames = mantissa;
+                } else if (keyEquals(DUP_FRAMES)) {
+                    duplicatedFrames = mantissa;
+                }
+            }
+        }
+        resetLine();
+    }
+
+    private boolean keyEquals(byte[] expected) {
+        if (keyLength != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < keyLength; i++) {
+            if (keyBuffer[i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void resetLine() {
+        keyLength = 0;
+        inValue = false;
+        keyOverflow = false;
+        mantissa = 0;
+        fractionDigits = 0;
+        seenDot = false;
+        seenDigit = false;
+        numberEnded = false;
+    }
+
+    public double getFps() {
+        return fps;
+    }
+
+    public double getBitrateKbps() {
+        return bitrateKbps;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public long getDuplicatedFrames() {
+        return duplicatedFrames;
+    }
+
+    /**
+     * Wall-clock time of the last complete update, or 0 before the first one.
+     */
+    public long getLastUpdateAt() {
+        return lastUpdateAt;
+    }
+}
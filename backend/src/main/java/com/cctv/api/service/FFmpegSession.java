@@ -0,0 +1,712 @@
+package com.cctv.api.service;
+
+import com.cctv.api.constant.AppConstants;
+import com.cctv.api.model.StreamPriority;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * One FFmpeg RTSP-to-HLS pipeline owned by {@link HlsService}.
+ */
+@Slf4j
+class FFmpegSession {
+    private static final String MOSAIC_SOURCE = "mosaic";
+
+    private final String streamId;
+    private final CompletableFuture<Void> startup = new CompletableFuture<>();
+    private final StreamCostBudget costBudget;
+    private final FFmpegTelemetryService telemetry;
+    private final FFmpegProcessSupervisor supervisor;
+    private final Listener listener;
+    private volatile StreamPriority priority;
+    private volatile StreamCapabilityService.VideoStreamInfo inputInfo;
+    private volatile StreamCapabilityService.VideoStreamInfo substreamInfo;
+    private String rtspUrl;
+    private String substreamUrl;
+    private Output output;
+    // Whether the substream may be published as a second variant; cleared once it proves unusable
+    private volatile boolean substreamVariant;
+    private volatile boolean multiVariant;
+    // Started from the substream alone, so probed input is not the main stream's
+    private volatile boolean substreamInput;
+    private FFmpegTelemetryService.Registration telemetryRegistration;
+    private volatile long lastAccessed = System.currentTimeMillis();
+    private volatile boolean stopped;
+    private Process ffmpegProcess;
+    // Bumped by restart(); monitors of an older generation must not respawn
+    private int generation;
+    private String currentSourceUrl;
+    private boolean currentCopy;
+    private volatile long startNumber;
+    private volatile boolean restarted;
+    private volatile long launchedAt;
+    // Set for a composite session, which tiles several cameras instead of relaying one
+    private Mosaic mosaic;
+
+    public FFmpegSession(String streamId, StreamPriority priority, StreamCostBudget costBudget,
+            FFmpegTelemetryService telemetry, FFmpegProcessSupervisor supervisor, Listener listener) {
+        this.streamId = streamId;
+        this.priority = priority;
+        this.costBudget = costBudget;
+        this.telemetry = telemetry;
+        this.supervisor = supervisor;
+        this.listener = listener;
+    }
+
+    public String getStreamId() {
+        return streamId;
+    }
+
+    public StreamPriority getPriority() {
+        return priority;
+    }
+
+    public synchronized void raisePriority(StreamPriority requested) {
+        if (requested.outranks(priority)) {
+            priority = requested;
+        }
+    }
+
+    public boolean isStarted() {
+        return startup.isDone() && !startup.isCompletedExceptionally();
+    }
+
+    public void completeStartup() {
+        startup.complete(null);
+    }
+
+    public void failStartup(RuntimeException e) {
+        startup.completeExceptionally(e);
+    }
+
+    /**
+     * Completes once the launching caller has started (or failed to start)
+     * this session.
+     */
+    public CompletableFuture<Void> getStartup() {
+        return startup.copy();
+    }
+
+    public void updateLastAccessed() {
+        lastAccessed = System.currentTimeMillis();
+    }
+
+    public long getLastAccessed() {
+        return lastAccessed;
+    }
+
+    /**
+     * Launches the pipeline. The caller must already hold a copy-cost
+     * reservation for this stream.
+     *
+     * @param substreamUrl used instead of the main stream if a transcode is
+     *                     needed but the main-stream transcode cost does not fit;
+     *                     equal to {@code rtspUrl} for a session on the substream alone
+     * @param knownInput   previously probed main-stream capabilities, or null
+     * @param variants     also remux the substream into a second, low-bandwidth
+     *                     HLS variant while the main stream is copied
+     * @return false if the input needs a transcode and the CPU budget has no room for it
+     */
+    public boolean start(String rtspUrl, String substreamUrl, Output output,
+            StreamCapabilityService.VideoStreamInfo knownInput, boolean variants) {
+        this.rtspUrl = rtspUrl;
+        this.substreamUrl = substreamUrl;
+        this.substreamInput = rtspUrl.equals(substreamUrl);
+        this.output = output;
+        this.substreamVariant = variants && output.kind() != Output.Kind.CMAF
+                && substreamUrl != null && !substreamUrl.isEmpty() && !substreamUrl.equals(rtspUrl);
+        this.inputInfo = knownInput;
+        this.launchedAt = System.currentTimeMillis();
+        // Segment names are unique across sessions, so clients may cache them forever
+        this.startNumber = launchedAt / 1000;
+        synchronized (this) {
+            if (stopped) {
+                return true;
+            }
+            telemetryRegistration = telemetry.register(streamId);
+        }
+        if (knownInput != null && !knownInput.isCopyCompatible()) {
+            log.info("[{}] Input is {}, skipping stream copy", streamId, knownInput.codec());
+            return startTranscode("known_incompatible", 0);
+        }
+        // Try with stream copy first (ultra low CPU)
+        startProcess(rtspUrl, true, 0);
+        return true;
+    }
+
+    /**
+     * Launches a composite pipeline that decodes each tile's input and
+     * encodes one tiled stream. The caller must already hold the mosaic's
+     * cost reservation.
+     */
+    public void startMosaic(Mosaic mosaic, Output output) {
+        this.mosaic = mosaic;
+        this.output = output;
+        this.launchedAt = System.currentTimeMillis();
+        this.startNumber = launchedAt / 1000;
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            telemetryRegistration = telemetry.register(streamId);
+        }
+        startProcess(MOSAIC_SOURCE, false, 0);
+    }
+
+    /**
+     * Kills the current FFmpeg process and spawns a new one in the same mode
+     * (copy or transcode, main or substream), keeping the session's admission
+     * slot and CPU reservation. Media sequence numbers continue from the wall
+     * clock so players see a discontinuity rather than a rewound playlist.
+     */
+    public void restart() {
+        Process previous;
+        int restartGeneration;
+        String sourceUrl;
+        boolean useCopy;
+        synchronized (this) {
+            if (stopped || currentSourceUrl == null) {
+                return;
+            }
+            restartGeneration = ++generation;
+            previous = ffmpegProcess;
+            sourceUrl = currentSourceUrl;
+            useCopy = currentCopy;
+        }
+        launchedAt = System.currentTimeMillis();
+        if (previous != null && previous.isAlive()) {
+            terminate(previous);
+        }
+        advanceStartNumber();
+        startProcess(sourceUrl, useCopy, restartGeneration);
+    }
+
+    /**
+     * Moves segment numbering past everything the previous process wrote,
+     * since segment URLs are cached as immutable.
+     */
+    private void advanceStartNumber() {
+        startNumber = Math.max(startNumber + 1, System.currentTimeMillis() / 1000);
+        restarted = true;
+    }
+
+    /**
+     * True while an FFmpeg process of this session is running.
+     */
+    public synchronized boolean isProcessAlive() {
+        return ffmpegProcess != null && ffmpegProcess.isAlive();
+    }
+
+    /**
+     * Wall-clock time the session was started or last {@link #restart() restarted}.
+     */
+    public long getLaunchedAt() {
+        return launchedAt;
+    }
+
+    /**
+     * True while the current process remuxes a camera stream, so its output
+     * bitrate is what it pulls.
+     */
+    public synchronized boolean isRemuxing() {
+        return mosaic == null && currentCopy && currentSourceUrl != null;
+    }
+
+    /**
+     * True if the session was started from the substream alone.
+     */
+    public boolean isSubstreamInput() {
+        return substreamInput;
+    }
+
+    /**
+     * True while the current process also publishes the substream variant.
+     */
+    public boolean isMultiVariant() {
+        return multiVariant;
+    }
+
+    /**
+     * Probed main-stream capabilities, or null before the input banner.
+     */
+    public StreamCapabilityService.VideoStreamInfo getInputInfo() {
+        return inputInfo;
+    }
+
+    /**
+     * Probed substream capabilities, or null before its input banner.
+     */
+    public StreamCapabilityService.VideoStreamInfo getSubstreamInfo() {
+        return substreamInfo;
+    }
+
+    private void startProcess(String sourceUrl, boolean useCopy, int processGeneration) {
+        // Variants only while both streams are remuxed; a transcode spends its budget on one
+        boolean withSubstream = useCopy && substreamVariant && sourceUrl.equals(rtspUrl);
+        List<String> command = new ArrayList<>();
+        command.add("ffmpeg");
+        String progressUrl = telemetryRegistration.getProgressUrl();
+        if (progressUrl != null) {
+            // Machine-readable stats go to the shared loopback reader instead of the log
+            command.add("-nostats");
+            command.add("-progress");
+            command.add(progressUrl);
+        }
+
+        if (mosaic != null) {
+            addMosaicPipeline(command);
+        } else {
+            addRtspInput(command, sourceUrl);
+            if (withSubstream) {
+                addRtspInput(command, substreamUrl);
+                command.add("-map");
+                command.add("0:v:0");
+            }
+
+            if (useCopy) {
+                log.info("[{}] Attempting stream copy...", streamId);
+                command.add("-c:v");
+                command.add("copy");
+            } else {
+                log.info("[{}] Falling back to transcoding...", streamId);
+                command.add("-c:v");
+                command.add("libx264");
+                command.add("-preset");
+                command.add("ultrafast");
+                command.add("-tune");
+                command.add("zerolatency");
+                command.add("-profile:v");
+                command.add("baseline");
+                command.add("-level");
+                command.add("3.0");
+                command.add("-pix_fmt");
+                command.add("yuv420p");
+                // Limit CPU usage
+                command.add("-threads");
+                command.add("2");
+                // Quality settings for low latency
+                command.add("-crf");
+                command.add("23");
+                command.add("-maxrate");
+                command.add("2M");
+                command.add("-bufsize");
+                command.add("4M");
+                if (output.kind() == Output.Kind.CMAF) {
+                    // Keyframe every second so LL-HLS segments can start on one
+                    command.add("-force_key_frames");
+                    command.add("expr:gte(t,n_forced*1)");
+                }
+            }
+        }
+
+        command.add("-an"); // No audio
+        if (output.kind() == Output.Kind.CMAF) {
+            addCmafOutput(command);
+        } else {
+            addHlsOutput(command, AppConstants.HLS_PLAYLIST_NAME, "seg");
+        }
+        if (withSubstream) {
+            // Second output: the substream, remuxed as well, as the low-bandwidth variant
+            command.add("-map");
+            command.add("1:v:0");
+            command.add("-c:v");
+            command.add("copy");
+            command.add("-an");
+            addHlsOutput(command, AppConstants.HLS_SUBSTREAM_PLAYLIST_NAME, "sub");
+        }
+
+        ProcessBuilder pb = new ProcessBuilder(command);
+
+        try {
+            Process process;
+            Path logFile;
+            synchronized (this) {
+                // A concurrent stop() or restart() must not leave a freshly spawned process behind
+                if (stopped || generation != processGeneration) {
+                    return;
+                }
+                // FFmpeg's log goes to a file the supervisor tails for the input banner
+                logFile = supervisor.redirectLog(streamId, pb);
+                process = pb.start();
+                ffmpegProcess = process;
+                currentSourceUrl = sourceUrl;
+                currentCopy = useCopy;
+                multiVariant = withSubstream;
+            }
+            log.info("[{}] FFmpeg process started (PID: {})", streamId, process.pid());
+            costBudget.attachProcess(streamId, process.pid());
+            supervisor.supervise(streamId, process, logFile,
+                    new ProcessHandler(process, useCopy, withSubstream, processGeneration));
+        } catch (IOException e) {
+            log.error("[{}] Failed to start FFmpeg process", streamId, e);
+            throw new RuntimeException("Failed to start FFmpeg for stream: " + streamId, e);
+        }
+    }
+
+    /**
+     * Upgrades the session's CPU reservation to a transcode, downgrading to the
+     * substream when the main-stream transcode does not fit the budget.
+     *
+     * @param reason why stream copy is not used, for the fallback counter
+     */
+    private boolean startTranscode(String reason, int processGeneration) {
+        if (costBudget.tryReserve(streamId, costBudget.transcodeCost(inputInfo))) {
+            telemetry.recordFallback(streamId, reason, "main");
+            startProcess(rtspUrl, false, processGeneration);
+        } else if (substreamUrl != null && !substreamUrl.isEmpty()
+                && costBudget.tryReserve(streamId, costBudget.costOf(true, true))) {
+            log.warn("[{}] CPU budget too tight for a main-stream transcode, transcoding the substream", streamId);
+            telemetry.recordFallback(streamId, reason, "substream");
+            startProcess(substreamUrl, false, processGeneration);
+        } else {
+            log.warn("[{}] CPU budget exhausted, giving up on transcoding", streamId);
+            telemetry.recordFallback(streamId, reason, "rejected");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops the pipeline, giving FFmpeg up to 5 seconds to exit cleanly.
+     */
+    public void stop() {
+        CompletableFuture<Void> exited = signalStop();
+        try {
+            exited.get(5, TimeUnit.SECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            forceStop();
+        } catch (InterruptedException e) {
+            forceStop();
+            Thread.currentThread().interrupt();
+        }
+        FFmpegTelemetryService.Registration registration;
+        synchronized (this) {
+            registration = telemetryRegistration;
+        }
+        telemetry.unregister(registration);
+    }
+
+    /**
+     * Marks the session stopped and asks FFmpeg to exit without waiting for it.
+     *
+     * @return completes once the process has exited
+     */
+    public CompletableFuture<Void> signalStop() {
+        Process process;
+        synchronized (this) {
+            stopped = true;
+            process = ffmpegProcess;
+        }
+        if (process == null || !process.isAlive()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        process.destroy();
+        return process.onExit().thenApply(p -> null);
+    }
+
+    public void forceStop() {
+        Process process;
+        synchronized (this) {
+            process = ffmpegProcess;
+        }
+        if (process != null && process.isAlive()) {
+            log.warn("[{}] FFmpeg did not exit in time, killing PID {}", streamId, process.pid());
+            process.destroyForcibly();
+        }
+    }
+
+    private static void addRtspInput(List<String> command, String url) {
+        // Input optimization
+        command.add("-rtsp_transport");
+        command.add("tcp");
+        command.add("-rtsp_flags");
+        command.add("prefer_tcp");
+        command.add("-stimeout");
+        command.add("5000000"); // 5 second timeout
+        command.add("-i");
+        command.add(url);
+    }
+
+    /**
+     * One input per tile, each scaled and letterboxed into its cell, then
+     * stacked with xstack and encoded with keyframes on segment boundaries.
+     */
+    private void addMosaicPipeline(List<String> command) {
+        List<String> inputs = mosaic.inputUrls();
+        for (String url : inputs) {
+            // Live sources start at different times; wall-clock stamps keep the tiles in step
+            command.add("-use_wallclock_as_timestamps");
+            command.add("1");
+            addRtspInput(command, url);
+        }
+        StringBuilder filter = new StringBuilder();
+        StringBuilder layout = new StringBuilder();
+        for (int i = 0; i < inputs.size(); i++) {
+            filter.append('[').append(i).append(":v]fps=").append(mosaic.fps())
+                    .append(",scale=").append(mosaic.tileWidth()).append(':').append(mosaic.tileHeight())
+                    .append(":force_original_aspect_ratio=decrease,pad=").append(mosaic.tileWidth()).append(':')
+                    .append(mosaic.tileHeight()).append(":(ow-iw)/2:(oh-ih)/2,setsar=1[t").append(i).append("];");
+            if (i > 0) {
+                layout.append('|');
+            }
+            layout.append((i % mosaic.columns()) * mosaic.tileWidth()).append('_')
+                    .append((i / mosaic.columns()) * mosaic.tileHeight());
+        }
+        if (inputs.size() == 1) {
+            // xstack needs at least two inputs
+            filter.append("[t0]null[out]");
+        } else {
+            for (int i = 0; i < inputs.size(); i++) {
+                filter.append("[t").append(i).append(']');
+            }
+            filter.append("xstack=inputs=").append(inputs.size()).append(":layout=").append(layout)
+                    .append(":fill=black[out]");
+        }
+        command.add("-filter_complex");
+        command.add(filter.toString());
+        command.add("-map");
+        command.add("[out]");
+        log.info("[{}] Starting {}-tile mosaic", streamId, inputs.size());
+        command.add("-c:v");
+        command.add("libx264");
+        command.add("-preset");
+        command.add("ultrafast");
+        command.add("-tune");
+        command.add("zerolatency");
+        command.add("-pix_fmt");
+        command.add("yuv420p");
+        command.add("-b:v");
+        command.add(mosaic.bitrate());
+        command.add("-maxrate");
+        command.add(mosaic.bitrate());
+        command.add("-bufsize");
+        command.add(mosaic.bitrate());
+        // A keyframe per 2-second segment
+        command.add("-g");
+        command.add(String.valueOf(mosaic.fps() * 2));
+        command.add("-sc_threshold");
+        command.add("0");
+    }
+
+    private void addHlsOutput(List<String> command, String playlistName, String segmentPrefix) {
+        boolean http = output.kind() == Output.Kind.HTTP;
+        command.add("-f");
+        command.add("hls");
+        // Optimized HLS settings for low latency
+        command.add("-hls_time");
+        command.add("2");
+        command.add("-hls_list_size");
+        command.add("5");
+        String hlsFlags = "delete_segments+independent_segments+omit_endlist";
+        if (restarted) {
+            hlsFlags += "+discont_start";
+        }
+        if (!http) {
+            // Segments appear under their final name only once complete, so they can be served as immutable
+            hlsFlags += "+temp_file";
+        }
+        command.add("-hls_flags");
+        command.add(hlsFlags);
+        command.add("-hls_segment_type");
+        command.add("mpegts");
+        String separator = http ? "/" : File.separator;
+        if (http) {
+            // Upload to the in-memory segment store over a persistent loopback connection
+            command.add("-method");
+            command.add("PUT");
+            command.add("-http_persistent");
+            command.add("1");
+        }
+        command.add("-hls_segment_filename");
+        command.add(output.location() + separator + segmentPrefix + "_%03d.ts");
+        command.add("-start_number");
+        command.add(String.valueOf(startNumber));
+        command.add("-hls_allow_cache");
+        command.add("0");
+        command.add(output.location() + separator + playlistName);
+    }
+
+    /**
+     * Fragmented MP4 with one fragment per LL-HLS part, streamed to the
+     * packager's loopback socket.
+     */
+    private void addCmafOutput(List<String> command) {
+        command.add("-f");
+        command.add("mp4");
+        command.add("-movflags");
+        command.add("empty_moov+default_base_moof+frag_keyframe");
+        command.add("-frag_duration");
+        command.add(String.valueOf(output.partMillis() * 1000));
+        command.add(output.location());
+    }
+
+    private void terminate(Process process) {
+        process.destroy();
+        try {
+            if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads one process's input banner and decides what happens when it exits.
+     * Runs on the supervisor thread.
+     */
+    private final class ProcessHandler implements FFmpegProcessSupervisor.Handler {
+        private final Process process;
+        private final boolean usingCopy;
+        private final boolean withSubstream;
+        private final int processGeneration;
+        private boolean inInputBanner;
+        private boolean inSubstreamBanner;
+        private boolean incompatibleCopy;
+        private boolean incompatibleSubstream;
+        private boolean mainInputOpened;
+        private boolean substreamOpened;
+        private boolean substreamError;
+
+        private ProcessHandler(Process process, boolean usingCopy, boolean withSubstream, int processGeneration) {
+            this.process = process;
+            this.usingCopy = usingCopy;
+            this.withSubstream = withSubstream;
+            this.processGeneration = processGeneration;
+        }
+
+        @Override
+        public void onLogLine(String line) {
+            log.trace("[{}] FFmpeg: {}", streamId, line);
+            if (line.startsWith("Input #0")) {
+                inInputBanner = true;
+                mainInputOpened = true;
+            } else if (line.startsWith("Input #1")) {
+                inInputBanner = false;
+                inSubstreamBanner = withSubstream;
+                substreamOpened = true;
+            } else if (withSubstream && (line.startsWith("[in#1") || line.contains(substreamUrl))) {
+                // Outside its banner, FFmpeg only names the second input to report a problem with it
+                substreamError = true;
+            } else if (line.startsWith("Output #0") || line.startsWith("Stream mapping")) {
+                inInputBanner = false;
+                inSubstreamBanner = false;
+            } else if (inSubstreamBanner) {
+                StreamCapabilityService.VideoStreamInfo probed = StreamCapabilityService.parseBannerLine(line);
+                if (probed != null) {
+                    inSubstreamBanner = false;
+                    substreamInfo = probed;
+                    if (!probed.isCopyCompatible()) {
+                        // Respawned without the variant; the main stream stays a remux
+                        incompatibleSubstream = true;
+                        process.destroy();
+                    }
+                }
+            } else if (inInputBanner) {
+                StreamCapabilityService.VideoStreamInfo probed = StreamCapabilityService.parseBannerLine(line);
+                if (probed != null) {
+                    inInputBanner = false;
+                    inputInfo = probed;
+                    if (!substreamInput) {
+                        listener.onInputProbed(FFmpegSession.this, probed);
+                    }
+                    if (usingCopy && !probed.isCopyCompatible()) {
+                        // Browsers cannot play it remuxed; switch now rather than serve broken video
+                        incompatibleCopy = true;
+                        process.destroy();
+                    }
+                }
+            }
+            if (line.contains("Error") || line.contains("failed")) {
+                log.warn("[{}] FFmpeg Warning/Error: {}", streamId, line);
+            }
+        }
+
+        @Override
+        public void onExit(int exitCode) {
+            log.info("[{}] FFmpeg process exited with code {}", streamId, exitCode);
+            synchronized (FFmpegSession.this) {
+                if (stopped || generation != processGeneration) {
+                    // Exit was requested; the replacement (if any) has its own handler
+                    return;
+                }
+            }
+            if (!incompatibleCopy && !incompatibleSubstream) {
+                telemetry.recordExit(streamId, exitCode, usingCopy);
+            }
+
+            // A failing second input must not push the main stream into a transcode, but only
+            // a failure the log pins on it drops the variant; anything else is retried as before
+            if (withSubstream && !incompatibleCopy && (incompatibleSubstream || exitCode != 0
+                    && (substreamError || mainInputOpened && !substreamOpened))) {
+                log.warn("[{}] Substream variant {}, continuing with the main stream only", streamId,
+                        incompatibleSubstream ? "is " + substreamInfo.codec() : "failed");
+                substreamVariant = false;
+                advanceStartNumber();
+                startProcess(rtspUrl, true, processGeneration);
+                return;
+            }
+
+            // Any other exit is left for the watchdog to restart with backoff
+            if (usingCopy && (exitCode != 0 || incompatibleCopy)) {
+                log.warn("[{}] Stream copy failed, trying fallback to transcoding...", streamId);
+                if (!startTranscode(incompatibleCopy ? "incompatible_codec" : "copy_failed", processGeneration)) {
+                    listener.onTerminated(FFmpegSession.this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Where FFmpeg writes the stream: an HLS directory on disk, HTTP PUTs to
+     * the in-memory segment store, or fragmented MP4 to the LL-HLS packager.
+     */
+    record Output(Kind kind, String location, long partMillis) {
+        enum Kind {
+            DISK,
+            HTTP,
+            CMAF
+        }
+
+        static Output disk(String directory) {
+            return new Output(Kind.DISK, directory, 0);
+        }
+
+        static Output http(String baseUrl) {
+            return new Output(Kind.HTTP, baseUrl, 0);
+        }
+
+        static Output cmaf(String socketUrl, long partMillis) {
+            return new Output(Kind.CMAF, socketUrl, partMillis);
+        }
+    }
+
+    /**
+     * Tile grid of a composite session: inputs in row-major order.
+     */
+    record Mosaic(List<String> inputUrls, int columns, int tileWidth, int tileHeight, int fps, String bitrate) {
+    }
+
+    /**
+     * Session events of interest to the owning service.
+     */
+    interface Listener {
+        void onInputProbed(FFmpegSession session, StreamCapabilityService.VideoStreamInfo input);
+
+        /**
+         * The session gave up on its own (e.g. no CPU budget left for a
+         * transcode fallback) and should be torn down.
+         */
+        void onTerminated(FFmpegSession session);
+    }
+}
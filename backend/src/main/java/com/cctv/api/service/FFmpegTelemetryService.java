@@ -0,0 +1,143 @@
+package com.cctv.api.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Per-stream FFmpeg telemetry. Each session streams {@code -progress} to a
+ * loopback endpoint whose values are exported as gauges tagged with the
+ * stream ID, next to the time since its last segment. Fallbacks and
+ * unexpected exits are counted so expensive or flapping cameras stand out.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class FFmpegTelemetryService {
+
+    private final LoopbackIngestServer loopback;
+    private final HlsOutputWatcher outputWatcher;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+
+    @Value("${hls.telemetry.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * Opens the stream's progress endpoint and registers its gauges, replacing
+     * those of an earlier registration for the same stream.
+     *
+     * @return the registration, whose progress URL is null if telemetry is off
+     */
+    public Registration register(String streamId) {
+        FFmpegProgress progress = new FFmpegProgress();
+        LoopbackIngestServer.Endpoint endpoint = null;
+        if (enabled) {
+            try {
+                endpoint = loopback.open(streamId + "-progress", progress);
+            } catch (IOException e) {
+                log.warn("[{}] Could not open progress endpoint, running without telemetry: {}", streamId,
+                        e.getMessage());
+            }
+        }
+        Registration registration = new Registration(streamId, progress, endpoint);
+        if (endpoint == null) {
+            return registration;
+        }
+
+        Registration previous = registrations.put(streamId, registration);
+        if (previous != null) {
+            previous.meters.forEach(meterRegistry::remove);
+        }
+        registration.meters.add(gauge("hls.ffmpeg.fps", streamId, progress, FFmpegProgress::getFps, null));
+        registration.meters.add(gauge("hls.ffmpeg.bitrate", streamId, progress,
+                FFmpegProgress::getBitrateKbps, "kilobits/s"));
+        registration.meters.add(gauge("hls.ffmpeg.speed", streamId, progress, FFmpegProgress::getSpeed, null));
+        registration.meters.add(gauge("hls.ffmpeg.frames.dropped", streamId, progress,
+                FFmpegProgress::getDroppedFrames, "frames"));
+        registration.meters.add(gauge("hls.ffmpeg.frames.duplicated", streamId, progress,
+                FFmpegProgress::getDuplicatedFrames, "frames"));
+        registration.meters.add(gauge("hls.stream.segment.lag", streamId, outputWatcher,
+                w -> w.getSegmentLagMillis(streamId) / 1000.0, "seconds"));
+        return registration;
+    }
+
+    /**
+     * Closes the endpoint and removes the gauges, unless a newer registration
+     * for the stream has taken them over.
+     */
+    public void unregister(Registration registration) {
+        if (registration == null) {
+            return;
+        }
+        if (registration.endpoint != null) {
+            registration.endpoint.close();
+        }
+        if (registrations.remove(registration.streamId, registration)) {
+            registration.meters.forEach(meterRegistry::remove);
+        }
+    }
+
+    FFmpegProgress getProgress(String streamId) {
+        Registration registration = registrations.get(streamId);
+        return registration != null ? registration.progress : null;
+    }
+
+    /**
+     * Counts a switch away from stream copy (or a copy that was never tried).
+     *
+     * @param reason why copy was abandoned
+     * @param target "main", "substream" or "rejected" when no transcode fit the budget
+     */
+    public void recordFallback(String streamId, String reason, String target) {
+        meterRegistry.counter("hls.ffmpeg.fallbacks", "stream", streamId, "reason", reason, "target", target)
+                .increment();
+    }
+
+    /**
+     * Counts an FFmpeg exit that was not requested by the service.
+     */
+    public void recordExit(String streamId, int exitCode, boolean copy) {
+        meterRegistry.counter("hls.ffmpeg.exits", "stream", streamId, "code", String.valueOf(exitCode),
+                "mode", copy ? "copy" : "transcode").increment();
+    }
+
+    private <T> Meter gauge(String name, String streamId, T target, ToDoubleFunction<T> value, String unit) {
+        return Gauge.builder(name, target, value)
+                .tag("stream", streamId)
+                .baseUnit(unit)
+                .strongReference(true)
+                .register(meterRegistry);
+    }
+
+    public static final class Registration {
+        private final String streamId;
+        private final FFmpegProgress progress;
+        private final LoopbackIngestServer.Endpoint endpoint;
+        private final List<Meter> meters = new ArrayList<>();
+
+        private Registration(String streamId, FFmpegProgress progress, LoopbackIngestServer.Endpoint endpoint) {
+            this.streamId = streamId;
+            this.progress = progress;
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * Value for FFmpeg's {@code -progress} option, or null.
+         */
+        public String getProgressUrl() {
+            return endpoint != null ? endpoint.getTcpUrl() : null;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.cctv.api.service;
+
+import com.cctv.api.constant.AppConstants;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks when each stream's HLS output becomes playable. Disk output is observed
+ * through a single {@link WatchService} thread; the in-memory store reports
+ * writes directly. Waiters get a per-stream future instead of polling. The
+ * time of each stream's latest segment is kept for production-lag metrics,
+ * and every playlist rewrite bumps the stream's playlist version.
+ */
+@Slf4j
+@Service
+public class HlsOutputWatcher {
+
+    private final Map<String, CompletableFuture<Void>> playlistReady = new ConcurrentHashMap<>();
+    private final Map<WatchKey, String> watchedStreams = new ConcurrentHashMap<>();
+    private final Map<String, WatchKey> streamKeys = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastSegmentAt = new ConcurrentHashMap<>();
+    private final Map<String, Long> playlistVersions = new ConcurrentHashMap<>();
+    private final AtomicLong playlistVersionSequence = new AtomicLong();
+
+    private WatchService watchService;
+    private Thread watchThread;
+
+    @PostConstruct
+    void init() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        watchThread = new Thread(this::processEvents, "hls-output-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    @PreDestroy
+    void shutdown() throws IOException {
+        watchService.close();
+        playlistReady.values().forEach(f -> f.cancel(false));
+    }
+
+    /**
+     * Resets readiness for a (re)starting stream and, for disk output, starts
+     * watching its directory.
+     */
+    public void watch(String streamId, Path streamDir) {
+        playlistReady.put(streamId, new CompletableFuture<>());
+        lastSegmentAt.put(streamId, System.currentTimeMillis());
+        if (streamDir == null) {
+            return;
+        }
+        try {
+            WatchKey key = streamDir.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedStreams.put(key, streamId);
+            WatchKey previous = streamKeys.put(streamId, key);
+            if (previous != null && previous != key) {
+                previous.cancel();
+                watchedStreams.remove(previous);
+            }
+            // The playlist may have landed before the key was registered
+            if (Files.exists(streamDir.resolve(AppConstants.HLS_PLAYLIST_NAME))) {
+                onPlaylistWritten(streamId);
+            }
+        } catch (IOException e) {
+            log.warn("[{}] Could not watch HLS directory {}: {}", streamId, streamDir, e.getMessage());
+        }
+    }
+
+    public void unwatch(String streamId) {
+        WatchKey key = streamKeys.remove(streamId);
+        if (key != null) {
+            key.cancel();
+            watchedStreams.remove(key);
+        }
+        CompletableFuture<Void> ready = playlistReady.remove(streamId);
+        if (ready != null) {
+            ready.cancel(false);
+        }
+        lastSegmentAt.remove(streamId);
+        playlistVersions.remove(streamId);
+    }
+
+    /**
+     * Future completed once the stream's playlist exists. Callers must not
+     * complete or time out the returned instance; use {@link CompletableFuture#copy()}.
+     */
+    public CompletableFuture<Void> awaitPlaylist(String streamId) {
+        return playlistReady.computeIfAbsent(streamId, id -> new CompletableFuture<>());
+    }
+
+    public void onPlaylistWritten(String streamId) {
+        CompletableFuture<Void> ready = playlistReady.get(streamId);
+        if (ready == null) {
+            return;
+        }
+        playlistVersions.put(streamId, playlistVersionSequence.incrementAndGet());
+        if (ready.complete(null)) {
+            log.debug("[{}] Playlist ready", streamId);
+        }
+    }
+
+    /**
+     * A rewrite of a playlist other than the main one (the substream variant).
+     * It does not make the stream playable, but changes the playlist version.
+     */
+    public void onVariantPlaylistWritten(String streamId) {
+        if (playlistReady.containsKey(streamId)) {
+            playlistVersions.put(streamId, playlistVersionSequence.incrementAndGet());
+        }
+    }
+
+    /**
+     * Version of the stream's current playlists, unique within this process and
+     * changed by every rewrite of any of them, or 0 before the first one.
+     */
+    public long getPlaylistVersion(String streamId) {
+        return playlistVersions.getOrDefault(streamId, 0L);
+    }
+
+    public void onSegmentWritten(String streamId) {
+        lastSegmentAt.computeIfPresent(streamId, (id, previous) -> System.currentTimeMillis());
+    }
+
+    /**
+     * Restarts the lag clock of a stream whose FFmpeg process was replaced.
+     */
+    public void resetSegmentLag(String streamId) {
+        onSegmentWritten(streamId);
+    }
+
+    /**
+     * Milliseconds since the stream last produced a segment (or since it was
+     * (re)started, before the first one), or -1 if it is not watched.
+     */
+    public long getSegmentLagMillis(String streamId) {
+        Long last = lastSegmentAt.get(streamId);
+        return last != null ? System.currentTimeMillis() - last : -1;
+    }
+
+    /**
+     * Whether a segment file belongs to the main stream; substream variant
+     * segments must not hide a stalled main stream from the watchdog.
+     */
+    public static boolean isMainSegment(String name) {
+        return name.startsWith("seg_") && name.endsWith(".ts");
+    }
+
+    /**
+     * The kernel dropped events for the directory, so either playlist may have
+     * been rewritten unseen. Bumps the version so cached copies are reloaded.
+     */
+    private void onEventsLost(String streamId, Path streamDir) {
+        log.debug("[{}] Watch events overflowed, invalidating playlists", streamId);
+        if (Files.exists(streamDir.resolve(AppConstants.HLS_PLAYLIST_NAME))) {
+            onPlaylistWritten(streamId);
+        } else {
+            onVariantPlaylistWritten(streamId);
+        }
+    }
+
+    private void processEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            String streamId = watchedStreams.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (streamId == null) {
+                    continue;
+                }
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    onEventsLost(streamId, (Path) key.watchable());
+                    continue;
+                }
+                String name = event.context().toString();
+                if (AppConstants.HLS_PLAYLIST_NAME.equals(name)) {
+                    onPlaylistWritten(streamId);
+                } else if (AppConstants.HLS_SUBSTREAM_PLAYLIST_NAME.equals(name)) {
+                    onVariantPlaylistWritten(streamId);
+                } else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && isMainSegment(name)) {
+                    onSegmentWritten(streamId);
+                }
+            }
+            if (!key.reset()) {
+                watchedStreams.remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.cctv.api.service;
+
+import com.cctv.api.constant.AppConstants;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-stream cache of the current playlist bytes. An entry stays valid until
+ * {@link HlsOutputWatcher} reports a rewrite (file change notification on
+ * disk, the segment store's PUT in memory mode), so viewers polling a
+ * playlist cost one read per rewrite rather than one per request.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class HlsPlaylistCache {
+
+    private final HlsOutputWatcher outputWatcher;
+    private final HlsSegmentStore segmentStore;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, CachedPlaylist> playlists = new ConcurrentHashMap<>();
+    // Keeps ETags from one run from matching those of the next
+    private final String bootId = Long.toString(System.currentTimeMillis(), 36);
+
+    @Value("${hls.root.dir}")
+    private String hlsRootDir;
+
+    private Counter hits;
+    private Counter misses;
+
+    @PostConstruct
+    void init() {
+        hits = meterRegistry.counter("hls.playlist.cache", "result", "hit");
+        misses = meterRegistry.counter("hls.playlist.cache", "result", "miss");
+    }
+
+    /**
+     * Current media playlist of the given name, or null if none has been written.
+     */
+    public CachedPlaylist get(String streamId, String name) {
+        long version = outputWatcher.getPlaylistVersion(streamId);
+        String key = streamId + "/" + name;
+        CachedPlaylist cached = playlists.get(key);
+        if (cached != null && cached.version == version) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+
+        // Read after taking the version: a rewrite in between only makes the
+        // content newer than its label, and the next request reloads it
+        byte[] data = load(streamId, name);
+        if (data == null) {
+            return null;
+        }
+        CachedPlaylist loaded = new CachedPlaylist(data,
+                "\"" + streamId + "-" + name.hashCode() + "-" + bootId + "-" + version + "\"", version);
+        playlists.put(key, loaded);
+        return loaded;
+    }
+
+    public void evict(String streamId) {
+        playlists.remove(streamId + "/" + AppConstants.HLS_PLAYLIST_NAME);
+        playlists.remove(streamId + "/" + AppConstants.HLS_SUBSTREAM_PLAYLIST_NAME);
+    }
+
+    private byte[] load(String streamId, String name) {
+        if (segmentStore.isEnabled()) {
+            return segmentStore.getPlaylist(streamId, name);
+        }
+        try {
+            return Files.readAllBytes(Paths.get(hlsRootDir, streamId, name));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            log.error("[{}] Could not read playlist: {}", streamId, e.getMessage());
+            return null;
+        }
+    }
+
+    public record CachedPlaylist(byte[] data, String eTag, long version) {
+    }
+}
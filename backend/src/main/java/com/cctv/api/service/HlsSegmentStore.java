@@ -0,0 +1,486 @@
+package com.cctv.api.service;
+
+import com.cctv.api.constant.AppConstants;
+import com.cctv.api.exception.StreamCapacityException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RAM-only HLS output store. FFmpeg PUTs playlists and segments to the local
+ * ingest endpoint, and the last N segments of each stream are kept in a
+ * per-stream ring of pooled direct buffers so viewers are served without
+ * touching the filesystem. An upload that cannot fit under
+ * hls.memory.max.bytes, even after evicting every segment no viewer is
+ * reading, is refused with 503 rather than allocated past the cap.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class HlsSegmentStore {
+
+    private static final int BUFFER_GRANULARITY = 256 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 64;
+    // FFmpeg simply uploads the next segment; this only informs other clients
+    private static final long FULL_RETRY_AFTER_SECONDS = 1;
+
+    private final MeterRegistry meterRegistry;
+    private final HlsOutputWatcher outputWatcher;
+
+    private final Map<String, StreamRing> streams = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedDeque<ByteBuffer> bufferPool = new ConcurrentLinkedDeque<>();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    @Value("${hls.segment.store:disk}")
+    private String storeMode;
+
+    @Value("${hls.memory.segments.per.stream:8}")
+    private int segmentsPerStream;
+
+    @Value("${hls.memory.max.bytes:536870912}")
+    private long maxBytes;
+
+    @Value("${hls.memory.ingest.url:http://127.0.0.1:8080/internal/hls}")
+    private String ingestUrl;
+
+    private Counter windowEvictions;
+    private Counter capacityEvictions;
+    private Counter deleteEvictions;
+    private Counter poolHits;
+    private Counter poolMisses;
+    private Counter rejections;
+
+    @PostConstruct
+    void registerMetrics() {
+        windowEvictions = meterRegistry.counter("hls.memory.evictions", "reason", "window");
+        capacityEvictions = meterRegistry.counter("hls.memory.evictions", "reason", "capacity");
+        deleteEvictions = meterRegistry.counter("hls.memory.evictions", "reason", "deleted");
+        poolHits = meterRegistry.counter("hls.memory.pool", "result", "hit");
+        poolMisses = meterRegistry.counter("hls.memory.pool", "result", "miss");
+        rejections = meterRegistry.counter("hls.memory.rejections");
+        Gauge.builder("hls.memory.allocated.bytes", allocatedBytes, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("hls.memory.pooled.bytes", pooledBytes, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("hls.memory.segments", this, HlsSegmentStore::segmentCount).register(meterRegistry);
+        if (isEnabled()) {
+            log.info("In-memory HLS segment store enabled: {} segments/stream, cap {} MB",
+                    segmentsPerStream, maxBytes / (1024 * 1024));
+        }
+    }
+
+    public boolean isEnabled() {
+        return "memory".equalsIgnoreCase(storeMode);
+    }
+
+    /**
+     * Base URL FFmpeg should PUT a stream's output to.
+     */
+    public String getIngestBaseUrl(String streamId) {
+        return (ingestUrl.endsWith("/") ? ingestUrl : ingestUrl + "/") + streamId;
+    }
+
+    /**
+     * Accepts uploads for the stream until {@link #removeStream}. Uploads for
+     * streams not opened here, e.g. from an FFmpeg that outlived its session,
+     * are refused.
+     */
+    public void openStream(String streamId) {
+        streams.putIfAbsent(streamId, new StreamRing());
+    }
+
+    /**
+     * @return false if the stream is not open
+     */
+    public boolean putPlaylist(String streamId, String name, byte[] body) {
+        StreamRing ring = streams.get(streamId);
+        if (ring == null) {
+            return false;
+        }
+        ring.playlists.put(name, body);
+        if (AppConstants.HLS_PLAYLIST_NAME.equals(name)) {
+            outputWatcher.onPlaylistWritten(streamId);
+        } else {
+            outputWatcher.onVariantPlaylistWritten(streamId);
+        }
+        return true;
+    }
+
+    public byte[] getPlaylist(String streamId, String name) {
+        StreamRing ring = streams.get(streamId);
+        return ring != null ? ring.playlists.get(name) : null;
+    }
+
+    /**
+     * Reads a segment body straight into a pooled direct buffer and appends it
+     * to the stream's ring, evicting the oldest entries past the window or
+     * memory cap.
+     *
+     * @return false if the stream is not open
+     * @throws StreamCapacityException if the memory cap cannot be met
+     */
+    public boolean putSegment(String streamId, String name, InputStream body, long contentLength)
+            throws IOException {
+        StreamRing ring = streams.get(streamId);
+        if (ring == null) {
+            return false;
+        }
+        int expected = contentLength > 0 ? (int) contentLength : Math.max(ring.lastSegmentSize, BUFFER_GRANULARITY);
+        ByteBuffer buffer = acquireBuffer(expected);
+        try {
+            ReadableByteChannel in = Channels.newChannel(body);
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    ByteBuffer larger = acquireBuffer(buffer.capacity() * 2);
+                    buffer.flip();
+                    larger.put(buffer);
+                    releaseBuffer(buffer);
+                    buffer = larger;
+                }
+                if (in.read(buffer) == -1) {
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            releaseBuffer(buffer);
+            throw e;
+        }
+        buffer.flip();
+
+        StoredSegment segment = new StoredSegment(name, buffer);
+        synchronized (ring) {
+            if (streams.get(streamId) != ring) {
+                // Removed while the body was being read
+                segment.release();
+                return false;
+            }
+            ring.lastSegmentSize = buffer.limit();
+            ring.segments.removeIf(existing -> {
+                if (existing.name.equals(name)) {
+                    existing.release();
+                    return true;
+                }
+                return false;
+            });
+            ring.segments.addLast(segment);
+            // The window applies per variant
+            while (ring.segments.size() > segmentsPerStream * Math.max(1, ring.playlists.size())) {
+                ring.segments.pollFirst().release();
+                windowEvictions.increment();
+            }
+        }
+        enforceCapacity(0);
+        if (HlsOutputWatcher.isMainSegment(name)) {
+            outputWatcher.onSegmentWritten(streamId);
+        }
+        log.trace("[{}] Stored segment {} ({} bytes)", streamId, name, buffer.limit());
+        return true;
+    }
+
+    public void deleteSegment(String streamId, String name) {
+        StreamRing ring = streams.get(streamId);
+        if (ring == null) {
+            return;
+        }
+        synchronized (ring) {
+            Iterator<StoredSegment> it = ring.segments.iterator();
+            while (it.hasNext()) {
+                StoredSegment segment = it.next();
+                if (segment.name.equals(name)) {
+                    it.remove();
+                    segment.release();
+                    deleteEvictions.increment();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a resource over the stored segment, or null when it is not (or no
+     * longer) in memory. The backing buffer is pinned while an input stream
+     * opened from the resource is still open.
+     */
+    public SegmentResource openSegment(String streamId, String name) {
+        StreamRing ring = streams.get(streamId);
+        if (ring == null) {
+            return null;
+        }
+        synchronized (ring) {
+            for (StoredSegment segment : ring.segments) {
+                if (segment.name.equals(name)) {
+                    return new SegmentResource(segment);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Like {@link #openSegment}, for the newest main-stream segment.
+     */
+    public SegmentResource openLatestSegment(String streamId) {
+        StreamRing ring = streams.get(streamId);
+        if (ring == null) {
+            return null;
+        }
+        synchronized (ring) {
+            Iterator<StoredSegment> it = ring.segments.descendingIterator();
+            while (it.hasNext()) {
+                StoredSegment segment = it.next();
+                if (HlsOutputWatcher.isMainSegment(segment.name)) {
+                    return new SegmentResource(segment);
+                }
+            }
+        }
+        return null;
+    }
+
+    public void removeStream(String streamId) {
+        StreamRing ring = streams.remove(streamId);
+        if (ring != null) {
+            synchronized (ring) {
+                ring.segments.forEach(StoredSegment::release);
+                ring.segments.clear();
+            }
+            log.debug("[{}] Released in-memory HLS output", streamId);
+        }
+    }
+
+    private int segmentCount() {
+        int count = 0;
+        for (StreamRing ring : streams.values()) {
+            count += ring.segments.size();
+        }
+        return count;
+    }
+
+    /**
+     * A pooled buffer of at least {@code minCapacity}, else a new one once the
+     * pool and then the oldest segments have made room for it under the cap.
+     *
+     * @throws StreamCapacityException if that room cannot be made
+     */
+    private ByteBuffer acquireBuffer(int minCapacity) {
+        ByteBuffer pooled = pollPool(minCapacity);
+        if (pooled != null) {
+            return pooled;
+        }
+        poolMisses.increment();
+        int capacity = ((minCapacity + BUFFER_GRANULARITY - 1) / BUFFER_GRANULARITY) * BUFFER_GRANULARITY;
+        if (allocatedBytes.get() + capacity > maxBytes) {
+            trimPool(allocatedBytes.get() + capacity - maxBytes);
+        }
+        if (allocatedBytes.get() + capacity > maxBytes) {
+            enforceCapacity(capacity);
+            // An evicted segment's buffer may be large enough
+            pooled = pollPool(minCapacity);
+            if (pooled != null) {
+                return pooled;
+            }
+            trimPool(allocatedBytes.get() + capacity - maxBytes);
+            if (allocatedBytes.get() + capacity > maxBytes) {
+                // What is left is pinned by viewers still reading it
+                rejections.increment();
+                throw new StreamCapacityException("In-memory HLS segment store is full",
+                        FULL_RETRY_AFTER_SECONDS);
+            }
+        }
+        allocatedBytes.addAndGet(capacity);
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    private ByteBuffer pollPool(int minCapacity) {
+        Iterator<ByteBuffer> it = bufferPool.iterator();
+        while (it.hasNext()) {
+            ByteBuffer pooled = it.next();
+            if (pooled.capacity() >= minCapacity && bufferPool.removeFirstOccurrence(pooled)) {
+                pooledBytes.addAndGet(-pooled.capacity());
+                poolHits.increment();
+                pooled.clear();
+                return pooled;
+            }
+        }
+        return null;
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        if (bufferPool.size() < MAX_POOLED_BUFFERS && allocatedBytes.get() <= maxBytes) {
+            pooledBytes.addAndGet(buffer.capacity());
+            bufferPool.addLast(buffer);
+        } else {
+            // Dropped buffers are reclaimed by the GC's cleaner
+            allocatedBytes.addAndGet(-buffer.capacity());
+        }
+    }
+
+    private void trimPool(long needed) {
+        long freed = 0;
+        ByteBuffer pooled;
+        while (freed < needed && (pooled = bufferPool.pollFirst()) != null) {
+            pooledBytes.addAndGet(-pooled.capacity());
+            allocatedBytes.addAndGet(-pooled.capacity());
+            freed += pooled.capacity();
+        }
+    }
+
+    /**
+     * Evicts the oldest segments across all streams until the buffers in use
+     * plus {@code extra} fit the cap, or nothing is left to evict.
+     */
+    private void enforceCapacity(long extra) {
+        while (allocatedBytes.get() - pooledBytes.get() + extra > maxBytes) {
+            StreamRing victim = null;
+            long oldest = Long.MAX_VALUE;
+            for (StreamRing ring : streams.values()) {
+                StoredSegment head;
+                synchronized (ring) {
+                    head = ring.segments.peekFirst();
+                }
+                if (head != null && head.createdAt < oldest) {
+                    oldest = head.createdAt;
+                    victim = ring;
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            synchronized (victim) {
+                StoredSegment evicted = victim.segments.pollFirst();
+                if (evicted != null) {
+                    evicted.release();
+                    capacityEvictions.increment();
+                }
+            }
+        }
+    }
+
+    private static final class StreamRing {
+        private final ArrayDeque<StoredSegment> segments = new ArrayDeque<>();
+        // Main playlist and, with variants enabled, the substream's
+        private final Map<String, byte[]> playlists = new ConcurrentHashMap<>();
+        private int lastSegmentSize;
+    }
+
+    private final class StoredSegment {
+        private final String name;
+        private final ByteBuffer data;
+        private final long createdAt = System.currentTimeMillis();
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        private StoredSegment(String name, ByteBuffer data) {
+            this.name = name;
+            this.data = data;
+        }
+
+        private boolean retain() {
+            int current;
+            do {
+                current = refs.get();
+                if (current == 0) {
+                    return false;
+                }
+            } while (!refs.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        private void release() {
+            if (refs.decrementAndGet() == 0) {
+                releaseBuffer(data);
+            }
+        }
+    }
+
+    /**
+     * Read-only view of a stored segment for the HTTP layer.
+     */
+    public final class SegmentResource extends AbstractResource {
+        private final StoredSegment segment;
+        // Taken while the segment is still stored; the buffer is reused once released
+        private final long length;
+
+        private SegmentResource(StoredSegment segment) {
+            this.segment = segment;
+            this.length = segment.data.limit();
+        }
+
+        @Override
+        public String getDescription() {
+            return "In-memory HLS segment [" + segment.name + "]";
+        }
+
+        @Override
+        public String getFilename() {
+            return segment.name;
+        }
+
+        @Override
+        public long contentLength() {
+            return length;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (!segment.retain()) {
+                throw new IOException("Segment evicted: " + segment.name);
+            }
+            return new ByteBufferInputStream(segment.data.asReadOnlyBuffer(), segment);
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+        private StoredSegment owner;
+
+        private ByteBufferInputStream(ByteBuffer buffer, StoredSegment owner) {
+            this.buffer = buffer;
+            this.owner = owner;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public void close() {
+            if (owner != null) {
+                owner.release();
+                owner = null;
+            }
+        }
+    }
+}
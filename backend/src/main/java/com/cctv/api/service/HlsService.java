@@ -1,105 +1,491 @@
 package com.cctv.api.service;
 
+import com.cctv.api.constant.AppConstants;
+import com.cctv.api.exception.StreamCapacityException;
 import com.cctv.api.model.NVR;
+import com.cctv.api.model.StreamPriority;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
-import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class HlsService {
 
+    public static final String MOSAIC_PREFIX = "mosaic_";
+
+    // Synthetic viewer holding a pre-warmed session until operators arrive
+    private static final String PREWARM_VIEWER = "prewarm";
+
     private final NvrService nvrService;
+    private final HlsSegmentStore segmentStore;
+    private final HlsStorageManager storage;
+    private final HlsOutputWatcher outputWatcher;
+    private final ViewerLeaseTracker viewerLeases;
+    private final StreamAdmissionService admission;
+    private final StreamCostBudget costBudget;
+    private final StreamCapabilityService capabilities;
+    private final RtspSessionLimiter rtspLimiter;
+    private final FFmpegTelemetryService telemetry;
+    private final StreamRestartPolicy restartPolicy;
+    private final FFmpegProcessSupervisor supervisor;
+    private final HlsPlaylistCache playlistCache;
+    private final LowLatencyHlsService lowLatency;
     private final Map<String, FFmpegSession> activeSessions = new ConcurrentHashMap<>();
 
     @org.springframework.beans.factory.annotation.Value("${hls.root.dir}")
     private String hlsRootDir;
 
-    @org.springframework.beans.factory.annotation.Value("${hls.max.concurrent.streams:50}")
-    private int maxConcurrentStreams;
+    @org.springframework.beans.factory.annotation.Value("${hls.playlist.wait.seconds:8}")
+    private long playlistWaitSeconds;
+
+    @org.springframework.beans.factory.annotation.Value("${hls.shutdown.timeout.seconds:10}")
+    private long shutdownTimeoutSeconds;
+
+    @org.springframework.beans.factory.annotation.Value("${hls.start.threads:16}")
+    private int startThreads;
+
+    // Admission and launch of new sessions, off the request threads
+    private ThreadPoolExecutor starter;
+    // Stops waiting for FFmpeg to exit, off the lease expiry and supervisor threads
+    private ExecutorService stopper;
+
+    @org.springframework.beans.factory.annotation.Value("${hls.abr.enabled:false}")
+    private boolean variantsEnabled;
+
+    @org.springframework.beans.factory.annotation.Value("${hls.abr.main.bandwidth:4000000}")
+    private long mainBandwidth;
+
+    @org.springframework.beans.factory.annotation.Value("${hls.abr.sub.bandwidth:600000}")
+    private long substreamBandwidth;
+
+    @org.springframework.beans.factory.annotation.Value("${hls.mosaic.enabled:false}")
+    private boolean mosaicEnabled;
+
+    @org.springframework.beans.factory.annotation.Value("${hls.mosaic.max.tiles:36}")
+    private int mosaicMaxTiles;
+
+    @org.springframework.beans.factory.annotation.Value("${hls.mosaic.width:1920}")
+    private int mosaicWidth;
+
+    @org.springframework.beans.factory.annotation.Value("${hls.mosaic.height:1080}")
+    private int mosaicHeight;
 
-    @org.springframework.beans.factory.annotation.Value("${hls.idle.timeout.seconds:60}")
-    private long idleTimeoutSeconds;
+    @org.springframework.beans.factory.annotation.Value("${hls.mosaic.fps:10}")
+    private int mosaicFps;
+
+    @org.springframework.beans.factory.annotation.Value("${hls.mosaic.bitrate:4M}")
+    private String mosaicBitrate;
+
+    // Camera groups by mosaic stream ID, registered when a client asks for a mosaic
+    private final Cache<String, List<MosaicTile>> mosaics = Caffeine.newBuilder()
+            .expireAfterAccess(1, TimeUnit.DAYS)
+            .maximumSize(256)
+            .build();
 
     public Path getHlsPlaylistPath(String nvrId, int channelId) {
         return Paths.get(hlsRootDir, getStreamId(nvrId, channelId), "index.m3u8");
     }
 
+    /**
+     * Whether viewers should be given the master playlist rather than the
+     * main-stream playlist.
+     */
+    public boolean isVariantsEnabled() {
+        return variantsEnabled && !lowLatency.isEnabled();
+    }
+
+    /**
+     * Master playlist of a running stream: the substream variant (listed first,
+     * so players without a bandwidth estimate start on it) while the session
+     * publishes it, then the main stream. Null if the stream is not running.
+     */
+    public byte[] getMasterPlaylist(String nvrId, int channelId) {
+        FFmpegSession session = activeSessions.get(getStreamId(nvrId, channelId));
+        if (session == null) {
+            return null;
+        }
+        StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-INDEPENDENT-SEGMENTS\n");
+        if (session.isMultiVariant()) {
+            appendVariant(playlist, substreamBandwidth, session.getSubstreamInfo(),
+                    AppConstants.HLS_SUBSTREAM_PLAYLIST_NAME);
+        }
+        appendVariant(playlist, mainBandwidth, session.getInputInfo(), AppConstants.HLS_PLAYLIST_NAME);
+        return playlist.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void appendVariant(StringBuilder playlist, long bandwidth,
+            StreamCapabilityService.VideoStreamInfo info, String uri) {
+        playlist.append("#EXT-X-STREAM-INF:BANDWIDTH=").append(bandwidth);
+        if (info != null && info.width() > 0 && info.height() > 0) {
+            playlist.append(",RESOLUTION=").append(info.width()).append('x').append(info.height());
+        }
+        playlist.append('\n').append(uri).append('\n');
+    }
+
+    /**
+     * Completes once the stream's playlist is available, or exceptionally with a
+     * TimeoutException after hls.playlist.wait.seconds.
+     */
+    public CompletableFuture<Void> awaitPlaylist(String nvrId, int channelId) {
+        return awaitPlaylist(getStreamId(nvrId, channelId));
+    }
+
+    private CompletableFuture<Void> awaitPlaylist(String streamId) {
+        return outputWatcher.awaitPlaylist(streamId)
+                .copy()
+                .orTimeout(playlistWaitSeconds, TimeUnit.SECONDS);
+    }
+
+    @PostConstruct
+    void init() {
+        viewerLeases.onStreamIdle(this::onStreamIdle);
+        AtomicInteger threads = new AtomicInteger();
+        starter = new ThreadPoolExecutor(startThreads, startThreads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "hls-start-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        starter.allowCoreThreadTimeOut(true);
+        AtomicInteger stopThreads = new AtomicInteger();
+        stopper = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "hls-stop-" + stopThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
     public void startStreamIfNotActive(String nvrId, int channelId) {
-        String streamId = getStreamId(nvrId, channelId);
-        if (activeSessions.containsKey(streamId)) {
-            activeSessions.get(streamId).updateLastAccessed();
+        startStreamIfNotActive(nvrId, channelId, StreamPriority.NORMAL);
+    }
+
+    /**
+     * Blocking {@link #startStream}, for callers that are not serving a
+     * request.
+     *
+     * @throws StreamCapacityException if the stream could not be admitted
+     */
+    public void startStreamIfNotActive(String nvrId, int channelId, StreamPriority priority) {
+        try {
+            startStream(nvrId, channelId, priority).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Starts the stream unless it is already running. Concurrent callers for the
+     * same stream are coalesced: one of them goes through admission and launches
+     * FFmpeg, the rest share its startup future. Admission, which may wait for
+     * a slot, and the launch run on the hls-start pool rather than the caller's
+     * thread.
+     *
+     * @return completes once the stream runs, or with the
+     *         {@link StreamCapacityException} if it could not be admitted
+     */
+    public CompletableFuture<Void> startStream(String nvrId, int channelId, StreamPriority priority) {
+        return startIfNotActive(getStreamId(nvrId, channelId), priority, new SessionListener(nvrId, channelId),
+                session -> launchSession(session, nvrId, channelId));
+    }
+
+    CompletableFuture<Void> startIfNotActive(String streamId, StreamPriority priority,
+            FFmpegSession.Listener listener, Consumer<FFmpegSession> launcher) {
+        FFmpegSession candidate = new FFmpegSession(streamId, priority, costBudget, telemetry,
+                supervisor, listener);
+        FFmpegSession existing = activeSessions.putIfAbsent(streamId, candidate);
+        if (existing != null) {
+            existing.updateLastAccessed();
+            existing.raisePriority(priority);
             log.debug("[{}] Stream already active, updated last accessed time", streamId);
-            return;
+            return existing.getStartup();
         }
 
-        // Check resource limits
-        if (activeSessions.size() >= maxConcurrentStreams) {
-            log.warn("[{}] Maximum concurrent streams ({}) reached. Cannot start new stream.",
-                    streamId, maxConcurrentStreams);
-            throw new RuntimeException("Maximum concurrent streams limit reached: " + maxConcurrentStreams);
+        try {
+            starter.execute(new LaunchTask(candidate, launcher));
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            activeSessions.remove(streamId, candidate);
+            candidate.failStartup(shuttingDown());
         }
+        return candidate.getStartup();
+    }
 
-        log.info("[{}] Starting new stream (Active: {}/{})", streamId, activeSessions.size(), maxConcurrentStreams);
+    private StreamCapacityException shuttingDown() {
+        return new StreamCapacityException("Server is shutting down", admission.getRetryAfterSeconds());
+    }
+
+    private void launch(FFmpegSession candidate, Consumer<FFmpegSession> launcher) {
+        String streamId = candidate.getStreamId();
+        try {
+            restartPolicy.checkStartAllowed(streamId);
+            admission.admit(streamId, candidate.getPriority(), snapshotRunningSessions(), this::preemptSession);
+        } catch (RuntimeException e) {
+            activeSessions.remove(streamId, candidate);
+            candidate.failStartup(e);
+            return;
+        }
 
-        Path streamDir = Paths.get(hlsRootDir, streamId);
         try {
-            if (Files.exists(streamDir)) {
-                // Delete existing contents
-                Files.walk(streamDir)
-                        .map(Path::toFile)
-                        .sorted((o1, o2) -> -o1.compareTo(o2))
-                        .forEach(File::delete);
+            launcher.accept(candidate);
+            candidate.completeStartup();
+        } catch (RuntimeException e) {
+            if (activeSessions.remove(streamId, candidate)) {
+                // Undoes the launcher's output, budget and pull reservations along with the slot
+                candidate.stop();
+                releaseSession(streamId);
+            }
+            if (!(e instanceof StreamCapacityException)) {
+                log.error("[{}] Failed to start stream", streamId, e);
             }
-            Files.createDirectories(streamDir);
-        } catch (IOException e) {
-            log.error("Failed to create HLS directory: {}", streamDir, e);
-            throw new RuntimeException("Could not initialize streaming directory", e);
+            candidate.failStartup(e);
+        }
+    }
+
+    /**
+     * Starts the stream at low priority ahead of expected viewers and holds it
+     * with a synthetic lease for {@code holdMs}. Viewers who arrive raise the
+     * priority; if none do, the lease lapses and the session stops as usual.
+     *
+     * @throws StreamCapacityException if the stream could not be admitted
+     */
+    public void prewarmStream(String nvrId, int channelId, long holdMs) {
+        startStreamIfNotActive(nvrId, channelId, StreamPriority.LOW);
+        viewerLeases.touch(getStreamId(nvrId, channelId), PREWARM_VIEWER, holdMs);
+    }
+
+    private List<StreamAdmissionService.SessionSnapshot> snapshotRunningSessions() {
+        List<StreamAdmissionService.SessionSnapshot> running = new ArrayList<>();
+        activeSessions.forEach((streamId, session) -> {
+            if (session.isStarted()) {
+                running.add(new StreamAdmissionService.SessionSnapshot(streamId, session.getPriority(),
+                        viewerLeases.getViewerCount(streamId), session.getLastAccessed()));
+            }
+        });
+        return running;
+    }
+
+    /**
+     * Stops the session for a request that outranks it; its admission slot is
+     * kept for that request.
+     */
+    private boolean preemptSession(String streamId) {
+        FFmpegSession session = activeSessions.get(streamId);
+        if (session == null || !activeSessions.remove(streamId, session)) {
+            return false;
+        }
+        session.stop();
+        releaseResources(streamId);
+        return true;
+    }
+
+    private void launchSession(FFmpegSession session, String nvrId, int channelId) {
+        String streamId = session.getStreamId();
+        log.info("[{}] Starting new stream (Active: {}/{})", streamId, activeSessions.size(),
+                admission.getMaxStreams());
+
+        FFmpegSession.Output output = prepareOutput(streamId, lowLatency.isEnabled());
+
+        if (!costBudget.tryReserve(streamId, costBudget.costOf(false, false))) {
+            throw new StreamCapacityException("CPU budget exhausted", admission.getRetryAfterSeconds());
         }
 
         NVR nvr = nvrService.getNvrById(nvrId);
-        String rtspUrl = nvrService.generateStreamUrl(nvr, channelId);
+        String mainRestream = rtspLimiter.getRestreamUrl(nvrId, channelId, false);
+        String subRestream = rtspLimiter.getRestreamUrl(nvrId, channelId, true);
+        String nvrSubstreamUrl = nvrService.generateStreamUrl(nvr, channelId, true);
+        String rtspUrl = mainRestream != null ? mainRestream : nvrService.generateStreamUrl(nvr, channelId);
+        String substreamUrl = subRestream != null ? subRestream : nvrSubstreamUrl;
+        boolean variants = isVariantsEnabled();
+        StreamCapabilityService.VideoStreamInfo knownInput = capabilities.get(nvrId, channelId).orElse(null);
+
+        // Pulls from the NVR itself; paths MediaMTX already pulls are read from its re-stream
+        String mainPath = RtspSessionLimiter.pathName(nvrId, channelId, false);
+        String subPath = RtspSessionLimiter.pathName(nvrId, channelId, true);
+        List<String> mainPulls = mainRestream != null ? List.of() : List.of(mainPath);
+        List<String> pulls = new ArrayList<>(mainPulls);
+        if (variants && subRestream == null) {
+            pulls.add(subPath);
+        }
+        StreamPriority priority = session.getPriority();
+        if (!rtspLimiter.tryAcquire(streamId, pulls, priority)) {
+            variants = false;
+            if (pulls.size() > mainPulls.size() && rtspLimiter.tryAcquire(streamId, mainPulls, priority)) {
+                log.info("[{}] No RTSP session or site bandwidth left for the substream variant", streamId);
+            } else if (subRestream != null) {
+                log.info("[{}] No RTSP session or site bandwidth left for the main stream, "
+                        + "starting from the re-streamed substream", streamId);
+                rtspUrl = subRestream;
+                knownInput = null;
+            } else if (rtspLimiter.tryAcquire(streamId, List.of(subPath), priority)) {
+                log.info("[{}] No RTSP session or site bandwidth left for the main stream, "
+                        + "starting from the substream", streamId);
+                rtspUrl = nvrSubstreamUrl;
+                substreamUrl = nvrSubstreamUrl;
+                knownInput = null;
+            } else {
+                rtspLimiter.acquire(streamId, mainPulls, priority);
+            }
+        }
+        if (mainRestream != null && rtspUrl.equals(mainRestream)) {
+            log.info("[{}] Reading the main stream from the MediaMTX re-stream", streamId);
+        }
 
-        FFmpegSession session = new FFmpegSession(streamId, rtspUrl, streamDir.toString());
-        activeSessions.put(streamId, session);
-        session.start();
+        if (!session.start(rtspUrl, substreamUrl, output, knownInput, variants)) {
+            throw new StreamCapacityException("CPU budget exhausted for transcoding", admission.getRetryAfterSeconds());
+        }
     }
 
-    @Scheduled(fixedRate = 10000)
-    public void cleanupIdleSessions() {
-        long now = System.currentTimeMillis();
-        long timeoutMs = idleTimeoutSeconds * 1000;
-        AtomicInteger cleanedCount = new AtomicInteger(0);
+    /**
+     * Prepares where the session's FFmpeg writes and starts watching it.
+     *
+     * @param cmaf CMAF parts for the LL-HLS packager instead of MPEG-TS segments
+     */
+    private FFmpegSession.Output prepareOutput(String streamId, boolean cmaf) {
+        FFmpegSession.Output output;
+        if (cmaf) {
+            try {
+                output = FFmpegSession.Output.cmaf(lowLatency.open(streamId), lowLatency.getPartMillis());
+            } catch (IOException e) {
+                log.error("[{}] Failed to open LL-HLS ingest socket", streamId, e);
+                throw new RuntimeException("Could not initialize low-latency output", e);
+            }
+            outputWatcher.watch(streamId, null);
+        } else if (segmentStore.isEnabled()) {
+            segmentStore.openStream(streamId);
+            output = FFmpegSession.Output.http(segmentStore.getIngestBaseUrl(streamId));
+            outputWatcher.watch(streamId, null);
+        } else {
+            Path streamDir;
+            try {
+                streamDir = storage.prepareStreamDir(streamId);
+            } catch (IOException e) {
+                log.error("[{}] Failed to create HLS directory", streamId, e);
+                throw new RuntimeException("Could not initialize streaming directory", e);
+            }
+            output = FFmpegSession.Output.disk(streamDir.toString());
+            outputWatcher.watch(streamId, streamDir);
+        }
+        return output;
+    }
 
-        activeSessions.forEach((streamId, session) -> {
-            if (now - session.getLastAccessed() > timeoutMs) {
-                log.info("Stopping idle HLS session: {} (idle for {}s)",
-                        streamId, (now - session.getLastAccessed()) / 1000);
-                session.stop();
-                activeSessions.remove(streamId);
-                cleanedCount.incrementAndGet();
+    /**
+     * Stops the session if it is still the registered one for its stream and
+     * returns its slot. Safe to call concurrently for the same session.
+     */
+    boolean stopSession(String streamId, FFmpegSession session) {
+        if (!activeSessions.remove(streamId, session)) {
+            return false;
+        }
+        session.stop();
+        releaseSession(streamId);
+        return true;
+    }
+
+    private void releaseSession(String streamId) {
+        releaseResources(streamId);
+        admission.release();
+    }
+
+    /**
+     * Everything a session holds except its admission slot.
+     */
+    private void releaseResources(String streamId) {
+        outputWatcher.unwatch(streamId);
+        playlistCache.evict(streamId);
+        segmentStore.removeStream(streamId);
+        lowLatency.close(streamId);
+        storage.releaseStreamDir(streamId);
+        viewerLeases.clear(streamId);
+        costBudget.release(streamId);
+        rtspLimiter.release(streamId);
+    }
+
+    /**
+     * Replaces the session's FFmpeg process, keeping its slot and viewers.
+     */
+    void restartSession(String streamId, FFmpegSession session) {
+        if (activeSessions.get(streamId) != session) {
+            return;
+        }
+        outputWatcher.resetSegmentLag(streamId);
+        session.restart();
+    }
+
+    /**
+     * Running and starting sessions by stream ID, for the watchdog.
+     */
+    Map<String, FFmpegSession> getActiveSessions() {
+        return Collections.unmodifiableMap(activeSessions);
+    }
+
+    /**
+     * Registers (or renews) a viewer's lease on the stream. Playlist fetches
+     * take the lease, segment fetches keep it alive.
+     */
+    public void touchViewer(String nvrId, int channelId, String viewerKey) {
+        touchViewer(getStreamId(nvrId, channelId), viewerKey);
+    }
+
+    private void touchViewer(String streamId, String viewerKey) {
+        viewerLeases.touch(streamId, viewerKey);
+        FFmpegSession session = activeSessions.get(streamId);
+        if (session != null) {
+            session.updateLastAccessed();
+        }
+    }
+
+    private void onStreamIdle(String streamId) {
+        FFmpegSession session = activeSessions.get(streamId);
+        if (session == null || viewerLeases.getViewerCount(streamId) > 0) {
+            return;
+        }
+        stopInBackground(() -> {
+            if (stopSession(streamId, session)) {
+                log.info("Stopped HLS session {} after its last viewer left (Active: {}/{})",
+                        streamId, activeSessions.size(), admission.getMaxStreams());
             }
         });
+    }
 
-        if (cleanedCount.get() > 0) {
-            log.info("Cleaned up {} idle session(s). Active streams: {}", cleanedCount.get(), activeSessions.size());
+    private void stopInBackground(Runnable stop) {
+        try {
+            stopper.execute(stop);
+        } catch (RejectedExecutionException e) {
+            // Shutting down; stopAllSessions takes care of it
         }
     }
 
@@ -109,8 +495,9 @@ public class HlsService {
     public StreamStats getStreamStats() {
         return new StreamStats(
                 activeSessions.size(),
-                maxConcurrentStreams,
-                activeSessions.keySet());
+                admission.getMaxStreams(),
+                activeSessions.keySet(),
+                viewerLeases.getViewerCounts());
     }
 
     /**
@@ -125,195 +512,207 @@ public class HlsService {
      */
     public void stopStream(String nvrId, int channelId) {
         String streamId = getStreamId(nvrId, channelId);
-        FFmpegSession session = activeSessions.remove(streamId);
-        if (session != null) {
+        FFmpegSession session = activeSessions.get(streamId);
+        if (session != null && stopSession(streamId, session)) {
             log.info("Force stopping stream: {}", streamId);
-            session.stop();
         }
     }
 
     public record StreamStats(
             int activeStreams,
             int maxStreams,
-            java.util.Set<String> activeStreamIds) {
+            java.util.Set<String> activeStreamIds,
+            Map<String, Integer> viewerCounts) {
     }
 
+    /**
+     * Signals every FFmpeg process at once and waits for all of them under a
+     * single hls.shutdown.timeout.seconds deadline, killing whatever is left.
+     */
     @PreDestroy
     public void stopAllSessions() {
-        log.info("Shutting down HLS sessions...");
-        activeSessions.values().forEach(FFmpegSession::stop);
-        activeSessions.clear();
+        // Launches still queued never took a slot or any other reservation
+        for (Runnable queued : starter.shutdownNow()) {
+            if (queued instanceof LaunchTask task) {
+                activeSessions.remove(task.candidate.getStreamId(), task.candidate);
+                task.candidate.failStartup(shuttingDown());
+            }
+        }
+        stopper.shutdown();
+        long started = System.nanoTime();
+        Map<String, FFmpegSession> stopping = new HashMap<>();
+        activeSessions.forEach((streamId, session) -> {
+            if (activeSessions.remove(streamId, session)) {
+                stopping.put(streamId, session);
+            }
+        });
+        log.info("Shutting down {} HLS sessions...", stopping.size());
+
+        CompletableFuture<?>[] exits = stopping.values().stream()
+                .map(FFmpegSession::signalStop)
+                .toArray(CompletableFuture[]::new);
+        try {
+            CompletableFuture.allOf(exits).get(shutdownTimeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            stopping.values().forEach(FFmpegSession::forceStop);
+        } catch (InterruptedException e) {
+            stopping.values().forEach(FFmpegSession::forceStop);
+            Thread.currentThread().interrupt();
+        }
+        stopping.forEach((streamId, session) -> {
+            session.stop();
+            releaseSession(streamId);
+            // No-op for running sessions; fails those whose launch was still in flight
+            session.failStartup(shuttingDown());
+        });
+        log.info("Stopped {} HLS sessions in {} ms", stopping.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
     }
 
-    private String getStreamId(String nvrId, int channelId) {
-        return nvrId + "_" + channelId;
+    public boolean isMosaicEnabled() {
+        return mosaicEnabled;
     }
 
-    @Slf4j
-    private static class FFmpegSession {
-        private final String streamId;
-        private final String rtspUrl;
-        private final String outputDir;
-        private volatile long lastAccessed = System.currentTimeMillis();
-        private Process ffmpegProcess;
-        private Thread monitorThread;
+    public int getMosaicMaxTiles() {
+        return mosaicMaxTiles;
+    }
 
-        public FFmpegSession(String streamId, String rtspUrl, String outputDir) {
-            this.streamId = streamId;
-            this.rtspUrl = rtspUrl;
-            this.outputDir = outputDir;
+    /**
+     * Registers a camera group for a mosaic and returns the mosaic's stream
+     * ID. The ID is derived from the tiles, so everyone watching the same
+     * group shares one composite session.
+     */
+    public String registerMosaic(List<MosaicTile> tiles) {
+        if (tiles.isEmpty() || tiles.size() > mosaicMaxTiles) {
+            throw new IllegalArgumentException("A mosaic needs 1 to " + mosaicMaxTiles + " cameras");
         }
+        StringBuilder key = new StringBuilder();
+        tiles.forEach(tile -> key.append(tile.nvrId()).append('/').append(tile.channelId()).append(';'));
+        String streamId = MOSAIC_PREFIX + UUID.nameUUIDFromBytes(key.toString().getBytes(StandardCharsets.UTF_8))
+                .toString().replace("-", "").substring(0, 16);
+        mosaics.put(streamId, List.copyOf(tiles));
+        return streamId;
+    }
 
-        public void updateLastAccessed() {
-            lastAccessed = System.currentTimeMillis();
+    /**
+     * Starts a registered mosaic like {@link #startStream}; it is
+     * admitted as one session and stopped when its last viewer leaves.
+     *
+     * @return completes like {@link #startStream}
+     * @throws IllegalArgumentException if no mosaic is registered under the ID
+     */
+    public CompletableFuture<Void> startMosaicIfNotActive(String mosaicId, StreamPriority priority) {
+        List<MosaicTile> tiles = mosaics.getIfPresent(mosaicId);
+        if (tiles == null) {
+            throw new IllegalArgumentException("Unknown mosaic: " + mosaicId);
         }
+        return startIfNotActive(mosaicId, priority, new SessionListener(null, 0),
+                session -> launchMosaic(session, tiles));
+    }
 
-        public long getLastAccessed() {
-            return lastAccessed;
+    public CompletableFuture<Void> awaitMosaicPlaylist(String mosaicId) {
+        return awaitPlaylist(mosaicId);
+    }
+
+    public void touchMosaicViewer(String mosaicId, String viewerKey) {
+        touchViewer(mosaicId, viewerKey);
+    }
+
+    public Path getMosaicDir(String mosaicId) {
+        return Paths.get(hlsRootDir, mosaicId);
+    }
+
+    /**
+     * Grid columns for a mosaic of {@code tiles} cameras: the smallest square
+     * grid that holds them all.
+     */
+    public static int mosaicColumns(int tiles) {
+        return (int) Math.ceil(Math.sqrt(tiles));
+    }
+
+    private void launchMosaic(FFmpegSession session, List<MosaicTile> tiles) {
+        String streamId = session.getStreamId();
+        log.info("[{}] Starting new {}-camera mosaic (Active: {}/{})", streamId, tiles.size(),
+                activeSessions.size(), admission.getMaxStreams());
+
+        // The LL-HLS packager serves per-camera paths only, so mosaics are always MPEG-TS
+        FFmpegSession.Output output = prepareOutput(streamId, false);
+
+        if (!costBudget.tryReserve(streamId, costBudget.mosaicCost(tiles.size()))) {
+            throw new StreamCapacityException("CPU budget exhausted for mosaic", admission.getRetryAfterSeconds());
         }
 
-        public void start() {
-            // Try with stream copy first (ultra low CPU)
-            startProcess(true);
+        List<String> inputs = new ArrayList<>(tiles.size());
+        Map<String, NVR> nvrs = new HashMap<>();
+        List<String> pulls = new ArrayList<>();
+        for (MosaicTile tile : tiles) {
+            String restream = rtspLimiter.getRestreamUrl(tile.nvrId(), tile.channelId(), true);
+            if (restream != null) {
+                inputs.add(restream);
+                continue;
+            }
+            NVR nvr = nvrs.computeIfAbsent(tile.nvrId(), nvrService::getNvrById);
+            inputs.add(nvrService.generateStreamUrl(nvr, tile.channelId(), true));
+            pulls.add(RtspSessionLimiter.pathName(tile.nvrId(), tile.channelId(), true));
         }
+        rtspLimiter.acquire(streamId, pulls, session.getPriority());
+        int columns = mosaicColumns(tiles.size());
+        int rows = (tiles.size() + columns - 1) / columns;
+        // libx264 with yuv420p needs even dimensions
+        int tileWidth = mosaicWidth / columns / 2 * 2;
+        int tileHeight = mosaicHeight / rows / 2 * 2;
+        session.startMosaic(new FFmpegSession.Mosaic(inputs, columns, tileWidth, tileHeight, mosaicFps,
+                mosaicBitrate), output);
+    }
 
-        private void startProcess(boolean useCopy) {
-            List<String> command = new ArrayList<>();
-            command.add("ffmpeg");
+    public record MosaicTile(String nvrId, int channelId) {
+    }
 
-            // Input optimization
-            command.add("-rtsp_transport");
-            command.add("tcp");
-            command.add("-rtsp_flags");
-            command.add("prefer_tcp");
-            command.add("-stimeout");
-            command.add("5000000"); // 5 second timeout
-            command.add("-i");
-            command.add(rtspUrl);
+    public String getStreamId(String nvrId, int channelId) {
+        return nvrId + "_" + channelId;
+    }
 
-            if (useCopy) {
-                log.info("[{}] Attempting stream copy...", streamId);
-                command.add("-c:v");
-                command.add("copy");
-            } else {
-                log.info("[{}] Falling back to transcoding...", streamId);
-                command.add("-c:v");
-                command.add("libx264");
-                command.add("-preset");
-                command.add("ultrafast");
-                command.add("-tune");
-                command.add("zerolatency");
-                command.add("-profile:v");
-                command.add("baseline");
-                command.add("-level");
-                command.add("3.0");
-                command.add("-pix_fmt");
-                command.add("yuv420p");
-                // Limit CPU usage
-                command.add("-threads");
-                command.add("2");
-                // Quality settings for low latency
-                command.add("-crf");
-                command.add("23");
-                command.add("-maxrate");
-                command.add("2M");
-                command.add("-bufsize");
-                command.add("4M");
-            }
+    /**
+     * Session callbacks; a mosaic's listener has no camera (null nvrId) and
+     * does not record capabilities.
+     */
+    private class SessionListener implements FFmpegSession.Listener {
+        private final String nvrId;
+        private final int channelId;
 
-            command.add("-an"); // No audio
-            command.add("-f");
-            command.add("hls");
-            // Optimized HLS settings for low latency
-            command.add("-hls_time");
-            command.add("2");
-            command.add("-hls_list_size");
-            command.add("5");
-            command.add("-hls_flags");
-            command.add("delete_segments+independent_segments+omit_endlist");
-            command.add("-hls_segment_type");
-            command.add("mpegts");
-            command.add("-hls_segment_filename");
-            command.add(outputDir + File.separator + "seg_%03d.ts");
-            // Reduce startup delay
-            command.add("-start_number");
-            command.add("0");
-            command.add("-hls_allow_cache");
-            command.add("0");
-            command.add(outputDir + File.separator + "index.m3u8");
-
-            ProcessBuilder pb = new ProcessBuilder(command);
-            pb.redirectErrorStream(true);
-
-            // Set process priority to lower CPU usage (optional, OS-dependent)
-            // This helps prevent FFmpeg from consuming all CPU resources
-            try {
-                // On Linux, this sets nice value (higher = lower priority)
-                // Note: This may not work on all systems, especially in containers
-                pb.inheritIO();
-            } catch (Exception e) {
-                log.debug("[{}] Could not set process priority", streamId);
-            }
+        private SessionListener(String nvrId, int channelId) {
+            this.nvrId = nvrId;
+            this.channelId = channelId;
+        }
 
-            try {
-                ffmpegProcess = pb.start();
-                log.info("[{}] FFmpeg process started (PID: {})", streamId, ffmpegProcess.pid());
-                monitorThread = new Thread(() -> monitorProcess(useCopy));
-                monitorThread.setName("FFmpegMonitor-" + streamId);
-                monitorThread.setDaemon(true); // Don't prevent JVM shutdown
-                monitorThread.start();
-            } catch (IOException e) {
-                log.error("[{}] Failed to start FFmpeg process", streamId, e);
-                throw new RuntimeException("Failed to start FFmpeg for stream: " + streamId, e);
+        @Override
+        public void onInputProbed(FFmpegSession session, StreamCapabilityService.VideoStreamInfo input) {
+            if (nvrId != null) {
+                capabilities.record(nvrId, channelId, input);
             }
         }
 
-        private void monitorProcess(boolean wasUsingCopy) {
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(ffmpegProcess.getInputStream()))) {
-                String line;
-                int lineCount = 0;
-                while ((line = reader.readLine()) != null) {
-                    if (lineCount < 20) { // Log first few lines for debugging
-                        log.debug("[{}] FFmpeg: {}", streamId, line);
-                        lineCount++;
-                    }
-                    if (line.contains("Error") || line.contains("failed")) {
-                        log.warn("[{}] FFmpeg Warning/Error: {}", streamId, line);
-                    }
-                }
-            } catch (IOException e) {
-                log.debug("[{}] FFmpeg output stream closed", streamId);
-            }
+        @Override
+        public void onTerminated(FFmpegSession session) {
+            stopInBackground(() -> stopSession(session.getStreamId(), session));
+        }
+    }
 
-            try {
-                int exitCode = ffmpegProcess.waitFor();
-                log.info("[{}] FFmpeg process exited with code {}", streamId, exitCode);
-
-                if (exitCode != 0 && wasUsingCopy) {
-                    log.warn("[{}] Stream copy failed, trying fallback to transcoding...", streamId);
-                    startProcess(false);
-                }
-            } catch (InterruptedException e) {
-                log.error("[{}] Monitor thread interrupted", streamId);
-                Thread.currentThread().interrupt();
-            }
+    /**
+     * A queued launch, so shutdown can fail the startups it never got to.
+     */
+    private class LaunchTask implements Runnable {
+        private final FFmpegSession candidate;
+        private final Consumer<FFmpegSession> launcher;
+
+        private LaunchTask(FFmpegSession candidate, Consumer<FFmpegSession> launcher) {
+            this.candidate = candidate;
+            this.launcher = launcher;
         }
 
-        public void stop() {
-            if (ffmpegProcess != null && ffmpegProcess.isAlive()) {
-                ffmpegProcess.destroy();
-                try {
-                    if (!ffmpegProcess.waitFor(5, TimeUnit.SECONDS)) {
-                        ffmpegProcess.destroyForcibly();
-                    }
-                } catch (InterruptedException e) {
-                    ffmpegProcess.destroyForcibly();
-                    Thread.currentThread().interrupt();
-                }
-            }
-            if (monitorThread != null) {
-                monitorThread.interrupt();
-            }
+        @Override
+        public void run() {
+            launch(candidate, launcher);
         }
     }
 }
@@ -0,0 +1,289 @@
+package com.cctv.api.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the stream directories under hls.root.dir. A session's directory is
+ * renamed out of the way when it starts or stops (one rename on the request
+ * thread) and deleted by a background cleaner, as are directories no session
+ * owns, e.g. those left by a previous instance. A periodic pass sums the
+ * bytes per directory and, above hls.storage.max.bytes, deletes segment files
+ * oldest first. The root is expected on tmpfs; anything else is logged,
+ * since segments are rewritten every couple of seconds.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class HlsStorageManager {
+
+    private static final String TRASH_PREFIX = ".trash-";
+    private static final String PID_FILE_NAME = "ffmpeg.pid";
+
+    private final MeterRegistry meterRegistry;
+
+    // Stream directories of running sessions
+    private final Set<String> owned = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> bytesByStream = new ConcurrentHashMap<>();
+    private volatile long totalBytes;
+    private volatile boolean tmpfs;
+    private ExecutorService cleaner;
+    private Counter quotaEvictions;
+    private Counter staleRemovals;
+
+    @Value("${hls.root.dir}")
+    private String hlsRootDir;
+
+    @Value("${hls.storage.max.bytes:2147483648}")
+    private long maxBytes;
+
+    @Value("${hls.storage.stale.seconds:60}")
+    private long staleSeconds;
+
+    @PostConstruct
+    void init() throws IOException {
+        Path root = Paths.get(hlsRootDir);
+        Files.createDirectories(root);
+        try {
+            FileStore store = Files.getFileStore(root);
+            tmpfs = "tmpfs".equals(store.type());
+            if (!tmpfs) {
+                log.warn("HLS root {} is on {} ({}), not tmpfs; segment churn will hit the disk", root,
+                        store.type(), store.name());
+            }
+        } catch (IOException e) {
+            log.warn("Could not determine the filesystem of {}: {}", root, e.getMessage());
+        }
+        cleaner = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "hls-storage-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        quotaEvictions = meterRegistry.counter("hls.storage.evictions", "reason", "quota");
+        staleRemovals = meterRegistry.counter("hls.storage.evictions", "reason", "stale");
+        Gauge.builder("hls.storage.bytes", this, m -> m.totalBytes).baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("hls.storage.quota.bytes", this, m -> m.maxBytes).baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("hls.storage.streams", bytesByStream, Map::size).register(meterRegistry);
+        Gauge.builder("hls.storage.tmpfs", this, m -> m.tmpfs ? 1 : 0).register(meterRegistry);
+        log.info("HLS storage under {}: quota {} MB, tmpfs: {}", root, maxBytes / (1024 * 1024), tmpfs);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        cleaner.shutdownNow();
+    }
+
+    /**
+     * Returns an empty directory for the stream's output. Leftovers of an
+     * earlier session are moved aside and deleted in the background.
+     */
+    public Path prepareStreamDir(String streamId) throws IOException {
+        Path streamDir = Paths.get(hlsRootDir, streamId);
+        discard(streamDir);
+        Files.createDirectories(streamDir);
+        owned.add(streamId);
+        return streamDir;
+    }
+
+    /**
+     * Gives up the stream's directory once its session has stopped.
+     */
+    public void releaseStreamDir(String streamId) {
+        if (owned.remove(streamId)) {
+            bytesByStream.remove(streamId);
+            try {
+                discard(Paths.get(hlsRootDir, streamId));
+            } catch (IOException e) {
+                log.warn("[{}] Could not discard HLS directory: {}", streamId, e.getMessage());
+            }
+        }
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public boolean isTmpfs() {
+        return tmpfs;
+    }
+
+    /**
+     * Renames the directory to a trash name, so a new session can use the
+     * path at once, and queues the trash for deletion.
+     */
+    private void discard(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        Path trash = dir.resolveSibling(TRASH_PREFIX + dir.getFileName() + "-" + System.nanoTime());
+        try {
+            Files.move(dir, trash, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException | NoSuchFileException e) {
+            return;
+        }
+        cleaner.execute(() -> deleteTree(trash));
+    }
+
+    /**
+     * Accounts bytes per stream directory, removes directories nobody owns
+     * and, above the quota, evicts the oldest segments.
+     */
+    @Scheduled(fixedDelayString = "${hls.storage.check.ms:10000}")
+    public void check() {
+        Path root = Paths.get(hlsRootDir);
+        long now = System.currentTimeMillis();
+        long total = 0;
+        Map<String, Long> sizes = new HashMap<>();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path dir : dirs) {
+                String name = dir.getFileName().toString();
+                long size = directorySize(dir);
+                total += size;
+                if (owned.contains(name)) {
+                    sizes.put(name, size);
+                } else if (name.startsWith(TRASH_PREFIX)) {
+                    // Already queued by discard(); picked up again here only after a restart
+                    if (Files.getLastModifiedTime(dir).toMillis() < now - TimeUnit.SECONDS.toMillis(staleSeconds)) {
+                        cleaner.execute(() -> deleteTree(dir));
+                    }
+                } else if (isStale(dir, now)) {
+                    log.info("Removing stale HLS directory {}", dir);
+                    staleRemovals.increment();
+                    Path trash = dir.resolveSibling(TRASH_PREFIX + name + "-" + System.nanoTime());
+                    try {
+                        Files.move(dir, trash, StandardCopyOption.ATOMIC_MOVE);
+                        cleaner.execute(() -> deleteTree(trash));
+                    } catch (IOException e) {
+                        log.debug("Could not move stale directory {}: {}", dir, e.getMessage());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not scan HLS root {}: {}", root, e.getMessage());
+            return;
+        }
+        bytesByStream.keySet().retainAll(owned);
+        bytesByStream.putAll(sizes);
+        totalBytes = total;
+        if (maxBytes > 0 && total > maxBytes) {
+            evictOldest(root, total - maxBytes);
+        }
+    }
+
+    /**
+     * A directory no session owns, holding no PID file of a running process
+     * (those are reaped by the supervisor) and untouched for
+     * hls.storage.stale.seconds.
+     */
+    private boolean isStale(Path dir, long now) throws IOException {
+        if (Files.exists(dir.resolve(PID_FILE_NAME))) {
+            return false;
+        }
+        return Files.getLastModifiedTime(dir).toMillis() < now - TimeUnit.SECONDS.toMillis(staleSeconds);
+    }
+
+    private void evictOldest(Path root, long excess) {
+        List<Segment> segments = new ArrayList<>();
+        for (String streamId : owned) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(root.resolve(streamId), "*.ts")) {
+                for (Path file : files) {
+                    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    segments.add(new Segment(file, attributes.lastModifiedTime().toMillis(), attributes.size()));
+                }
+            } catch (IOException e) {
+                // Stream stopped meanwhile
+            }
+        }
+        segments.sort(Comparator.comparingLong(Segment::modifiedAt));
+        long freed = 0;
+        int evicted = 0;
+        for (Segment segment : segments) {
+            if (freed >= excess) {
+                break;
+            }
+            try {
+                if (Files.deleteIfExists(segment.file())) {
+                    freed += segment.size();
+                    evicted++;
+                }
+            } catch (IOException e) {
+                log.debug("Could not evict {}: {}", segment.file(), e.getMessage());
+            }
+        }
+        quotaEvictions.increment(evicted);
+        log.warn("HLS storage over quota by {} KB, evicted {} oldest segments ({} KB)", excess / 1024, evicted,
+                freed / 1024);
+    }
+
+    private static long directorySize(Path dir) {
+        long size = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                try {
+                    size += Files.size(file);
+                } catch (IOException e) {
+                    // Deleted by FFmpeg meanwhile
+                }
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+        return size;
+    }
+
+    private static void deleteTree(Path dir) {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.deleteIfExists(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                    Files.deleteIfExists(d);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (NoSuchFileException e) {
+            // Deleted by an earlier pass
+        } catch (IOException e) {
+            log.debug("Could not delete {}: {}", dir, e.getMessage());
+        }
+    }
+
+    private record Segment(Path file, long modifiedAt, long size) {
+    }
+}
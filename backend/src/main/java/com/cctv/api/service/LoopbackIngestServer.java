@@ -0,0 +1,193 @@
+package com.cctv.api.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Loopback TCP sockets that FFmpeg can write side outputs to (e.g.
+ * {@code -progress tcp://127.0.0.1:port}). Every endpoint is serviced by one
+ * shared selector thread and one shared read buffer, so the cost does not
+ * grow with the number of sessions.
+ */
+@Slf4j
+@Service
+public class LoopbackIngestServer {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private Thread selectorThread;
+
+    @PostConstruct
+    void init() throws IOException {
+        selector = Selector.open();
+        selectorThread = new Thread(this::run, "loopback-ingest");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    @PreDestroy
+    void shutdown() throws IOException {
+        selector.close();
+    }
+
+    /**
+     * Opens a listening socket on an ephemeral loopback port. Each accepted
+     * connection's bytes are handed to {@code sink} on the selector thread; the
+     * buffer is only valid for the duration of the call.
+     */
+    public Endpoint open(String name, Sink sink) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.configureBlocking(false);
+        Endpoint endpoint = new Endpoint(name, server, sink);
+        pending.add(() -> {
+            try {
+                server.register(selector, SelectionKey.OP_ACCEPT, endpoint);
+            } catch (IOException e) {
+                log.warn("[{}] Could not register loopback endpoint: {}", name, e.getMessage());
+            }
+        });
+        selector.wakeup();
+        return endpoint;
+    }
+
+    private void run() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                Runnable task;
+                while ((task = pending.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Endpoint endpoint = (Endpoint) key.attachment();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(key, endpoint);
+                        } else if (key.isReadable()) {
+                            read(key, endpoint);
+                        }
+                    } catch (IOException e) {
+                        log.debug("[{}] Loopback connection error: {}", endpoint.name, e.getMessage());
+                        closeConnection(key, endpoint);
+                    } catch (RuntimeException e) {
+                        log.error("[{}] Loopback sink failed", endpoint.name, e);
+                        closeConnection(key, endpoint);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            log.debug("Loopback ingest selector closed");
+        }
+    }
+
+    private void accept(SelectionKey key, Endpoint endpoint) throws IOException {
+        SocketChannel client = ((ServerSocketChannel) key.channel()).accept();
+        if (client != null) {
+            client.configureBlocking(false);
+            client.register(selector, SelectionKey.OP_READ, endpoint);
+            endpoint.sink.onConnected();
+        }
+    }
+
+    private void read(SelectionKey key, Endpoint endpoint) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        readBuffer.clear();
+        int read = client.read(readBuffer);
+        if (read < 0) {
+            closeConnection(key, endpoint);
+            return;
+        }
+        readBuffer.flip();
+        endpoint.sink.onData(readBuffer);
+    }
+
+    private void closeConnection(SelectionKey key, Endpoint endpoint) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // already closed
+        }
+        if (key.channel() instanceof SocketChannel) {
+            endpoint.sink.onDisconnected();
+        }
+    }
+
+    /**
+     * Receiver of a loopback endpoint's bytes. Called on the selector thread
+     * only, so implementations need no locking for their parse state.
+     */
+    public interface Sink {
+        default void onConnected() {
+        }
+
+        void onData(ByteBuffer data);
+
+        default void onDisconnected() {
+        }
+    }
+
+    public final class Endpoint implements AutoCloseable {
+        private final String name;
+        private final ServerSocketChannel server;
+        private final Sink sink;
+
+        private Endpoint(String name, ServerSocketChannel server, Sink sink) {
+            this.name = name;
+            this.server = server;
+            this.sink = sink;
+        }
+
+        public int getPort() {
+            return server.socket().getLocalPort();
+        }
+
+        public String getTcpUrl() {
+            return "tcp://127.0.0.1:" + getPort();
+        }
+
+        /**
+         * Stops accepting; open connections end when the writer closes them.
+         */
+        @Override
+        public void close() {
+            pending.add(() -> {
+                SelectionKey key = server.keyFor(selector);
+                if (key != null) {
+                    key.cancel();
+                }
+                try {
+                    server.close();
+                } catch (IOException ignored) {
+                    // nothing to do
+                }
+            });
+            selector.wakeup();
+        }
+    }
+}
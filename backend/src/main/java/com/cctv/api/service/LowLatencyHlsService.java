@@ -0,0 +1,106 @@
+package com.cctv.api.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LL-HLS output for the built-in HLS path, used instead of MPEG-TS segments
+ * when hls.ll.enabled is set. FFmpeg muxes fragmented MP4 into a loopback
+ * socket per stream and a {@link CmafPackager} turns it into partial segments,
+ * so deployments without MediaMTX still get sub-2-second latency.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class LowLatencyHlsService {
+
+    private final LoopbackIngestServer loopback;
+    private final HlsOutputWatcher outputWatcher;
+    private final Map<String, Output> outputs = new ConcurrentHashMap<>();
+
+    @Value("${hls.ll.enabled:false}")
+    private boolean enabled;
+
+    @Value("${hls.ll.part.ms:400}")
+    private long partMillis;
+
+    @Value("${hls.ll.segment.seconds:2}")
+    private double segmentSeconds;
+
+    @Value("${hls.ll.segments.per.stream:6}")
+    private int segmentsPerStream;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getPartMillis() {
+        return partMillis;
+    }
+
+    /**
+     * Opens the stream's ingest socket, replacing any earlier one.
+     *
+     * @return the URL FFmpeg should write fragmented MP4 to
+     */
+    public String open(String streamId) throws IOException {
+        CmafPackager packager = new CmafPackager(streamId, outputWatcher, segmentSeconds, partMillis / 1000.0,
+                segmentsPerStream);
+        LoopbackIngestServer.Endpoint endpoint = loopback.open(streamId + "-cmaf", packager);
+        Output previous = outputs.put(streamId, new Output(packager, endpoint));
+        if (previous != null) {
+            previous.close();
+        }
+        return endpoint.getTcpUrl();
+    }
+
+    public void close(String streamId) {
+        Output output = outputs.remove(streamId);
+        if (output != null) {
+            output.close();
+        }
+    }
+
+    /**
+     * Blocking playlist reload. Completes with the playlist once it holds the
+     * requested part (or right away without {@code msn}); times out after three
+     * target durations as the LL-HLS spec suggests.
+     *
+     * @throws IllegalArgumentException if {@code msn} is too far in the future
+     */
+    public CompletableFuture<byte[]> awaitPlaylist(String streamId, Long msn, Integer part) {
+        Output output = outputs.get(streamId);
+        if (output == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long timeoutMs = (long) (output.packager.getTargetDuration() * 3000);
+        return output.packager.awaitPlaylist(msn, part).orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Init segment, segment or part by file name; null if unknown. A request
+     * for the hinted next part waits up to three part durations for it.
+     */
+    public CompletableFuture<byte[]> awaitResource(String streamId, String fileName) {
+        Output output = outputs.get(streamId);
+        if (output == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return output.packager.awaitResource(fileName).orTimeout(partMillis * 3, TimeUnit.MILLISECONDS);
+    }
+
+    private record Output(CmafPackager packager, LoopbackIngestServer.Endpoint endpoint) {
+        private void close() {
+            endpoint.close();
+            packager.close();
+        }
+    }
+}
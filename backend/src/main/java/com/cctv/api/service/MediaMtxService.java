@@ -224,6 +224,40 @@ public class MediaMtxService {
                 });
     }
 
+    /**
+     * Paths MediaMTX is currently pulling from their source, with the bytes
+     * received on each so far; empty if MediaMTX is disabled or unreachable.
+     */
+    public Mono<java.util.Map<String, Long>> getReadyPaths() {
+        if (!mediamtxEnabled) {
+            return Mono.just(java.util.Map.of());
+        }
+
+        return webClient.get()
+                .uri(mediamtxApiUrl + "/v3/paths/list?itemsPerPage=10000")
+                .headers(h -> {
+                    if (apiUsername != null && !apiUsername.isEmpty()) {
+                        h.setBasicAuth(apiUsername, apiPassword != null ? apiPassword : "");
+                    }
+                })
+                .retrieve()
+                .bodyToMono(com.fasterxml.jackson.databind.JsonNode.class)
+                .map(response -> {
+                    java.util.Map<String, Long> ready = new java.util.HashMap<>();
+                    for (com.fasterxml.jackson.databind.JsonNode item : response.path("items")) {
+                        if (item.path("ready").asBoolean(false)) {
+                            ready.put(item.path("name").asText(), item.path("bytesReceived").asLong(0));
+                        }
+                    }
+                    return ready;
+                })
+                .onErrorResume(e -> {
+                    log.debug("Failed to list MediaMTX paths: {}", e.getMessage());
+                    return Mono.just(java.util.Map.of());
+                })
+                .timeout(java.time.Duration.ofSeconds(2), Mono.just(java.util.Map.of()));
+    }
+
     /**
      * Get path name for MediaMTX
      */
@@ -0,0 +1,101 @@
+package com.cctv.api.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Finds random access points in an MPEG-TS file: packets whose adaptation
+ * field sets random_access_indicator, with the PTS of the PES they start.
+ * Works packet by packet through a caller-supplied buffer, so scanning a
+ * segment allocates nothing.
+ */
+final class MpegTsKeyframeScanner {
+
+    static final int PACKET_SIZE = 188;
+    private static final byte SYNC_BYTE = 0x47;
+    private static final long PTS_MASK = (1L << 33) - 1;
+
+    private MpegTsKeyframeScanner() {
+    }
+
+    interface Listener {
+        /**
+         * @param offset  byte offset of the packet in the file
+         * @param sinceMs time since the first PTS in the file, or -1 if the
+         *                packet carries no PTS
+         */
+        void onKeyframe(long offset, long sinceMs) throws IOException;
+    }
+
+    /**
+     * @param buffer reusable buffer, a multiple of {@link #PACKET_SIZE} in capacity
+     */
+    static void scan(FileChannel channel, ByteBuffer buffer, Listener listener) throws IOException {
+        long position = 0;
+        long firstPts = -1;
+        buffer.clear();
+        while (channel.read(buffer, position + buffer.position()) > 0 || buffer.position() > 0) {
+            buffer.flip();
+            if (buffer.remaining() < PACKET_SIZE) {
+                break;
+            }
+            while (buffer.remaining() >= PACKET_SIZE) {
+                int packet = buffer.position();
+                if (buffer.get(packet) != SYNC_BYTE) {
+                    // Lost sync; nothing the muxer writes should get here
+                    return;
+                }
+                long pts = pts(buffer, packet);
+                if (pts >= 0 && firstPts < 0) {
+                    firstPts = pts;
+                }
+                if (isRandomAccess(buffer, packet)) {
+                    long sinceMs = pts >= 0 ? ((pts - firstPts) & PTS_MASK) / 90 : -1;
+                    listener.onKeyframe(position, sinceMs);
+                }
+                buffer.position(packet + PACKET_SIZE);
+                position += PACKET_SIZE;
+            }
+            buffer.compact();
+        }
+    }
+
+    private static boolean isRandomAccess(ByteBuffer buffer, int packet) {
+        int control = (buffer.get(packet + 3) >> 4) & 0x3;
+        if ((control & 0x2) == 0) {
+            return false;
+        }
+        int length = buffer.get(packet + 4) & 0xFF;
+        return length > 0 && (buffer.get(packet + 5) & 0x40) != 0;
+    }
+
+    /**
+     * PTS of the PES starting in this packet, or -1.
+     */
+    private static long pts(ByteBuffer buffer, int packet) {
+        if ((buffer.get(packet + 1) & 0x40) == 0) {
+            return -1;
+        }
+        int control = (buffer.get(packet + 3) >> 4) & 0x3;
+        if ((control & 0x1) == 0) {
+            return -1;
+        }
+        int payload = packet + 4;
+        if ((control & 0x2) != 0) {
+            payload += 1 + (buffer.get(packet + 4) & 0xFF);
+        }
+        int end = packet + PACKET_SIZE;
+        if (payload + 14 > end
+                || buffer.get(payload) != 0 || buffer.get(payload + 1) != 0 || buffer.get(payload + 2) != 1
+                || (buffer.get(payload + 7) & 0x80) == 0) {
+            return -1;
+        }
+        int p = payload + 9;
+        return ((long) (buffer.get(p) & 0x0E) << 29)
+                | ((long) (buffer.get(p + 1) & 0xFF) << 22)
+                | ((long) (buffer.get(p + 2) & 0xFE) << 14)
+                | ((long) (buffer.get(p + 3) & 0xFF) << 7)
+                | ((buffer.get(p + 4) & 0xFE) >> 1);
+    }
+}
@@ -23,6 +23,28 @@ public class NvrService {
     private final com.cctv.api.repository.CameraRepository cameraRepository;
     private final MediaMtxService mediaMtxService;
 
+    @org.springframework.beans.factory.annotation.Value("${hls.abr.enabled:false}")
+    private boolean hlsVariantsEnabled;
+
+    @org.springframework.beans.factory.annotation.Value("${hls.ll.enabled:false}")
+    private boolean hlsLowLatencyEnabled;
+
+    /**
+     * Playlist viewers start from: the master playlist when substream variants
+     * are published (not with LL-HLS, which is single-variant).
+     */
+    private String hlsPlaylistName() {
+        return hlsVariantsEnabled && !hlsLowLatencyEnabled
+                ? AppConstants.HLS_MASTER_PLAYLIST_NAME : AppConstants.HLS_PLAYLIST_NAME;
+    }
+
+    /**
+     * Thumbnail URL of a camera tile; stable, so browsers revalidate it by ETag.
+     */
+    private static String thumbnailUrl(String nvrId, int channel) {
+        return String.format("/api/stream/%s/%d/%s", nvrId, channel, AppConstants.THUMBNAIL_NAME);
+    }
+
     @Cacheable(value = "nvrs", key = "'all' + #allowedLocations")
     public List<NVR> getAllNvrs(java.util.Set<String> allowedLocations) {
         log.debug("Fetching all NVRs from DB with allowed locations: {}", allowedLocations);
@@ -48,7 +70,7 @@ public class NvrService {
         return nvrRepository.findAll();
     }
 
-    @CacheEvict(value = { "nvrs", "nvrsByLocation", "streamLists" }, allEntries = true)
+    @CacheEvict(value = { "nvrs", "nvrsByLocation", "streamLists", "pinnedCameras" }, allEntries = true)
     public NVR createNvr(NVR nvr) {
         log.debug("Saving new NVR: {}", nvr.getName());
         NVR savedNvr = nvrRepository.save(nvr);
@@ -62,7 +84,7 @@ public class NvrService {
         return savedNvr;
     }
 
-    @CacheEvict(value = { "nvrs", "nvrsByLocation", "streamLists" }, allEntries = true)
+    @CacheEvict(value = { "nvrs", "nvrsByLocation", "streamLists", "pinnedCameras" }, allEntries = true)
     public NVR updateNvr(String id, NVR nvrDetails) {
         log.debug("Updating NVR: {}", id);
         NVR nvr = nvrRepository.findById(java.util.Objects.requireNonNull(id)).orElseThrow(() -> {
@@ -77,6 +99,7 @@ public class NvrService {
         nvr.setPassword(nvrDetails.getPassword());
         nvr.setType(nvrDetails.getType());
         nvr.setChannels(nvrDetails.getChannels());
+        nvr.setMaxRtspSessions(nvrDetails.getMaxRtspSessions());
         nvr.setOnvifPort(nvrDetails.getOnvifPort());
         nvr.setOnvifUsername(nvrDetails.getOnvifUsername());
         nvr.setOnvifPassword(nvrDetails.getOnvifPassword());
@@ -99,7 +122,7 @@ public class NvrService {
         return savedNvr;
     }
 
-    @CacheEvict(value = { "nvrs", "nvrsByLocation", "streamLists" }, allEntries = true)
+    @CacheEvict(value = { "nvrs", "nvrsByLocation", "streamLists", "pinnedCameras" }, allEntries = true)
     public void deleteNvr(String id) {
         log.debug("Deleting NVR with id: {}", id);
         List<com.cctv.api.model.Camera> cameras = cameraRepository.findByNvrId(id);
@@ -133,7 +156,6 @@ public class NvrService {
                     camDto.setId(cam.getId());
                     camDto.setName(cam.getName());
                     camDto.setStatus(cam.getStatus() != null ? cam.getStatus() : "Online");
-                    camDto.setThumbnail(null);
 
                     // Use available stream info
                     String proxyUrl;
@@ -143,7 +165,7 @@ public class NvrService {
                         proxyUrl = String.format("/api/stream/%s/%d/info", nvr.getId(), ch);
                     } else {
                         proxyUrl = String.format("/api/stream/%s/%d/%s", nvr.getId(), ch,
-                                AppConstants.HLS_PLAYLIST_NAME);
+                                hlsPlaylistName());
                     }
 
                     camDto.setStreamUrl(proxyUrl);
@@ -151,6 +173,7 @@ public class NvrService {
                     camDto.setNvr(nvr.getName());
                     camDto.setNvrId(nvr.getId());
                     camDto.setChannelId(ch);
+                    camDto.setThumbnail(thumbnailUrl(nvr.getId(), ch));
                     cameraDtos.add(camDto);
                 }
             } else {
@@ -161,20 +184,20 @@ public class NvrService {
                     camDto.setId(nvr.getId() + "_" + i);
                     camDto.setName("Channel " + i);
                     camDto.setStatus("Online");
-                    camDto.setThumbnail(null);
 
                     String proxyUrl;
                     if (mediaMtxService.isEnabled()) {
                         proxyUrl = String.format("/api/stream/%s/%d/info", nvr.getId(), i);
                     } else {
                         proxyUrl = String.format("/api/stream/%s/%d/%s", nvr.getId(), i,
-                                AppConstants.HLS_PLAYLIST_NAME);
+                                hlsPlaylistName());
                     }
                     camDto.setStreamUrl(proxyUrl);
                     camDto.setLocation(nvr.getLocation());
                     camDto.setNvr(nvr.getName());
                     camDto.setNvrId(nvr.getId());
                     camDto.setChannelId(i);
+                    camDto.setThumbnail(thumbnailUrl(nvr.getId(), i));
                     cameraDtos.add(camDto);
                 }
             }
@@ -184,6 +207,12 @@ public class NvrService {
         }).toList();
     }
 
+    @Cacheable(value = "pinnedCameras", key = "#nvrId + '_' + #channel")
+    public boolean isCameraPinned(String nvrId, int channel) {
+        return cameraRepository.findByNvrIdAndChannel(nvrId, channel).stream()
+                .anyMatch(cam -> Boolean.TRUE.equals(cam.getPinned()));
+    }
+
     public NVR getNvrById(String id) {
         return nvrRepository.findById(java.util.Objects.requireNonNull(id))
                 .orElseThrow(() -> new RuntimeException("NVR not found with id: " + id));
@@ -231,7 +260,6 @@ public class NvrService {
                                     camDto.setId(cam.getId());
                                     camDto.setName(cam.getName());
                                     camDto.setStatus(cam.getStatus() != null ? cam.getStatus() : "Online");
-                                    camDto.setThumbnail(null);
 
                                     String proxyUrl;
                                     int ch = (cam.getChannel() != null) ? cam.getChannel() : 1;
@@ -240,7 +268,7 @@ public class NvrService {
                                         proxyUrl = String.format("/api/stream/%s/%d/info", nvr.getId(), ch);
                                     } else {
                                         proxyUrl = String.format("/api/stream/%s/%d/%s", nvr.getId(), ch,
-                                                AppConstants.HLS_PLAYLIST_NAME);
+                                                hlsPlaylistName());
                                     }
                                     camDto.setStreamUrl(proxyUrl);
                                     camDto.setLocation(
@@ -248,6 +276,7 @@ public class NvrService {
                                     camDto.setNvr(nvr.getName());
                                     camDto.setNvrId(nvr.getId());
                                     camDto.setChannelId(ch);
+                                    camDto.setThumbnail(thumbnailUrl(nvr.getId(), ch));
                                     return camDto;
                                 });
                     } else {
@@ -267,20 +296,20 @@ public class NvrService {
                             camDto.setId(camId);
                             camDto.setName("Channel " + i);
                             camDto.setStatus("Online");
-                            camDto.setThumbnail(null);
 
                             String proxyUrl;
                             if (mediaMtxService.isEnabled()) {
                                 proxyUrl = String.format("/api/stream/%s/%d/info", nvr.getId(), i);
                             } else {
                                 proxyUrl = String.format("/api/stream/%s/%d/%s", nvr.getId(), i,
-                                        AppConstants.HLS_PLAYLIST_NAME);
+                                        hlsPlaylistName());
                             }
                             camDto.setStreamUrl(proxyUrl);
                             camDto.setLocation(nvr.getLocation());
                             camDto.setNvr(nvr.getName());
                             camDto.setNvrId(nvr.getId());
                             camDto.setChannelId(i);
+                            camDto.setThumbnail(thumbnailUrl(nvr.getId(), i));
                             nvrCameras.add(camDto);
                         }
                         return nvrCameras.stream();
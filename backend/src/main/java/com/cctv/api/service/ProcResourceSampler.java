@@ -0,0 +1,357 @@
+package com.cctv.api.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Periodically samples /proc for the FFmpeg processes we spawn, per stream:
+ * CPU from {@code stat}, RSS and context switches from {@code status}, and
+ * I/O from {@code io}. Files are read into one reused buffer and parsed in
+ * place, and each stream's values live in one mutable record, so a sample
+ * allocates nothing per process beyond the file handles. Values are exported
+ * as gauges and counters tagged with the stream ID; counters carry on across
+ * a stream's process restarts. Silently inactive on platforms without procfs.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ProcResourceSampler {
+
+    private static final Path PROC = Paths.get("/proc");
+    private static final byte[] VM_RSS = key("VmRSS:");
+    private static final byte[] VOLUNTARY_CTXT = key("voluntary_ctxt_switches:");
+    private static final byte[] NONVOLUNTARY_CTXT = key("nonvoluntary_ctxt_switches:");
+    private static final byte[] RCHAR = key("rchar:");
+    private static final byte[] WCHAR = key("wchar:");
+    private static final byte[] READ_BYTES = key("read_bytes:");
+    private static final byte[] WRITE_BYTES = key("write_bytes:");
+
+    private final MeterRegistry meterRegistry;
+    private final Map<String, ProcSample> samples = new ConcurrentHashMap<>();
+    private final boolean supported = Files.isDirectory(PROC.resolve("self"));
+    // Only the scheduler thread reads /proc; status, the largest file, is under 2 KB
+    private final byte[] buffer = new byte[8192];
+    private final ByteBuffer readBuffer = ByteBuffer.wrap(buffer);
+
+    @Value("${proc.clock.ticks:100}")
+    private long clockTicks;
+
+    public boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * Starts sampling the stream's process, replacing its previous one.
+     */
+    public void track(String streamId, long pid) {
+        if (!supported) {
+            return;
+        }
+        samples.compute(streamId, (id, sample) -> {
+            if (sample == null) {
+                sample = new ProcSample(id);
+                registerMeters(sample);
+            }
+            sample.attach(pid);
+            return sample;
+        });
+    }
+
+    public void untrack(String streamId) {
+        ProcSample sample = samples.remove(streamId);
+        if (sample != null) {
+            sample.meters.forEach(meterRegistry::remove);
+        }
+    }
+
+    /**
+     * CPU usage of the stream's process over the last sampling interval, in
+     * percent of one core.
+     */
+    public double getCpuPercent(String streamId) {
+        ProcSample sample = samples.get(streamId);
+        return sample != null ? sample.cpuPercent : 0;
+    }
+
+    /**
+     * Latest values for every sampled stream, most CPU first.
+     */
+    public List<ProcessUsage> getUsage() {
+        List<ProcessUsage> usage = new ArrayList<>(samples.size());
+        samples.values().forEach(sample -> usage.add(sample.snapshot()));
+        usage.sort(Comparator.comparingDouble(ProcessUsage::cpuPercent).reversed());
+        return usage;
+    }
+
+    @Scheduled(fixedRateString = "${proc.sample.interval.ms:5000}")
+    public void sample() {
+        if (!supported || samples.isEmpty()) {
+            return;
+        }
+        samples.values().forEach(sample -> {
+            synchronized (sample) {
+                sample(sample);
+            }
+        });
+    }
+
+    private void sample(ProcSample sample) {
+        long now = System.nanoTime();
+        long cpuTicks;
+        try {
+            cpuTicks = readCpuTicks(sample.statFile, sample.pid);
+        } catch (IOException e) {
+            // Process is gone; its owner attaches the next one or untracks the stream
+            return;
+        }
+        long ctxt = sample.voluntaryCtxt + sample.nonvoluntaryCtxt;
+        try {
+            int length = read(sample.statusFile);
+            sample.rssBytes = field(length, VM_RSS) * 1024;
+            sample.voluntaryCtxt = field(length, VOLUNTARY_CTXT);
+            sample.nonvoluntaryCtxt = field(length, NONVOLUNTARY_CTXT);
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            int length = read(sample.ioFile);
+            sample.rchar = field(length, RCHAR);
+            sample.wchar = field(length, WCHAR);
+            sample.readBytes = field(length, READ_BYTES);
+            sample.writeBytes = field(length, WRITE_BYTES);
+        } catch (IOException e) {
+            // io needs ptrace access, which some hardened kernels deny even for our own children
+        }
+        if (sample.sampledAt != 0) {
+            double elapsedSeconds = (now - sample.sampledAt) / 1e9;
+            double cpuSeconds = (double) (cpuTicks - sample.cpuTicks) / clockTicks;
+            sample.cpuPercent = elapsedSeconds > 0 ? 100.0 * cpuSeconds / elapsedSeconds : 0;
+            long switches = sample.voluntaryCtxt + sample.nonvoluntaryCtxt - ctxt;
+            sample.ctxtPerSecond = elapsedSeconds > 0 ? switches / elapsedSeconds : 0;
+        }
+        sample.cpuTicks = cpuTicks;
+        sample.sampledAt = now;
+    }
+
+    private int read(Path file) throws IOException {
+        readBuffer.clear();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (readBuffer.hasRemaining() && channel.read(readBuffer) > 0) {
+                // procfs hands out the file in one or two reads
+            }
+        }
+        return readBuffer.position();
+    }
+
+    /**
+     * utime + stime from /proc/[pid]/stat. The command name may contain spaces
+     * or parentheses, so fields are counted from the last ')'.
+     */
+    private long readCpuTicks(Path statFile, long pid) throws IOException {
+        int length = read(statFile);
+        int pos = length - 1;
+        while (pos >= 0 && buffer[pos] != ')') {
+            pos--;
+        }
+        // Fields after the command: state is field 3; utime and stime are 14 and 15
+        int field = 2;
+        long utime = 0;
+        for (int i = pos + 1; i < length; i++) {
+            if (buffer[i] == ' ') {
+                field++;
+                if (field == 14 || field == 15) {
+                    long value = number(i + 1, length);
+                    if (field == 14) {
+                        utime = value;
+                    } else {
+                        return utime + value;
+                    }
+                }
+            }
+        }
+        throw new IOException("Malformed /proc/" + pid + "/stat");
+    }
+
+    /**
+     * Value of a "key: value" line of a status or io file in the buffer, or 0
+     * if the key is missing.
+     */
+    private long field(int length, byte[] key) {
+        int lineStart = 0;
+        while (lineStart < length) {
+            if (startsWith(lineStart, length, key)) {
+                int i = lineStart + key.length;
+                while (i < length && (buffer[i] == ' ' || buffer[i] == '\t')) {
+                    i++;
+                }
+                return number(i, length);
+            }
+            while (lineStart < length && buffer[lineStart] != '\n') {
+                lineStart++;
+            }
+            lineStart++;
+        }
+        return 0;
+    }
+
+    private boolean startsWith(int offset, int length, byte[] key) {
+        if (offset + key.length > length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buffer[offset + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long number(int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < length && buffer[i] >= '0' && buffer[i] <= '9'; i++) {
+            value = value * 10 + (buffer[i] - '0');
+        }
+        return value;
+    }
+
+    private static byte[] key(String key) {
+        return key.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void registerMeters(ProcSample sample) {
+        sample.meters.add(gauge("ffmpeg.process.cpu", sample, s -> s.cpuPercent, "percent"));
+        sample.meters.add(gauge("ffmpeg.process.rss", sample, s -> s.rssBytes, "bytes"));
+        sample.meters.add(gauge("ffmpeg.process.context.switches.rate", sample, s -> s.ctxtPerSecond,
+                "switches/s"));
+        sample.meters.add(counter("ffmpeg.process.context.switches", sample, "voluntary",
+                s -> s.baseVoluntaryCtxt + s.voluntaryCtxt, "switches"));
+        sample.meters.add(counter("ffmpeg.process.context.switches", sample, "involuntary",
+                s -> s.baseNonvoluntaryCtxt + s.nonvoluntaryCtxt, "switches"));
+        sample.meters.add(counter("ffmpeg.process.io.read", sample, "all",
+                s -> s.baseRchar + s.rchar, "bytes"));
+        sample.meters.add(counter("ffmpeg.process.io.write", sample, "all",
+                s -> s.baseWchar + s.wchar, "bytes"));
+        sample.meters.add(counter("ffmpeg.process.io.read", sample, "storage",
+                s -> s.baseReadBytes + s.readBytes, "bytes"));
+        sample.meters.add(counter("ffmpeg.process.io.write", sample, "storage",
+                s -> s.baseWriteBytes + s.writeBytes, "bytes"));
+    }
+
+    private Meter gauge(String name, ProcSample sample, ToDoubleFunction<ProcSample> value, String unit) {
+        return Gauge.builder(name, sample, value)
+                .tag("stream", sample.streamId)
+                .baseUnit(unit)
+                .strongReference(true)
+                .register(meterRegistry);
+    }
+
+    private Meter counter(String name, ProcSample sample, String kind, ToDoubleFunction<ProcSample> value,
+            String unit) {
+        return FunctionCounter.builder(name, sample, value)
+                .tag("stream", sample.streamId)
+                .tag("kind", kind)
+                .baseUnit(unit)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Resource usage of one stream's FFmpeg process. I/O counts everything the
+     * process read and wrote (RTSP, pipes, HLS output); the storage figures
+     * are what actually reached the block layer.
+     */
+    public record ProcessUsage(
+            String streamId,
+            long pid,
+            double cpuPercent,
+            long rssBytes,
+            long readBytes,
+            long writeBytes,
+            long storageReadBytes,
+            long storageWriteBytes,
+            long voluntaryContextSwitches,
+            long involuntaryContextSwitches,
+            double contextSwitchesPerSecond) {
+    }
+
+    private final class ProcSample {
+        private final String streamId;
+        private final List<Meter> meters = new ArrayList<>();
+        private volatile long pid;
+        private volatile Path statFile;
+        private volatile Path statusFile;
+        private volatile Path ioFile;
+        private volatile long cpuTicks;
+        private volatile long sampledAt;
+        private volatile double cpuPercent;
+        private volatile double ctxtPerSecond;
+        private volatile long rssBytes;
+        private volatile long voluntaryCtxt;
+        private volatile long nonvoluntaryCtxt;
+        private volatile long rchar;
+        private volatile long wchar;
+        private volatile long readBytes;
+        private volatile long writeBytes;
+        // Totals of the stream's earlier processes, so its counters never go backwards
+        private volatile long baseVoluntaryCtxt;
+        private volatile long baseNonvoluntaryCtxt;
+        private volatile long baseRchar;
+        private volatile long baseWchar;
+        private volatile long baseReadBytes;
+        private volatile long baseWriteBytes;
+
+        private ProcSample(String streamId) {
+            this.streamId = streamId;
+        }
+
+        private synchronized void attach(long pid) {
+            if (this.pid == pid) {
+                return;
+            }
+            baseVoluntaryCtxt += voluntaryCtxt;
+            baseNonvoluntaryCtxt += nonvoluntaryCtxt;
+            baseRchar += rchar;
+            baseWchar += wchar;
+            baseReadBytes += readBytes;
+            baseWriteBytes += writeBytes;
+            voluntaryCtxt = nonvoluntaryCtxt = rchar = wchar = readBytes = writeBytes = 0;
+            rssBytes = 0;
+            cpuTicks = 0;
+            sampledAt = 0;
+            cpuPercent = 0;
+            ctxtPerSecond = 0;
+            Path dir = PROC.resolve(Long.toString(pid));
+            statFile = dir.resolve("stat");
+            statusFile = dir.resolve("status");
+            ioFile = dir.resolve("io");
+            this.pid = pid;
+        }
+
+        private ProcessUsage snapshot() {
+            return new ProcessUsage(streamId, pid, cpuPercent, rssBytes, baseRchar + rchar, baseWchar + wchar,
+                    baseReadBytes + readBytes, baseWriteBytes + writeBytes, baseVoluntaryCtxt + voluntaryCtxt,
+                    baseNonvoluntaryCtxt + nonvoluntaryCtxt, ctxtPerSecond);
+        }
+    }
+}
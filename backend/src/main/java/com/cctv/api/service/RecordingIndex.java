@@ -0,0 +1,156 @@
+package com.cctv.api.service;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only, memory-mapped index of one hour bucket of a camera's
+ * recording. Each entry is a fixed 32-byte record of (wall-clock time,
+ * segment, byte offset, flags), appended in time order, so readers can
+ * binary-search it. The entry count in the header is written after the
+ * entry itself; a reader never sees a half-written record.
+ */
+class RecordingIndex implements AutoCloseable {
+
+    static final String FILE_NAME = "index.idx";
+    static final int FLAG_KEYFRAME = 1;
+    static final int FLAG_SEGMENT_START = 2;
+
+    private static final int MAGIC = 0x43524958; // "CRIX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int COUNT_OFFSET = 8;
+    private static final int ENTRY_SIZE = 32;
+    // File growth step; the tail beyond the count is preallocated, not data
+    private static final int GROWTH_ENTRIES = 1024;
+
+    private final FileChannel channel;
+    private final boolean writable;
+    private MappedByteBuffer buffer;
+    private long count;
+
+    private RecordingIndex(FileChannel channel, boolean writable) throws IOException {
+        this.channel = channel;
+        this.writable = writable;
+        long size = channel.size();
+        if (writable && size < HEADER_SIZE) {
+            map(HEADER_SIZE + (long) GROWTH_ENTRIES * ENTRY_SIZE);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(COUNT_OFFSET, 0);
+        } else {
+            if (size < HEADER_SIZE) {
+                throw new IOException("Truncated recording index");
+            }
+            map(size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a recording index");
+            }
+        }
+        count = Math.min(buffer.getLong(COUNT_OFFSET), (buffer.capacity() - HEADER_SIZE) / ENTRY_SIZE);
+    }
+
+    /**
+     * Opens (creating if needed) the index for appending.
+     */
+    static RecordingIndex openForAppend(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            return new RecordingIndex(channel, true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing index for reading, as of the entries committed so far.
+     */
+    static RecordingIndex openForRead(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new RecordingIndex(channel, false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void map(long size) throws IOException {
+        buffer = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    void append(long timestamp, long segment, long offset, int flags) throws IOException {
+        long position = HEADER_SIZE + count * ENTRY_SIZE;
+        if (position + ENTRY_SIZE > buffer.capacity()) {
+            map(buffer.capacity() + (long) GROWTH_ENTRIES * ENTRY_SIZE);
+        }
+        int at = (int) position;
+        buffer.putLong(at, timestamp);
+        buffer.putLong(at + 8, segment);
+        buffer.putLong(at + 16, offset);
+        buffer.putInt(at + 24, flags);
+        buffer.putInt(at + 28, 0);
+        buffer.putLong(COUNT_OFFSET, ++count);
+    }
+
+    long count() {
+        return count;
+    }
+
+    long timestamp(long i) {
+        return buffer.getLong(entry(i));
+    }
+
+    /**
+     * Segment of the entry, as the epoch second in its file name.
+     */
+    long segment(long i) {
+        return buffer.getLong(entry(i) + 8);
+    }
+
+    long offset(long i) {
+        return buffer.getLong(entry(i) + 16);
+    }
+
+    int flags(long i) {
+        return buffer.getInt(entry(i) + 24);
+    }
+
+    /**
+     * Binary search for the last entry at or before {@code timestamp}.
+     *
+     * @return its position, or -1 if every entry is later
+     */
+    long floor(long timestamp) {
+        long low = 0;
+        long high = count - 1;
+        long found = -1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            if (timestamp(mid) <= timestamp) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private int entry(long i) {
+        return (int) (HEADER_SIZE + i * ENTRY_SIZE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writable) {
+            buffer.force();
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,218 @@
+package com.cctv.api.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds VOD playlists over the recording archive. The hour buckets covering
+ * a range are found by arithmetic on the time, and the start is located by
+ * binary search in the first bucket's {@link RecordingIndex}, so a seek costs
+ * O(log n) and never lists a directory. Playlists of ranges the recorder has
+ * moved past are cached per operator and range for repeated scrubbing; a
+ * range still being recorded is rebuilt each time so it picks up new segments.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class RecordingPlaybackService {
+
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+
+    private final RecordingService recordingService;
+
+    @Value("${recording.segment.seconds:10}")
+    private int segmentSeconds;
+
+    @Value("${recording.playback.max.hours:24}")
+    private long maxRangeHours;
+
+    /**
+     * VOD playlist of the recorded segments between {@code from} and
+     * {@code to} (epoch milliseconds). It starts with the segment holding
+     * {@code from}, which begins on a keyframe, and points the player at
+     * {@code from} through EXT-X-START.
+     *
+     * @param operator only part of the cache key
+     * @return the playlist, or null if nothing was recorded in the range
+     * @throws IllegalArgumentException for an empty or overlong range
+     */
+    @Cacheable(value = "playbackPlaylists", key = "#operator + '|' + #streamId + '|' + #from + '|' + #to",
+            unless = "#result == null || !#result.complete()")
+    public Playlist buildPlaylist(String operator, String streamId, long from, long to) {
+        if (to <= from || to - from > TimeUnit.HOURS.toMillis(maxRangeHours)) {
+            throw new IllegalArgumentException("Playback range must be positive and at most " + maxRangeHours
+                    + " hours");
+        }
+        List<RecordedSegment> segments = new ArrayList<>();
+        boolean complete = collectSegments(streamId, from, to, segments);
+        if (segments.isEmpty()) {
+            return null;
+        }
+        return new Playlist(render(segments, from), complete);
+    }
+
+    /**
+     * Recorded segments from the one holding {@code from} up to the last one
+     * starting at or before {@code to}, in time order.
+     */
+    List<RecordedSegment> findSegments(String streamId, long from, long to) {
+        List<RecordedSegment> segments = new ArrayList<>();
+        collectSegments(streamId, from, to, segments);
+        return segments;
+    }
+
+    /**
+     * @return whether a segment starting after {@code to} was indexed, i.e.
+     *         no later recording can extend the range
+     */
+    private boolean collectSegments(String streamId, long from, long to, List<RecordedSegment> segments) {
+        long firstHour = recordingService.getBucketStart(from);
+        for (long hour = firstHour; hour <= to; hour += HOUR_MS) {
+            Path indexFile = indexFile(streamId, hour);
+            if (!Files.exists(indexFile)) {
+                if (hour == firstHour) {
+                    addLeadIn(streamId, from, segments);
+                }
+                continue;
+            }
+            try (RecordingIndex index = RecordingIndex.openForRead(indexFile)) {
+                long i = 0;
+                if (segments.isEmpty()) {
+                    // Seek: the keyframe at or before "from", then back to its segment's first entry
+                    long floor = index.floor(from);
+                    if (floor < 0 && hour == firstHour) {
+                        addLeadIn(streamId, from, segments);
+                    }
+                    i = Math.max(0, floor);
+                    while (i > 0 && (index.flags(i) & RecordingIndex.FLAG_SEGMENT_START) == 0) {
+                        i--;
+                    }
+                }
+                for (long n = index.count(); i < n; i++) {
+                    if ((index.flags(i) & RecordingIndex.FLAG_SEGMENT_START) == 0) {
+                        continue;
+                    }
+                    long startedAt = index.timestamp(i);
+                    if (startedAt > to) {
+                        return true;
+                    }
+                    segments.add(new RecordedSegment(index.segment(i), startedAt));
+                }
+            } catch (IOException e) {
+                log.warn("[{}] Could not read recording index {}: {}", streamId, indexFile, e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the last segment of the hour before {@code from}'s bucket if it
+     * started recently enough to still be running at {@code from}; segments
+     * are filed under the hour they start in, so one can span the boundary.
+     */
+    private void addLeadIn(String streamId, long from, List<RecordedSegment> segments) {
+        Path indexFile = indexFile(streamId, recordingService.getBucketStart(from) - HOUR_MS);
+        if (!Files.exists(indexFile)) {
+            return;
+        }
+        try (RecordingIndex index = RecordingIndex.openForRead(indexFile)) {
+            long i = index.count() - 1;
+            while (i >= 0 && (index.flags(i) & RecordingIndex.FLAG_SEGMENT_START) == 0) {
+                i--;
+            }
+            if (i >= 0 && from - index.timestamp(i) <= maxGapMs()) {
+                segments.add(new RecordedSegment(index.segment(i), index.timestamp(i)));
+            }
+        } catch (IOException e) {
+            log.warn("[{}] Could not read recording index {}: {}", streamId, indexFile, e.getMessage());
+        }
+    }
+
+    private Path indexFile(String streamId, long hour) {
+        return recordingService.getBucketDir(streamId, hour).resolve(RecordingIndex.FILE_NAME);
+    }
+
+    /**
+     * A larger gap than this between segment starts means the recorder was down.
+     */
+    private long maxGapMs() {
+        return segmentSeconds * 1000L * 3 / 2;
+    }
+
+    private byte[] render(List<RecordedSegment> segments, long from) {
+        long nominalMs = segmentSeconds * 1000L;
+        long maxGapMs = maxGapMs();
+        long[] durations = new long[segments.size()];
+        boolean[] discontinuous = new boolean[segments.size()];
+        long longest = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            long duration = nominalMs;
+            if (i + 1 < segments.size()) {
+                long gap = segments.get(i + 1).startedAt - segments.get(i).startedAt;
+                if (gap > 0 && gap <= maxGapMs) {
+                    duration = gap;
+                } else {
+                    discontinuous[i + 1] = true;
+                }
+            }
+            durations[i] = duration;
+            longest = Math.max(longest, duration);
+        }
+
+        StringBuilder playlist = new StringBuilder(64 + segments.size() * 64);
+        playlist.append("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-PLAYLIST-TYPE:VOD\n");
+        playlist.append("#EXT-X-TARGETDURATION:").append((longest + 999) / 1000).append('\n');
+        playlist.append("#EXT-X-MEDIA-SEQUENCE:0\n");
+        long offsetMs = Math.max(0, from - segments.get(0).startedAt);
+        playlist.append("#EXT-X-START:TIME-OFFSET=").append(seconds(offsetMs)).append(",PRECISE=YES\n");
+        for (int i = 0; i < segments.size(); i++) {
+            RecordedSegment segment = segments.get(i);
+            if (discontinuous[i]) {
+                playlist.append("#EXT-X-DISCONTINUITY\n");
+            }
+            if (i == 0 || discontinuous[i]) {
+                playlist.append("#EXT-X-PROGRAM-DATE-TIME:").append(Instant.ofEpochMilli(segment.startedAt))
+                        .append('\n');
+            }
+            playlist.append("#EXTINF:").append(seconds(durations[i])).append(",\n");
+            playlist.append("recording/").append(segment.segment).append(".ts\n");
+        }
+        playlist.append("#EXT-X-ENDLIST\n");
+        return playlist.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String seconds(long millis) {
+        return String.format(Locale.ROOT, "%.3f", millis / 1000.0);
+    }
+
+    /**
+     * Archive file of a recorded segment, or null if it does not exist.
+     */
+    public Path getSegmentFile(String streamId, long segment) {
+        Path file = recordingService.getSegmentPath(streamId, segment);
+        return Files.isRegularFile(file) ? file : null;
+    }
+
+    record RecordedSegment(long segment, long startedAt) {
+    }
+
+    /**
+     * @param complete whether the range ends before the newest indexed
+     *                 segment, so the playlist can no longer change
+     */
+    public record Playlist(byte[] body, boolean complete) {
+    }
+}
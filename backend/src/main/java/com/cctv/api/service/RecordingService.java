@@ -0,0 +1,632 @@
+package com.cctv.api.service;
+
+import com.cctv.api.model.Camera;
+import com.cctv.api.model.NVR;
+import com.cctv.api.model.StreamPriority;
+import com.cctv.api.repository.CameraRepository;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+/**
+ * Continuous recording of cameras flagged {@code recording} in the database.
+ * One stream-copy FFmpeg process per camera cuts wall-clock aligned MPEG-TS
+ * segments into {@code <recording.root.dir>/<streamId>/<yyyyMMdd>/<HH>/<epochSecond>.ts}
+ * and reports each finished segment over a loopback socket. A single indexer
+ * thread then appends the segment and its keyframes to the hour's
+ * {@link RecordingIndex}.
+ * <p>
+ * Recorders share the FFmpeg CPU budget with live sessions but may hold at
+ * most recording.budget.share of it, and only a few are started per pass, so
+ * enabling recording on many cameras cannot starve live viewers or hit every
+ * NVR at once. Finished hours are deleted past recording.retention.hours or,
+ * oldest first across all cameras, while the archive exceeds
+ * recording.max.bytes.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class RecordingService {
+
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final DateTimeFormatter HOUR_FORMAT = DateTimeFormatter.ofPattern("HH");
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+    private static final String KEY_PREFIX = "rec_";
+    private static final String SEGMENT_EXTENSION = ".ts";
+    private static final int MAX_LIST_LINE = 256;
+
+    private final CameraRepository cameraRepository;
+    private final NvrService nvrService;
+    private final StreamCostBudget costBudget;
+    private final RtspSessionLimiter rtspLimiter;
+    private final FFmpegProcessSupervisor supervisor;
+    private final LoopbackIngestServer loopback;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Recorder> recorders = new ConcurrentHashMap<>();
+    private final Map<String, Long> retryAfter = new ConcurrentHashMap<>();
+    // Bytes on disk per hour bucket, oldest first; guarded by itself
+    private final NavigableMap<Bucket, Long> bucketBytes = new TreeMap<>();
+    // Indexer thread state
+    private final Map<String, OpenIndex> openIndexes = new HashMap<>();
+    private final ByteBuffer scanBuffer = ByteBuffer.allocateDirect(MpegTsKeyframeScanner.PACKET_SIZE * 512);
+    private final ZoneId zone = ZoneId.systemDefault();
+    private ExecutorService indexer;
+
+    @Value("${recording.enabled:false}")
+    private boolean enabled;
+
+    @Value("${recording.root.dir:/tmp/cctv_recordings}")
+    private String rootDir;
+
+    @Value("${recording.segment.seconds:10}")
+    private int segmentSeconds;
+
+    @Value("${recording.retention.hours:168}")
+    private long retentionHours;
+
+    @Value("${recording.max.bytes:0}")
+    private long maxBytes;
+
+    @Value("${recording.max.writers:32}")
+    private int maxWriters;
+
+    @Value("${recording.budget.share:0.5}")
+    private double budgetShare;
+
+    @Value("${recording.starts.per.pass:4}")
+    private int startsPerPass;
+
+    @Value("${recording.restart.delay.seconds:10}")
+    private long restartDelaySeconds;
+
+    @Value("${hls.shutdown.timeout.seconds:10}")
+    private long shutdownTimeoutSeconds;
+
+    @PostConstruct
+    void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(Paths.get(rootDir));
+        loadBuckets();
+        indexer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "recording-indexer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Gauge.builder("recording.writers", recorders, Map::size).register(meterRegistry);
+        Gauge.builder("recording.bytes", this, RecordingService::getArchiveBytes).register(meterRegistry);
+        log.info("Recording enabled under {}: {}s segments, {}h retention, cap {} MB", rootDir, segmentSeconds,
+                retentionHours, maxBytes > 0 ? maxBytes / (1024 * 1024) : "none");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Directory of one hour of a camera's recording.
+     */
+    Path getBucketDir(String streamId, long timestampMs) {
+        ZonedDateTime time = Instant.ofEpochMilli(timestampMs).atZone(zone);
+        return Paths.get(rootDir, streamId, DAY_FORMAT.format(time), HOUR_FORMAT.format(time));
+    }
+
+    /**
+     * Start of the hour bucket holding {@code timestampMs}.
+     */
+    long getBucketStart(long timestampMs) {
+        return Instant.ofEpochMilli(timestampMs).atZone(zone).truncatedTo(ChronoUnit.HOURS).toInstant()
+                .toEpochMilli();
+    }
+
+    Path getSegmentPath(String streamId, long segment) {
+        return getBucketDir(streamId, segment * 1000).resolve(segment + SEGMENT_EXTENSION);
+    }
+
+    /**
+     * Starts recorders for newly flagged cameras (within the budget share and
+     * a few per pass), keeps hour directories ahead of running ones, and
+     * stops recorders of cameras no longer flagged.
+     */
+    @Scheduled(fixedDelayString = "${recording.reconcile.ms:10000}")
+    public void reconcile() {
+        if (!enabled) {
+            return;
+        }
+        Map<String, Camera> wanted = new HashMap<>();
+        for (Camera camera : cameraRepository.findByRecordingTrue()) {
+            if (camera.getNvrId() != null) {
+                int channel = camera.getChannel() != null ? camera.getChannel() : 1;
+                wanted.putIfAbsent(camera.getNvrId() + "_" + channel, camera);
+            }
+        }
+        recorders.forEach((streamId, recorder) -> {
+            if (!wanted.containsKey(streamId)) {
+                log.info("[{}] Recording no longer enabled, stopping recorder", streamId);
+                recorder.stop();
+            }
+        });
+
+        long now = System.currentTimeMillis();
+        int started = 0;
+        for (Map.Entry<String, Camera> entry : wanted.entrySet()) {
+            String streamId = entry.getKey();
+            if (recorders.containsKey(streamId)) {
+                prepareBuckets(streamId, now);
+                continue;
+            }
+            if (retryAfter.getOrDefault(streamId, 0L) > now) {
+                continue;
+            }
+            if (started >= startsPerPass) {
+                continue;
+            }
+            if (recorders.size() >= maxWriters) {
+                meterRegistry.counter("recording.deferred", "reason", "writers").increment();
+                continue;
+            }
+            int cost = costBudget.costOf(false, false);
+            if ((recorders.size() + 1) * cost > costBudget.getBudget() * budgetShare
+                    || !costBudget.tryReserve(KEY_PREFIX + streamId, cost)) {
+                meterRegistry.counter("recording.deferred", "reason", "budget").increment();
+                continue;
+            }
+            // A recorder holds its NVR session for good, so it never waits for one
+            if (!rtspLimiter.tryAcquire(KEY_PREFIX + streamId, List.of(streamId), StreamPriority.HIGH)) {
+                costBudget.release(KEY_PREFIX + streamId);
+                meterRegistry.counter("recording.deferred", "reason", "pulls").increment();
+                continue;
+            }
+            if (startRecorder(streamId, entry.getValue())) {
+                started++;
+            } else {
+                costBudget.release(KEY_PREFIX + streamId);
+                rtspLimiter.release(KEY_PREFIX + streamId);
+                retryAfter.put(streamId, now + restartDelaySeconds * 1000);
+            }
+        }
+    }
+
+    private boolean startRecorder(String streamId, Camera camera) {
+        String key = KEY_PREFIX + streamId;
+        Recorder recorder = new Recorder(streamId);
+        try {
+            NVR nvr = nvrService.getNvrById(camera.getNvrId());
+            String rtspUrl = nvrService.generateStreamUrl(nvr, camera.getChannel() != null ? camera.getChannel() : 1);
+            prepareBuckets(streamId, System.currentTimeMillis());
+            recorder.endpoint = loopback.open(key, recorder);
+
+            List<String> command = new ArrayList<>();
+            command.add("ffmpeg");
+            command.add("-nostats");
+            command.add("-rtsp_transport");
+            command.add("tcp");
+            command.add("-rtsp_flags");
+            command.add("prefer_tcp");
+            command.add("-stimeout");
+            command.add("5000000");
+            command.add("-i");
+            command.add(rtspUrl);
+            command.add("-map");
+            command.add("0:v:0");
+            command.add("-c:v");
+            command.add("copy");
+            command.add("-an");
+            // Labels the files with the camera; also how orphan reaping recognises the process
+            command.add("-metadata");
+            command.add("service_name=" + key);
+            command.add("-f");
+            command.add("segment");
+            command.add("-segment_format");
+            command.add("mpegts");
+            command.add("-segment_time");
+            command.add(String.valueOf(segmentSeconds));
+            // Cuts on wall-clock multiples, so no segment straddles an hour bucket
+            command.add("-segment_atclocktime");
+            command.add("1");
+            command.add("-strftime");
+            command.add("1");
+            // One "name,start,end" line per finished segment
+            command.add("-segment_list");
+            command.add(recorder.endpoint.getTcpUrl());
+            command.add("-segment_list_type");
+            command.add("csv");
+            command.add(Paths.get(rootDir, streamId, "%Y%m%d", "%H", "%s" + SEGMENT_EXTENSION).toString());
+
+            ProcessBuilder pb = new ProcessBuilder(command);
+            Path logFile = supervisor.redirectLog(key, pb);
+            Process process = pb.start();
+            recorder.process = process;
+            recorders.put(streamId, recorder);
+            costBudget.attachProcess(key, process.pid());
+            supervisor.supervise(key, process, logFile, recorder);
+            log.info("[{}] Recorder started (PID: {}, {} running)", streamId, process.pid(), recorders.size());
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.error("[{}] Failed to start recorder: {}", streamId, e.getMessage());
+            if (recorder.process != null) {
+                recorder.process.destroyForcibly();
+            }
+            recorders.remove(streamId, recorder);
+            if (recorder.endpoint != null) {
+                recorder.endpoint.close();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The segment muxer does not create directories, so the current and next
+     * hour's buckets are created ahead of it.
+     */
+    private void prepareBuckets(String streamId, long now) {
+        try {
+            Files.createDirectories(getBucketDir(streamId, now));
+            Files.createDirectories(getBucketDir(streamId, now + HOUR_MS));
+        } catch (IOException e) {
+            log.warn("[{}] Could not create recording directories: {}", streamId, e.getMessage());
+        }
+    }
+
+    /**
+     * Runs on the indexer thread for every finished segment.
+     */
+    void indexSegment(String streamId, String fileName, double start, double end, long reportedAt) {
+        long segment;
+        try {
+            segment = Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_EXTENSION.length()));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            log.warn("[{}] Unexpected recording segment name: {}", streamId, fileName);
+            return;
+        }
+        // The list line is written as the segment closes, so it started one duration ago
+        long startedAt = reportedAt - Math.round((end - start) * 1000);
+        Path file = getSegmentPath(streamId, segment);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            OpenIndex index = openIndex(streamId, file.getParent());
+            index.append(startedAt, segment, 0, RecordingIndex.FLAG_KEYFRAME | RecordingIndex.FLAG_SEGMENT_START);
+            MpegTsKeyframeScanner.scan(channel, scanBuffer, (offset, sinceMs) -> {
+                if (offset > 0) {
+                    index.append(sinceMs >= 0 ? startedAt + sinceMs : startedAt, segment, offset,
+                            RecordingIndex.FLAG_KEYFRAME);
+                }
+            });
+            addBucketBytes(new Bucket(getBucketStart(segment * 1000), streamId), channel.size());
+        } catch (IOException e) {
+            log.warn("[{}] Could not index recording segment {}: {}", streamId, file, e.getMessage());
+        }
+    }
+
+    private OpenIndex openIndex(String streamId, Path bucketDir) throws IOException {
+        OpenIndex open = openIndexes.get(streamId);
+        if (open != null && open.bucketDir.equals(bucketDir)) {
+            return open;
+        }
+        closeIndex(streamId);
+        open = new OpenIndex(bucketDir, RecordingIndex.openForAppend(bucketDir.resolve(RecordingIndex.FILE_NAME)));
+        openIndexes.put(streamId, open);
+        return open;
+    }
+
+    private void closeIndex(String streamId) {
+        OpenIndex open = openIndexes.remove(streamId);
+        if (open != null) {
+            try {
+                open.index.close();
+            } catch (IOException e) {
+                log.debug("[{}] Could not close recording index: {}", streamId, e.getMessage());
+            }
+        }
+    }
+
+    private void submitIndexTask(Runnable task) {
+        try {
+            indexer.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    /**
+     * Deletes finished hour buckets past the retention period, then the oldest
+     * ones across all cameras while the archive is over its size cap.
+     */
+    @Scheduled(fixedDelayString = "${recording.retention.check.ms:60000}")
+    public void enforceRetention() {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long cutoff = now - TimeUnit.HOURS.toMillis(retentionHours);
+        List<Bucket> expired = new ArrayList<>();
+        long freed = 0;
+        synchronized (bucketBytes) {
+            long total = getArchiveBytes();
+            Iterator<Map.Entry<Bucket, Long>> it = bucketBytes.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Bucket, Long> entry = it.next();
+                long bucketEnd = entry.getKey().hourStart + HOUR_MS;
+                boolean overCap = maxBytes > 0 && total > maxBytes;
+                // Buckets are ordered by hour; the first one to keep ends the scan
+                if (bucketEnd > now || (bucketEnd > cutoff && !overCap)) {
+                    break;
+                }
+                expired.add(entry.getKey());
+                total -= entry.getValue();
+                freed += entry.getValue();
+                it.remove();
+            }
+        }
+        if (expired.isEmpty()) {
+            return;
+        }
+        for (Bucket bucket : expired) {
+            Path dir = getBucketDir(bucket.streamId, bucket.hourStart);
+            deleteRecursively(dir);
+            try {
+                // Remove the day directory with its last hour
+                Files.deleteIfExists(dir.getParent());
+            } catch (IOException ignored) {
+                // Not empty yet
+            }
+        }
+        meterRegistry.counter("recording.retention.deleted.bytes").increment(freed);
+        log.info("Deleted {} recorded hours ({} MB)", expired.size(), freed / (1024 * 1024));
+    }
+
+    private static void deleteRecursively(Path dir) {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    log.warn("Could not delete {}: {}", path, e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Could not delete recording bucket {}: {}", dir, e.getMessage());
+        }
+    }
+
+    private void addBucketBytes(Bucket bucket, long bytes) {
+        synchronized (bucketBytes) {
+            bucketBytes.merge(bucket, bytes, Long::sum);
+        }
+    }
+
+    public long getArchiveBytes() {
+        synchronized (bucketBytes) {
+            long total = 0;
+            for (long bytes : bucketBytes.values()) {
+                total += bytes;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Sizes up the archive left by previous runs, one directory listing per
+     * hour bucket.
+     */
+    private void loadBuckets() throws IOException {
+        try (DirectoryStream<Path> streams = Files.newDirectoryStream(Paths.get(rootDir), Files::isDirectory)) {
+            for (Path streamDir : streams) {
+                String streamId = streamDir.getFileName().toString();
+                try (DirectoryStream<Path> days = Files.newDirectoryStream(streamDir, Files::isDirectory)) {
+                    for (Path dayDir : days) {
+                        loadDay(streamId, dayDir);
+                    }
+                }
+            }
+        }
+        log.info("Recording archive holds {} hours, {} MB", bucketBytes.size(), getArchiveBytes() / (1024 * 1024));
+    }
+
+    private void loadDay(String streamId, Path dayDir) throws IOException {
+        LocalDate day;
+        try {
+            day = LocalDate.parse(dayDir.getFileName().toString(), DAY_FORMAT);
+        } catch (DateTimeParseException e) {
+            return;
+        }
+        try (DirectoryStream<Path> hours = Files.newDirectoryStream(dayDir, Files::isDirectory)) {
+            for (Path hourDir : hours) {
+                int hour;
+                try {
+                    hour = Integer.parseInt(hourDir.getFileName().toString());
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                long size = 0;
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(hourDir)) {
+                    for (Path file : files) {
+                        size += Files.size(file);
+                    }
+                }
+                long hourStart = day.atTime(hour, 0).atZone(zone).toInstant().toEpochMilli();
+                addBucketBytes(new Bucket(hourStart, streamId), size);
+            }
+        }
+    }
+
+    /**
+     * Stops every recorder under one hls.shutdown.timeout.seconds deadline.
+     * FFmpeg reports its last segment on the way out, so the indexer is
+     * drained after the processes have exited.
+     */
+    @PreDestroy
+    void shutdown() {
+        if (!enabled) {
+            return;
+        }
+        List<Recorder> stopping = new ArrayList<>(recorders.values());
+        CompletableFuture<?>[] exits = stopping.stream()
+                .map(Recorder::stop)
+                .toArray(CompletableFuture[]::new);
+        try {
+            CompletableFuture.allOf(exits).get(shutdownTimeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            stopping.forEach(recorder -> recorder.process.destroyForcibly());
+        } catch (InterruptedException e) {
+            stopping.forEach(recorder -> recorder.process.destroyForcibly());
+            Thread.currentThread().interrupt();
+        }
+        submitIndexTask(() -> new ArrayList<>(openIndexes.keySet()).forEach(this::closeIndex));
+        indexer.shutdown();
+        try {
+            indexer.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * One camera's recording process: reads its segment list from the
+     * loopback socket (selector thread) and its log and exit (supervisor
+     * thread).
+     */
+    private final class Recorder implements LoopbackIngestServer.Sink, FFmpegProcessSupervisor.Handler {
+        private final String streamId;
+        private final byte[] line = new byte[MAX_LIST_LINE];
+        private int lineLength;
+        private volatile Process process;
+        private volatile LoopbackIngestServer.Endpoint endpoint;
+        private volatile boolean stopping;
+
+        private Recorder(String streamId) {
+            this.streamId = streamId;
+        }
+
+        private CompletableFuture<Process> stop() {
+            stopping = true;
+            process.destroy();
+            return process.onExit();
+        }
+
+        @Override
+        public void onData(ByteBuffer data) {
+            while (data.hasRemaining()) {
+                byte b = data.get();
+                if (b == '\n') {
+                    onListLine(new String(line, 0, lineLength, StandardCharsets.US_ASCII));
+                    lineLength = 0;
+                } else if (b != '\r' && lineLength < MAX_LIST_LINE) {
+                    line[lineLength++] = b;
+                }
+            }
+        }
+
+        private void onListLine(String text) {
+            String[] fields = text.split(",");
+            if (fields.length < 3) {
+                return;
+            }
+            long reportedAt = System.currentTimeMillis();
+            try {
+                double start = Double.parseDouble(fields[1]);
+                double end = Double.parseDouble(fields[2]);
+                submitIndexTask(() -> indexSegment(streamId, fields[0], start, end, reportedAt));
+            } catch (NumberFormatException e) {
+                log.debug("[{}] Unparsable segment list line: {}", streamId, text);
+            }
+        }
+
+        @Override
+        public void onLogLine(String text) {
+            log.trace("[{}] Recorder: {}", streamId, text);
+            if (text.contains("Error") || text.contains("failed")) {
+                log.warn("[{}] Recorder FFmpeg Warning/Error: {}", streamId, text);
+            }
+        }
+
+        @Override
+        public void onExit(int exitCode) {
+            endpoint.close();
+            costBudget.release(KEY_PREFIX + streamId);
+            rtspLimiter.release(KEY_PREFIX + streamId);
+            recorders.remove(streamId, this);
+            submitIndexTask(() -> closeIndex(streamId));
+            if (stopping) {
+                log.info("[{}] Recorder stopped", streamId);
+                return;
+            }
+            retryAfter.put(streamId, System.currentTimeMillis() + restartDelaySeconds * 1000);
+            meterRegistry.counter("recording.restarts", "stream", streamId).increment();
+            log.warn("[{}] Recorder exited with code {}, restarting in {}s", streamId, exitCode,
+                    restartDelaySeconds);
+        }
+    }
+
+    private static final class OpenIndex {
+        private final Path bucketDir;
+        private final RecordingIndex index;
+        private long lastTimestamp;
+
+        private OpenIndex(Path bucketDir, RecordingIndex index) {
+            this.bucketDir = bucketDir;
+            this.index = index;
+            this.lastTimestamp = index.count() > 0 ? index.timestamp(index.count() - 1) : 0;
+        }
+
+        /**
+         * Appends with timestamps clamped to be non-decreasing, so the index
+         * stays searchable despite jitter in when segments are reported.
+         */
+        private void append(long timestamp, long segment, long offset, int flags) throws IOException {
+            lastTimestamp = Math.max(lastTimestamp, timestamp);
+            index.append(lastTimestamp, segment, offset, flags);
+        }
+    }
+
+    private record Bucket(long hourStart, String streamId) implements Comparable<Bucket> {
+        @Override
+        public int compareTo(Bucket other) {
+            int byHour = Long.compare(hourStart, other.hourStart);
+            return byHour != 0 ? byHour : streamId.compareTo(other.streamId);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package com.cctv.api.service;
+
+import com.cctv.api.exception.StreamCapacityException;
+import com.cctv.api.model.NVR;
+import com.cctv.api.model.StreamPriority;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-NVR budget of concurrent RTSP sessions, since many recorders refuse
+ * pulls beyond a fixed number without an error. Every pull this server opens
+ * (live sessions and their substream variant, mosaic tiles, recorders,
+ * thumbnail grabs) takes a lease here, and every path MediaMTX is pulling,
+ * as reported by its API every nvr.rtsp.poll.ms, counts as one more. A path
+ * MediaMTX already pulls can be read from its local re-stream instead, at no
+ * cost to the NVR. The limit is NVR.maxRtspSessions, else
+ * nvr.rtsp.max.sessions.default (0 = unlimited). Leases name the paths they
+ * pull (camera and main/substream), so the same inventory also keeps each
+ * site within its {@link SiteBandwidthBudget}. NVR limits are read from the
+ * database outside the monitor and refreshed every
+ * nvr.rtsp.limits.refresh.ms, so no request waits on a query held under it.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class RtspSessionLimiter {
+
+    private static final String SUBSTREAM_SUFFIX = "_sub";
+    private static final String MEDIAMTX_OWNER_PREFIX = "mediamtx:";
+
+    private final NvrService nvrService;
+    private final MediaMtxService mediaMtxService;
+    private final SiteBandwidthBudget bandwidth;
+    private final MeterRegistry meterRegistry;
+
+    // Paths pulled per owner (stream, recorder, ...)
+    private final Map<String, Lease> leases = new HashMap<>();
+    // Only ever loaded outside the monitor
+    private final Map<String, NvrLimits> nvrLimits = new ConcurrentHashMap<>();
+    // Paths MediaMTX pulls, with the bytes received at the last poll
+    private volatile Map<String, Long> restreamedPaths = Map.of();
+    private long lastPollAt;
+
+    @Value("${nvr.rtsp.max.sessions.default:0}")
+    private int defaultMaxSessions;
+
+    @Value("${nvr.rtsp.wait.ms:2000}")
+    private long waitMs;
+
+    @Value("${nvr.rtsp.retry.after.seconds:5}")
+    private long retryAfterSeconds;
+
+    @Value("${nvr.rtsp.poll.ms:5000}")
+    private long pollMs;
+
+    @Value("${mediamtx.rtsp.url:rtsp://mediamtx:8554}")
+    private String mediamtxRtspUrl;
+
+    /**
+     * Refreshes the paths MediaMTX is pulling, without blocking the
+     * scheduler. Reservations for paths that now show up are dropped, since
+     * the path itself is counted from here on.
+     */
+    @Scheduled(fixedDelayString = "${nvr.rtsp.poll.ms:5000}")
+    public void pollMediaMtx() {
+        if (mediaMtxService.isEnabled()) {
+            mediaMtxService.getReadyPaths().subscribe(this::onReadyPaths);
+        }
+    }
+
+    /**
+     * Reloads every NVR's session limit and site, picking up edits.
+     */
+    @Scheduled(fixedDelayString = "${nvr.rtsp.limits.refresh.ms:60000}")
+    public void refreshLimits() {
+        try {
+            Map<String, NvrLimits> loaded = new HashMap<>();
+            for (NVR nvr : nvrService.getAllNvrs()) {
+                loaded.put(nvr.getId(), limitsOf(nvr));
+            }
+            nvrLimits.putAll(loaded);
+            nvrLimits.keySet().retainAll(loaded.keySet());
+        } catch (RuntimeException e) {
+            log.warn("Could not refresh NVR RTSP session limits: {}", e.getMessage());
+        }
+    }
+
+    private synchronized void onReadyPaths(Map<String, Long> ready) {
+        long now = System.currentTimeMillis();
+        long elapsedMs = now - lastPollAt;
+        if (lastPollAt > 0 && elapsedMs > 0) {
+            ready.forEach((path, bytes) -> {
+                Long previous = restreamedPaths.get(path);
+                if (previous != null && bytes >= previous) {
+                    // Bits per millisecond are kilobits per second
+                    bandwidth.recordBitrate(path, (bytes - previous) * 8.0 / elapsedMs);
+                }
+            });
+        }
+        lastPollAt = now;
+        restreamedPaths = ready;
+        leases.entrySet().removeIf(entry -> entry.getValue().expiresAt > 0
+                && (entry.getValue().expiresAt < now
+                        || ready.containsKey(entry.getKey().substring(MEDIAMTX_OWNER_PREFIX.length()))));
+        publishUsage();
+        notifyAll();
+    }
+
+    /**
+     * Local MediaMTX URL of a path it is already pulling, or null.
+     */
+    public String getRestreamUrl(String nvrId, int channelId, boolean substream) {
+        String path = pathName(nvrId, channelId, substream);
+        if (!restreamedPaths.containsKey(path)) {
+            return null;
+        }
+        return (mediamtxRtspUrl.endsWith("/") ? mediamtxRtspUrl : mediamtxRtspUrl + "/") + path;
+    }
+
+    /**
+     * Leases the paths for the owner, all or nothing, if their NVRs have
+     * sessions and their sites bandwidth left. An owner holds at most one
+     * lease; an empty one pulls nothing.
+     */
+    public boolean tryAcquire(String owner, List<String> paths, StreamPriority priority) {
+        loadLimits(paths);
+        synchronized (this) {
+            return reserve(owner, paths, priority);
+        }
+    }
+
+    private boolean reserve(String owner, List<String> paths, StreamPriority priority) {
+        if (!hasRoom(paths, priority)) {
+            return false;
+        }
+        leases.put(owner, new Lease(paths, 0));
+        publishUsage();
+        return true;
+    }
+
+    /**
+     * Like {@link #tryAcquire}, but waits up to nvr.rtsp.wait.ms for pulls to
+     * be released.
+     *
+     * @throws StreamCapacityException if the paths did not fit in time
+     */
+    public void acquire(String owner, List<String> paths, StreamPriority priority) {
+        loadLimits(paths);
+        long deadline = System.currentTimeMillis() + waitMs;
+        synchronized (this) {
+            try {
+                while (!reserve(owner, paths, priority)) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw rejected(owner, paths);
+                    }
+                    wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StreamCapacityException("Interrupted waiting for an NVR RTSP session", retryAfterSeconds);
+            }
+        }
+    }
+
+    private StreamCapacityException rejected(String owner, List<String> paths) {
+        meterRegistry.counter("nvr.rtsp.sessions.limited", "result", "rejected").increment();
+        log.warn("[{}] NVR RTSP session limit or site bandwidth budget reached for {}", owner, paths);
+        return new StreamCapacityException("NVR RTSP session limit or site bandwidth budget reached",
+                retryAfterSeconds);
+    }
+
+    public synchronized void release(String owner) {
+        if (leases.remove(owner) != null) {
+            publishUsage();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Admits a client about to play a MediaMTX path, which makes MediaMTX
+     * pull it from the NVR unless it already does. When the main stream does
+     * not fit the NVR's sessions or the site's bandwidth, the client is
+     * switched to the substream if MediaMTX already pulls it or it fits. The
+     * new pull is reserved until the next poll counts it. Runs on request
+     * threads, so it never waits for a pull to be released.
+     *
+     * @return whether the client should play the substream
+     * @throws StreamCapacityException if neither stream fits right now
+     */
+    public boolean admitMediaMtxPath(String nvrId, int channelId, boolean substream) {
+        String path = pathName(nvrId, channelId, substream);
+        if (restreamedPaths.containsKey(path)) {
+            return substream;
+        }
+        loadLimits(List.of(path));
+        synchronized (this) {
+            if (isPending(path) || reserveMediaMtxPull(path)) {
+                return substream;
+            }
+            String subPath = pathName(nvrId, channelId, true);
+            if (!substream && (restreamedPaths.containsKey(subPath) || isPending(subPath)
+                    || reserveMediaMtxPull(subPath))) {
+                meterRegistry.counter("nvr.rtsp.sessions.limited", "result", "substream").increment();
+                log.info("[{}] No RTSP session or site bandwidth left for the main stream, serving the substream",
+                        path);
+                return true;
+            }
+            throw rejected(MEDIAMTX_OWNER_PREFIX + path, List.of(path));
+        }
+    }
+
+    private boolean isPending(String path) {
+        Lease pending = leases.get(MEDIAMTX_OWNER_PREFIX + path);
+        // Another client just started the same pull
+        return pending != null && pending.expiresAt >= System.currentTimeMillis();
+    }
+
+    private boolean reserveMediaMtxPull(String path) {
+        if (!hasRoom(List.of(path), StreamPriority.NORMAL)) {
+            return false;
+        }
+        leases.put(MEDIAMTX_OWNER_PREFIX + path, new Lease(List.of(path), expiresAt()));
+        publishUsage();
+        return true;
+    }
+
+    private long expiresAt() {
+        return System.currentTimeMillis() + 3 * pollMs;
+    }
+
+    /**
+     * Sessions in use and the limit per NVR, for the stats endpoint.
+     */
+    public synchronized Map<String, Usage> getUsage() {
+        Map<String, Integer> inUse = new HashMap<>();
+        for (String path : activePaths()) {
+            inUse.merge(nvrIdOf(path), 1, Integer::sum);
+        }
+        Map<String, Usage> usage = new TreeMap<>();
+        inUse.forEach((nvrId, sessions) -> usage.put(nvrId, new Usage(sessions, limitsOf(nvrId).maxSessions())));
+        return usage;
+    }
+
+    private boolean hasRoom(List<String> paths, StreamPriority priority) {
+        if (paths.isEmpty()) {
+            return true;
+        }
+        Map<String, Integer> sessions = new HashMap<>();
+        Map<String, Double> siteKbps = new HashMap<>();
+        for (String path : activePaths()) {
+            sessions.merge(nvrIdOf(path), 1, Integer::sum);
+            addKbps(siteKbps, path);
+        }
+        Map<String, Integer> addSessions = new HashMap<>();
+        Map<String, Double> addSiteKbps = new HashMap<>();
+        for (String path : paths) {
+            addSessions.merge(nvrIdOf(path), 1, Integer::sum);
+            addKbps(addSiteKbps, path);
+        }
+        for (Map.Entry<String, Integer> entry : addSessions.entrySet()) {
+            int limit = limitsOf(entry.getKey()).maxSessions();
+            if (limit > 0 && sessions.getOrDefault(entry.getKey(), 0) + entry.getValue() > limit) {
+                return false;
+            }
+        }
+        for (Map.Entry<String, Double> entry : addSiteKbps.entrySet()) {
+            if (!bandwidth.fits(entry.getKey(), siteKbps.getOrDefault(entry.getKey(), 0.0), entry.getValue(),
+                    priority)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void publishUsage() {
+        Map<String, Double> siteKbps = new HashMap<>();
+        for (String path : activePaths()) {
+            addKbps(siteKbps, path);
+        }
+        bandwidth.updateUsage(siteKbps);
+    }
+
+    private void addKbps(Map<String, Double> siteKbps, String path) {
+        String site = limitsOf(nvrIdOf(path)).site();
+        if (site != null) {
+            siteKbps.merge(site, bandwidth.estimateKbps(path), Double::sum);
+        }
+    }
+
+    /**
+     * Every path pulled from an NVR right now, once per pull.
+     */
+    private List<String> activePaths() {
+        List<String> paths = new ArrayList<>(restreamedPaths.keySet());
+        long now = System.currentTimeMillis();
+        for (Lease lease : leases.values()) {
+            if (lease.expiresAt == 0 || lease.expiresAt >= now) {
+                paths.addAll(lease.paths);
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Looks up the NVRs of these paths not seen since the last refresh; call
+     * before taking the monitor.
+     */
+    private void loadLimits(List<String> paths) {
+        for (String path : paths) {
+            nvrLimits.computeIfAbsent(nvrIdOf(path), id -> {
+                try {
+                    return limitsOf(nvrService.getNvrById(id));
+                } catch (RuntimeException e) {
+                    return new NvrLimits(defaultMaxSessions, null);
+                }
+            });
+        }
+    }
+
+    private NvrLimits limitsOf(NVR nvr) {
+        return new NvrLimits(nvr.getMaxRtspSessions() != null ? nvr.getMaxRtspSessions() : defaultMaxSessions,
+                nvr.getLocation());
+    }
+
+    /**
+     * Limits of a loaded NVR; paths of NVRs never loaded (e.g. pulled by
+     * MediaMTX on its own) get the default.
+     */
+    private NvrLimits limitsOf(String nvrId) {
+        return nvrLimits.getOrDefault(nvrId, new NvrLimits(defaultMaxSessions, null));
+    }
+
+    private static String nvrIdOf(String path) {
+        int separator = path.indexOf('_');
+        return separator > 0 ? path.substring(0, separator) : path;
+    }
+
+    /**
+     * MediaMTX path name, also how pulls are named here.
+     */
+    public static String pathName(String nvrId, int channelId, boolean substream) {
+        return nvrId + "_" + channelId + (substream ? SUBSTREAM_SUFFIX : "");
+    }
+
+    public record Usage(int sessions, int limit) {
+    }
+
+    private record Lease(List<String> paths, long expiresAt) {
+    }
+
+    private record NvrLimits(int maxSessions, String site) {
+    }
+}
@@ -0,0 +1,154 @@
+package com.cctv.api.service;
+
+import com.cctv.api.model.StreamPriority;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Uplink budget of each site (NVR.location): the bitrate of all pulls from
+ * its NVRs must stay under site.bandwidth.budget.kbps, or the site's entry in
+ * site.bandwidth.budgets ("Location:kbps,..."; 0 = unlimited). Pull bitrates
+ * are measured per path (camera and main/substream), from MediaMTX's received
+ * bytes and the progress of stream-copy sessions, and fall back to the
+ * hls.abr bandwidths until measured. Low-priority pulls only get
+ * site.bandwidth.low.priority.share of the budget. The pull inventory itself
+ * lives in {@link RtspSessionLimiter}, which publishes each site's usage here.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class SiteBandwidthBudget {
+
+    // Weight of a new sample in the per-path bitrate average
+    private static final double SMOOTHING = 0.2;
+    private static final String SUBSTREAM_SUFFIX = "_sub";
+
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, Double> measuredKbps = new ConcurrentHashMap<>();
+    private final Map<String, Double> usedKbps = new ConcurrentHashMap<>();
+    private final Map<String, Long> budgets = new HashMap<>();
+
+    @Value("${site.bandwidth.budget.kbps:0}")
+    private long defaultBudgetKbps;
+
+    @Value("${site.bandwidth.budgets:}")
+    private String siteBudgets;
+
+    @Value("${site.bandwidth.low.priority.share:0.8}")
+    private double lowPriorityShare;
+
+    @Value("${hls.abr.main.bandwidth:4000000}")
+    private long mainBandwidth;
+
+    @Value("${hls.abr.sub.bandwidth:600000}")
+    private long substreamBandwidth;
+
+    @PostConstruct
+    void init() {
+        for (String entry : siteBudgets.split(",")) {
+            int separator = entry.lastIndexOf(':');
+            if (separator <= 0) {
+                continue;
+            }
+            try {
+                budgets.put(entry.substring(0, separator).trim(),
+                        Long.parseLong(entry.substring(separator + 1).trim()));
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring invalid site bandwidth budget: {}", entry);
+            }
+        }
+        if (defaultBudgetKbps > 0 || !budgets.isEmpty()) {
+            log.info("Site uplink budgets: default {} kbps, per site {}", defaultBudgetKbps, budgets);
+        }
+    }
+
+    /**
+     * Feeds one bitrate observation of a path.
+     */
+    public void recordBitrate(String path, double kbps) {
+        if (kbps > 0) {
+            measuredKbps.merge(path, kbps, (old, sample) -> old + SMOOTHING * (sample - old));
+        }
+    }
+
+    /**
+     * Measured bitrate of a path, else the configured variant bandwidth.
+     */
+    public double estimateKbps(String path) {
+        Double measured = measuredKbps.get(path);
+        if (measured != null) {
+            return measured;
+        }
+        return (path.endsWith(SUBSTREAM_SUFFIX) ? substreamBandwidth : mainBandwidth) / 1000.0;
+    }
+
+    /**
+     * Whether {@code addKbps} more fits the site next to {@code currentKbps}.
+     * Counts a rejection per site and priority.
+     */
+    public boolean fits(String site, double currentKbps, double addKbps, StreamPriority priority) {
+        long budget = budgetOf(site);
+        if (budget <= 0 || addKbps <= 0) {
+            return true;
+        }
+        double share = priority == StreamPriority.LOW ? lowPriorityShare : 1.0;
+        if (currentKbps + addKbps <= budget * share) {
+            return true;
+        }
+        meterRegistry.counter("site.bandwidth.rejections", "site", site, "priority", priority.name()).increment();
+        log.debug("[{}] Site bandwidth budget reached: {} + {} of {} kbps ({})", site, (long) currentKbps,
+                (long) addKbps, budget, priority);
+        return false;
+    }
+
+    /**
+     * Replaces the pulled bitrate per site.
+     */
+    public void updateUsage(Map<String, Double> usage) {
+        for (Map.Entry<String, Double> entry : usage.entrySet()) {
+            if (usedKbps.put(entry.getKey(), entry.getValue()) == null) {
+                registerGauges(entry.getKey());
+            }
+        }
+        usedKbps.replaceAll((site, kbps) -> usage.getOrDefault(site, 0.0));
+    }
+
+    public Map<String, SiteUsage> getUsage() {
+        Map<String, SiteUsage> usage = new TreeMap<>();
+        usedKbps.forEach((site, kbps) -> usage.put(site, new SiteUsage(Math.round(kbps), budgetOf(site))));
+        return usage;
+    }
+
+    private long budgetOf(String site) {
+        return budgets.getOrDefault(site, defaultBudgetKbps);
+    }
+
+    private void registerGauges(String site) {
+        Gauge.builder("site.bandwidth.used", usedKbps, m -> m.getOrDefault(site, 0.0))
+                .tag("site", site)
+                .baseUnit("kilobits/s")
+                .register(meterRegistry);
+        Gauge.builder("site.bandwidth.budget", this, b -> b.budgetOf(site))
+                .tag("site", site)
+                .baseUnit("kilobits/s")
+                .register(meterRegistry);
+        Gauge.builder("site.bandwidth.utilization", usedKbps, m -> {
+            long budget = budgetOf(site);
+            return budget > 0 ? m.getOrDefault(site, 0.0) / budget : 0;
+        }).tag("site", site).register(meterRegistry);
+    }
+
+    public record SiteUsage(long usedKbps, long budgetKbps) {
+    }
+}
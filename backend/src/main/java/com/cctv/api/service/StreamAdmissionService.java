@@ -0,0 +1,116 @@
+package com.cctv.api.service;
+
+import com.cctv.api.exception.StreamCapacityException;
+import com.cctv.api.model.StreamPriority;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Admission control for HLS sessions. Hands out one slot per running session
+ * up to hls.max.concurrent.streams; when full, reclaims the least valuable
+ * session the request outranks and hands its slot straight to the request,
+ * otherwise waits a bounded time before rejecting with a retryable 503.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class StreamAdmissionService {
+
+    private static final Comparator<SessionSnapshot> LEAST_VALUABLE_FIRST = Comparator
+            .comparing(SessionSnapshot::priority)
+            .thenComparingInt(SessionSnapshot::viewers)
+            .thenComparingLong(SessionSnapshot::lastAccessed);
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${hls.max.concurrent.streams:50}")
+    private int maxConcurrentStreams;
+
+    @Value("${hls.admission.wait.ms:2000}")
+    private long admissionWaitMs;
+
+    @Value("${hls.admission.retry.after.seconds:5}")
+    private long retryAfterSeconds;
+
+    private Semaphore slots;
+
+    @PostConstruct
+    void init() {
+        // Fair, so queued requests are admitted in arrival order
+        slots = new Semaphore(maxConcurrentStreams, true);
+    }
+
+    public int getMaxStreams() {
+        return maxConcurrentStreams;
+    }
+
+    public int getAvailableSlots() {
+        return slots.availablePermits();
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * Acquires a session slot, preempting a running session through
+     * {@code preempt} if the request outranks it. {@code preempt} stops the
+     * session without releasing its slot, which passes to this request.
+     *
+     * @throws StreamCapacityException if no slot became available in time
+     */
+    public void admit(String streamId, StreamPriority priority, Collection<SessionSnapshot> running,
+            Predicate<String> preempt) {
+        if (slots.tryAcquire()) {
+            meterRegistry.counter("hls.admission", "result", "admitted").increment();
+            return;
+        }
+
+        Optional<SessionSnapshot> victim = running.stream()
+                .filter(s -> priority.outranks(s.priority()))
+                .min(LEAST_VALUABLE_FIRST);
+        if (victim.isPresent() && preempt.test(victim.get().streamId())) {
+            log.info("[{}] Preempted session {} (priority {}, {} viewers) for {} request",
+                    streamId, victim.get().streamId(), victim.get().priority(), victim.get().viewers(), priority);
+            meterRegistry.counter("hls.admission", "result", "preempted").increment();
+            return;
+        }
+
+        try {
+            if (slots.tryAcquire(admissionWaitMs, TimeUnit.MILLISECONDS)) {
+                meterRegistry.counter("hls.admission", "result", "queued").increment();
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        meterRegistry.counter("hls.admission", "result", "rejected").increment();
+        log.warn("[{}] Maximum concurrent streams ({}) reached and nothing could be freed",
+                streamId, maxConcurrentStreams);
+        throw new StreamCapacityException(
+                "Maximum concurrent streams limit reached: " + maxConcurrentStreams, retryAfterSeconds);
+    }
+
+    public void release() {
+        slots.release();
+    }
+
+    public record SessionSnapshot(
+            String streamId,
+            StreamPriority priority,
+            int viewers,
+            long lastAccessed) {
+    }
+}
@@ -0,0 +1,126 @@
+package com.cctv.api.service;
+
+import com.cctv.api.model.Camera;
+import com.cctv.api.repository.CameraRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Remembers what each camera's main stream carries (codec and resolution), as
+ * reported in FFmpeg's input banner, so a cold start can go straight to the
+ * right pipeline instead of discovering an incompatible codec the hard way.
+ * Cached in memory and persisted on the {@link Camera} entity, off the
+ * FFmpeg supervisor thread that reports it.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class StreamCapabilityService {
+
+    // e.g. "  Stream #0:0: Video: hevc (Main), yuvj420p(pc, bt709), 2560x1440, 25 fps"
+    private static final Pattern VIDEO_STREAM = Pattern.compile(
+            "Stream #\\d+:\\d+.*?: Video: (\\w+)[^,]*,.*?(\\d{2,5})x(\\d{2,5})");
+
+    private final CameraRepository cameraRepository;
+    private final Map<String, VideoStreamInfo> cache = new ConcurrentHashMap<>();
+    // One writer, so updates of a camera are persisted in the order seen
+    private ExecutorService writer;
+
+    @PostConstruct
+    void init() {
+        writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "stream-capability-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    void shutdown() {
+        writer.shutdown();
+    }
+
+    public Optional<VideoStreamInfo> get(String nvrId, int channelId) {
+        String key = key(nvrId, channelId);
+        VideoStreamInfo cached = cache.get(key);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        Optional<VideoStreamInfo> persisted = cameraRepository.findByNvrIdAndChannel(nvrId, channelId).stream()
+                .filter(cam -> cam.getVideoCodec() != null)
+                .findFirst()
+                .map(cam -> new VideoStreamInfo(cam.getVideoCodec(),
+                        cam.getVideoWidth() != null ? cam.getVideoWidth() : 0,
+                        cam.getVideoHeight() != null ? cam.getVideoHeight() : 0));
+        persisted.ifPresent(info -> cache.put(key, info));
+        return persisted;
+    }
+
+    /**
+     * Caches what the stream carries at once and persists changes in the
+     * background, so callers never wait on the database.
+     */
+    public void record(String nvrId, int channelId, VideoStreamInfo info) {
+        VideoStreamInfo previous = cache.put(key(nvrId, channelId), info);
+        if (info.equals(previous)) {
+            return;
+        }
+        log.info("[{}] Main stream is {} {}x{}", key(nvrId, channelId), info.codec(), info.width(), info.height());
+        writer.execute(() -> persist(nvrId, channelId, info));
+    }
+
+    private void persist(String nvrId, int channelId, VideoStreamInfo info) {
+        try {
+            List<Camera> cameras = cameraRepository.findByNvrIdAndChannel(nvrId, channelId);
+            for (Camera camera : cameras) {
+                camera.setVideoCodec(info.codec());
+                camera.setVideoWidth(info.width());
+                camera.setVideoHeight(info.height());
+            }
+            cameraRepository.saveAll(cameras);
+        } catch (RuntimeException e) {
+            log.warn("[{}] Could not persist stream capabilities: {}", key(nvrId, channelId), e.getMessage());
+        }
+    }
+
+    /**
+     * Parses a video stream line from FFmpeg's input banner, or returns null.
+     */
+    public static VideoStreamInfo parseBannerLine(String line) {
+        if (!line.contains("Video:")) {
+            return null;
+        }
+        Matcher m = VIDEO_STREAM.matcher(line);
+        if (!m.find()) {
+            return null;
+        }
+        return new VideoStreamInfo(m.group(1), Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)));
+    }
+
+    private String key(String nvrId, int channelId) {
+        return nvrId + "_" + channelId;
+    }
+
+    public record VideoStreamInfo(String codec, int width, int height) {
+
+        /**
+         * Whether the stream can be remuxed into HLS for browsers without
+         * re-encoding.
+         */
+        public boolean isCopyCompatible() {
+            return "h264".equalsIgnoreCase(codec);
+        }
+    }
+}
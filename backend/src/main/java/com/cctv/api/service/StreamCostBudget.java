@@ -0,0 +1,148 @@
+package com.cctv.api.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CPU budget for FFmpeg sessions, in percent of one core. A stream-copy
+ * session costs a couple of percent while a libx264 transcode costs most of
+ * a core, so admission is weighted by what each session actually does.
+ * With hls.cpu.budget.live enabled, sessions are charged the larger of their
+ * reservation and their usage measured from /proc.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class StreamCostBudget {
+
+    private final ProcResourceSampler procSampler;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Reservation> reservations = new ConcurrentHashMap<>();
+
+    @Value("${hls.cpu.budget.percent:0}")
+    private int configuredBudget;
+
+    @Value("${hls.cpu.budget.live:false}")
+    private boolean liveSampling;
+
+    @Value("${hls.cost.copy:2}")
+    private int copyCost;
+
+    @Value("${hls.cost.transcode:80}")
+    private int transcodeCost;
+
+    @Value("${hls.cost.transcode.substream:15}")
+    private int substreamTranscodeCost;
+
+    @Value("${hls.cost.mosaic.tile:8}")
+    private int mosaicTileCost;
+
+    private int budget;
+
+    @PostConstruct
+    void init() {
+        // Leave 20% of the machine for the JVM and everything else
+        budget = configuredBudget > 0 ? configuredBudget : Runtime.getRuntime().availableProcessors() * 80;
+        Gauge.builder("hls.cpu.budget", this, StreamCostBudget::getBudget).register(meterRegistry);
+        Gauge.builder("hls.cpu.load", this, StreamCostBudget::getLoad).register(meterRegistry);
+        log.info("HLS CPU budget: {}% of one core (live sampling: {})", budget, liveSampling);
+    }
+
+    public int costOf(boolean transcode, boolean substream) {
+        if (!transcode) {
+            return copyCost;
+        }
+        return substream ? substreamTranscodeCost : transcodeCost;
+    }
+
+    /**
+     * Composite session cost: decoding each tile's substream plus encoding
+     * the tiled output, charged as one 1080p transcode.
+     */
+    public int mosaicCost(int tiles) {
+        return transcodeCost + tiles * mosaicTileCost;
+    }
+
+    /**
+     * Main-stream transcode cost, scaled by resolution when the input has been
+     * probed (hls.cost.transcode is the 1080p cost).
+     */
+    public int transcodeCost(StreamCapabilityService.VideoStreamInfo input) {
+        if (input == null || input.width() <= 0 || input.height() <= 0) {
+            return transcodeCost;
+        }
+        double scale = (double) input.width() * input.height() / (1920 * 1080);
+        return Math.max(copyCost, (int) Math.round(transcodeCost * scale));
+    }
+
+    /**
+     * Sets the stream's reservation to {@code units} if the budget allows it.
+     * Re-reserving for an existing stream only charges the difference.
+     */
+    public synchronized boolean tryReserve(String streamId, int units) {
+        Reservation current = reservations.get(streamId);
+        double currentCharge = current != null ? charge(streamId, current) : 0;
+        if (getLoad() - currentCharge + units > budget) {
+            log.debug("[{}] CPU budget exhausted: load {}/{}, requested {}", streamId, (int) getLoad(), budget,
+                    units);
+            return false;
+        }
+        if (current != null) {
+            current.units = units;
+        } else {
+            reservations.put(streamId, new Reservation(units));
+        }
+        return true;
+    }
+
+    public void attachProcess(String streamId, long pid) {
+        Reservation reservation = reservations.get(streamId);
+        if (reservation != null) {
+            reservation.pid = pid;
+            procSampler.track(streamId, pid);
+        }
+    }
+
+    public synchronized void release(String streamId) {
+        Reservation reservation = reservations.remove(streamId);
+        if (reservation != null && reservation.pid > 0) {
+            procSampler.untrack(streamId);
+        }
+    }
+
+    public int getBudget() {
+        return budget;
+    }
+
+    public double getLoad() {
+        double load = 0;
+        for (Map.Entry<String, Reservation> entry : reservations.entrySet()) {
+            load += charge(entry.getKey(), entry.getValue());
+        }
+        return load;
+    }
+
+    private double charge(String streamId, Reservation reservation) {
+        if (liveSampling && reservation.pid > 0) {
+            return Math.max(reservation.units, procSampler.getCpuPercent(streamId));
+        }
+        return reservation.units;
+    }
+
+    private static final class Reservation {
+        private volatile int units;
+        private volatile long pid;
+
+        private Reservation(int units) {
+            this.units = units;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.cctv.api.service;
+
+import com.cctv.api.exception.StreamCapacityException;
+import com.cctv.api.repository.UserAuditRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Starts the streams operators are likely to open before a shift begins, so
+ * their tiles show video at once instead of after an FFmpeg cold start.
+ * Popularity comes from the audit log: distinct users per day who watched a
+ * camera live in the same hour of the week over the last
+ * prewarm.history.days. The top prewarm.top.k cameras are started at low
+ * priority, only while admission keeps prewarm.reserve.slots free and only
+ * for cameras known to be stream-copy compatible, and held until
+ * prewarm.hold.minutes after the shift starts. Each start waits for
+ * admission and FFmpeg, so the pass runs on its own thread rather than the
+ * scheduler's.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class StreamPrewarmService {
+
+    private final UserAuditRepository auditRepository;
+    private final HlsService hlsService;
+    private final StreamAdmissionService admission;
+    private final StreamCapabilityService capabilities;
+    private final MeterRegistry meterRegistry;
+
+    // Start of the last shift pre-warmed, so each shift is handled once
+    private volatile LocalDateTime lastShift;
+    private ExecutorService prewarmer;
+
+    @Value("${prewarm.enabled:false}")
+    private boolean enabled;
+
+    @Value("${prewarm.shift.hours:8,16,0}")
+    private int[] shiftHours;
+
+    @Value("${prewarm.lead.minutes:5}")
+    private long leadMinutes;
+
+    @Value("${prewarm.hold.minutes:15}")
+    private long holdMinutes;
+
+    @Value("${prewarm.history.days:28}")
+    private int historyDays;
+
+    @Value("${prewarm.top.k:16}")
+    private int topK;
+
+    @Value("${prewarm.min.viewers:2}")
+    private int minViewers;
+
+    @Value("${prewarm.reserve.slots:5}")
+    private int reserveSlots;
+
+    @PostConstruct
+    void init() {
+        prewarmer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "hls-prewarm");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    void shutdown() {
+        prewarmer.shutdownNow();
+    }
+
+    @Scheduled(cron = "0 * * * * *")
+    public void checkShift() {
+        if (!enabled) {
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime shift = nextShiftStart(now);
+        if (shift == null || shift.equals(lastShift) || now.isBefore(shift.minusMinutes(leadMinutes))) {
+            return;
+        }
+        lastShift = shift;
+        prewarmer.execute(() -> {
+            try {
+                prewarm(shift, now);
+            } catch (RuntimeException e) {
+                log.error("Pre-warm for shift at {} failed", shift, e);
+            }
+        });
+    }
+
+    private LocalDateTime nextShiftStart(LocalDateTime now) {
+        LocalDateTime next = null;
+        LocalDateTime today = now.truncatedTo(ChronoUnit.DAYS);
+        for (int hour : shiftHours) {
+            LocalDateTime start = today.plusHours(hour);
+            if (!start.isAfter(now)) {
+                start = start.plusDays(1);
+            }
+            if (next == null || start.isBefore(next)) {
+                next = start;
+            }
+        }
+        return next;
+    }
+
+    private void prewarm(LocalDateTime shift, LocalDateTime now) {
+        // A few extra candidates make up for cameras skipped below
+        List<Object[]> candidates = auditRepository.findTopLiveViewsInHour(shift.minusDays(historyDays),
+                shift.getDayOfWeek().getValue(), shift.getHour(), topK * 2);
+        long holdMs = Duration.between(now, shift.plusMinutes(holdMinutes)).toMillis();
+        int started = 0;
+        for (Object[] row : candidates) {
+            if (started >= topK || ((Number) row[2]).intValue() < minViewers) {
+                break;
+            }
+            String nvrId = (String) row[0];
+            int channelId = ((Number) row[1]).intValue();
+            if (!capabilities.get(nvrId, channelId).map(StreamCapabilityService.VideoStreamInfo::isCopyCompatible)
+                    .orElse(false)) {
+                // Unknown or incompatible input would cost a transcode nobody asked for yet
+                meterRegistry.counter("hls.prewarm", "result", "skipped").increment();
+                continue;
+            }
+            if (!hlsService.isStreamActive(nvrId, channelId) && admission.getAvailableSlots() <= reserveSlots) {
+                log.info("Pre-warm for shift at {} stopped after {} streams: admission reserve reached", shift,
+                        started);
+                meterRegistry.counter("hls.prewarm", "result", "rejected").increment();
+                break;
+            }
+            try {
+                hlsService.prewarmStream(nvrId, channelId, holdMs);
+                meterRegistry.counter("hls.prewarm", "result", "started").increment();
+                started++;
+            } catch (StreamCapacityException e) {
+                log.info("Pre-warm for shift at {} stopped after {} streams: {}", shift, started, e.getMessage());
+                meterRegistry.counter("hls.prewarm", "result", "rejected").increment();
+                break;
+            } catch (RuntimeException e) {
+                log.warn("[{}] Pre-warm failed: {}", hlsService.getStreamId(nvrId, channelId), e.getMessage());
+                meterRegistry.counter("hls.prewarm", "result", "failed").increment();
+            }
+        }
+        log.info("Pre-warmed {} of {} candidate streams for shift at {}", started, candidates.size(), shift);
+    }
+}
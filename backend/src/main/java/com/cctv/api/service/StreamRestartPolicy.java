@@ -0,0 +1,137 @@
+package com.cctv.api.service;
+
+import com.cctv.api.exception.StreamCapacityException;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Per-camera restart pacing. Consecutive failures are retried after a jittered
+ * exponential backoff; after hls.watchdog.breaker.failures of them the
+ * camera's breaker opens and its stream may not be started again until
+ * hls.watchdog.breaker.open.seconds have passed. The next start is a trial:
+ * one more failure reopens the breaker, a stable run resets it.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class StreamRestartPolicy {
+
+    private final MeterRegistry meterRegistry;
+    private final Map<String, CameraState> states = new ConcurrentHashMap<>();
+
+    @Value("${hls.watchdog.backoff.initial.ms:1000}")
+    private long initialBackoffMs;
+
+    @Value("${hls.watchdog.backoff.max.ms:60000}")
+    private long maxBackoffMs;
+
+    @Value("${hls.watchdog.breaker.failures:5}")
+    private int breakerFailures;
+
+    @Value("${hls.watchdog.breaker.open.seconds:300}")
+    private long breakerOpenSeconds;
+
+    @Value("${hls.watchdog.stable.seconds:60}")
+    private long stableSeconds;
+
+    public enum Decision {
+        /** Backoff has elapsed; restart now. */
+        RESTART,
+        /** Leave the stream alone for now. */
+        WAIT,
+        /** Too many failures; stop the stream. */
+        TRIP
+    }
+
+    /**
+     * Rejects a start while the camera's breaker is open.
+     *
+     * @throws StreamCapacityException with the remaining open time as Retry-After
+     */
+    public void checkStartAllowed(String streamId) {
+        CameraState state = states.get(streamId);
+        if (state == null) {
+            return;
+        }
+        long remainingMs = state.openUntil - System.currentTimeMillis();
+        if (remainingMs > 0) {
+            throw new StreamCapacityException("Stream " + streamId + " is failing repeatedly and is paused",
+                    Math.max(1, remainingMs / 1000));
+        }
+    }
+
+    /**
+     * Called on every watchdog pass that finds the stream stalled or crashed.
+     * The first call for a failure schedules the backoff; later calls report
+     * whether it has elapsed.
+     */
+    public synchronized Decision onFailure(String streamId) {
+        long now = System.currentTimeMillis();
+        CameraState state = states.computeIfAbsent(streamId, id -> new CameraState());
+        if (state.pendingRestart) {
+            if (now < state.nextAttemptAt) {
+                return Decision.WAIT;
+            }
+            state.pendingRestart = false;
+            return Decision.RESTART;
+        }
+
+        state.failures++;
+        if (state.failures >= breakerFailures) {
+            // Half-open on the next start: one more failure trips it again
+            state.failures = breakerFailures - 1;
+            state.openUntil = now + breakerOpenSeconds * 1000;
+            meterRegistry.counter("hls.watchdog.breaker.trips", "stream", streamId).increment();
+            log.warn("[{}] Circuit breaker opened for {}s after repeated failures", streamId, breakerOpenSeconds);
+            return Decision.TRIP;
+        }
+        long delay = backoffMs(state.failures);
+        state.nextAttemptAt = now + delay;
+        state.pendingRestart = true;
+        log.info("[{}] Failure #{}, restarting in {} ms", streamId, state.failures, delay);
+        return Decision.WAIT;
+    }
+
+    /**
+     * Called on watchdog passes that find the stream producing segments. A
+     * pending restart is called off; once the stream has run for
+     * hls.watchdog.stable.seconds since it was (re)started, its failure
+     * history is forgotten.
+     */
+    public synchronized void onHealthy(String streamId, long launchedAt) {
+        CameraState state = states.get(streamId);
+        if (state == null) {
+            return;
+        }
+        state.pendingRestart = false;
+        long now = System.currentTimeMillis();
+        if (now - launchedAt >= stableSeconds * 1000 && now >= state.openUntil) {
+            states.remove(streamId);
+            log.debug("[{}] Stream stable again, failure history cleared", streamId);
+        }
+    }
+
+    /**
+     * Exponential backoff with jitter: the delay is drawn from [d/2, d] where
+     * d doubles per failure up to the maximum, so cameras failing together do
+     * not restart in lockstep.
+     */
+    private long backoffMs(int failures) {
+        long ceiling = Math.min(maxBackoffMs, initialBackoffMs << Math.min(failures - 1, 20));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    private static final class CameraState {
+        private int failures;
+        private boolean pendingRestart;
+        private long nextAttemptAt;
+        private volatile long openUntil;
+    }
+}
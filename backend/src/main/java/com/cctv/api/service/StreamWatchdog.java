@@ -0,0 +1,137 @@
+package com.cctv.api.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Periodically checks every running HLS session for a dead FFmpeg process
+ * or one that is alive but has stopped producing segments (e.g. the NVR went
+ * quiet without closing the connection), and restarts it as
+ * {@link StreamRestartPolicy} allows. Restarts and stops wait for FFmpeg to
+ * exit, so they run on the watchdog's own threads rather than the shared
+ * scheduler. Healthy remuxing sessions report their bitrate to the
+ * {@link SiteBandwidthBudget}.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class StreamWatchdog {
+
+    private final HlsService hlsService;
+    private final HlsOutputWatcher outputWatcher;
+    private final StreamRestartPolicy restartPolicy;
+    private final FFmpegTelemetryService telemetry;
+    private final SiteBandwidthBudget bandwidth;
+    private final MeterRegistry meterRegistry;
+    // Streams with a restart or stop in flight, left alone until it is done
+    private final Set<String> recovering = ConcurrentHashMap.newKeySet();
+    private ExecutorService recoverer;
+
+    @Value("${hls.watchdog.stall.seconds:20}")
+    private long stallSeconds;
+
+    @Value("${hls.watchdog.threads:4}")
+    private int recoveryThreads;
+
+    @PostConstruct
+    void init() {
+        AtomicInteger threads = new AtomicInteger();
+        recoverer = Executors.newFixedThreadPool(recoveryThreads, r -> {
+            Thread thread = new Thread(r, "hls-watchdog-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    void shutdown() {
+        recoverer.shutdownNow();
+    }
+
+    @Scheduled(fixedDelayString = "${hls.watchdog.interval.ms:2000}")
+    public void checkSessions() {
+        for (Map.Entry<String, FFmpegSession> entry : hlsService.getActiveSessions().entrySet()) {
+            String streamId = entry.getKey();
+            FFmpegSession session = entry.getValue();
+            if (!session.isStarted() || recovering.contains(streamId)) {
+                continue;
+            }
+            try {
+                check(streamId, session);
+            } catch (RuntimeException e) {
+                log.error("[{}] Watchdog check failed", streamId, e);
+            }
+        }
+    }
+
+    private void check(String streamId, FFmpegSession session) {
+        boolean crashed = !session.isProcessAlive();
+        boolean stalled = outputWatcher.getSegmentLagMillis(streamId) > stallSeconds * 1000;
+        if (!crashed && !stalled) {
+            restartPolicy.onHealthy(streamId, session.getLaunchedAt());
+            recordBitrate(streamId, session);
+            return;
+        }
+
+        switch (restartPolicy.onFailure(streamId)) {
+            case RESTART -> {
+                String cause = crashed ? "crashed" : "stalled";
+                log.warn("[{}] FFmpeg {}, restarting", streamId, cause);
+                meterRegistry.counter("hls.watchdog.restarts", "stream", streamId, "cause", cause).increment();
+                recover(streamId, () -> hlsService.restartSession(streamId, session));
+            }
+            case TRIP -> recover(streamId, () -> {
+                if (hlsService.stopSession(streamId, session)) {
+                    log.warn("[{}] Stopped failing stream until its circuit breaker closes", streamId);
+                }
+            });
+            case WAIT -> {
+                // Backoff still running
+            }
+        }
+    }
+
+    private void recover(String streamId, Runnable action) {
+        if (!recovering.add(streamId)) {
+            return;
+        }
+        try {
+            recoverer.execute(() -> {
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    log.error("[{}] Watchdog recovery failed", streamId, e);
+                } finally {
+                    recovering.remove(streamId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            recovering.remove(streamId);
+        }
+    }
+
+    private void recordBitrate(String streamId, FFmpegSession session) {
+        FFmpegProgress progress = telemetry.getProgress(streamId);
+        if (progress == null || !session.isRemuxing()) {
+            return;
+        }
+        // The first output is the input stream itself; a variant comes second
+        bandwidth.recordBitrate(session.isSubstreamInput() ? streamId + "_sub" : streamId,
+                progress.getBitrateKbps());
+    }
+}
@@ -0,0 +1,339 @@
+package com.cctv.api.service;
+
+import com.cctv.api.model.StreamPriority;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Camera thumbnails for the dashboard tiles, as small JPEGs held in a
+ * byte-bounded cache. A thumbnail is decoded from the first (key)frame of a
+ * segment the server already has: the live session's newest segment, else
+ * the newest recorded one. Serving a location page therefore opens no RTSP
+ * connections. Decoding runs in the background; a request that misses the
+ * cache starts it and gets no thumbnail until it is done. Only a camera with
+ * neither segment gets a one-shot grab from its
+ * substream, which runs in the background, a few at a time and at most once
+ * per thumbnail.grab.min.interval.seconds per camera.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ThumbnailService {
+
+    private static final int MAX_JPEG_BYTES = 512 * 1024;
+    private static final long DECODE_TIMEOUT_SECONDS = 5;
+    private static final long GRAB_TIMEOUT_SECONDS = 15;
+    private static final long RECENT_RECORDING_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final String GRAB_OWNER_PREFIX = "thumb_";
+
+    private final HlsService hlsService;
+    private final HlsSegmentStore segmentStore;
+    private final RecordingService recordingService;
+    private final RecordingPlaybackService playbackService;
+    private final NvrService nvrService;
+    private final RtspSessionLimiter rtspLimiter;
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, Long> lastGrabAt = new ConcurrentHashMap<>();
+    // Streams with a local decode queued or running
+    private final Set<String> decoding = ConcurrentHashMap.newKeySet();
+    private Cache<String, Thumbnail> cache;
+    private Semaphore decoders;
+    private ThreadPoolExecutor decoder;
+    private ThreadPoolExecutor grabber;
+
+    @Value("${thumbnail.ttl.seconds:60}")
+    private long ttlSeconds;
+
+    @Value("${thumbnail.cache.max.bytes:16777216}")
+    private long maxCacheBytes;
+
+    @Value("${thumbnail.width:320}")
+    private int width;
+
+    @Value("${thumbnail.max.concurrent:2}")
+    private int maxConcurrent;
+
+    @Value("${thumbnail.grab.enabled:true}")
+    private boolean grabEnabled;
+
+    @Value("${thumbnail.grab.min.interval.seconds:300}")
+    private long grabMinIntervalSeconds;
+
+    @PostConstruct
+    void init() {
+        cache = Caffeine.newBuilder()
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .maximumWeight(maxCacheBytes)
+                .weigher((String key, Thumbnail thumbnail) -> thumbnail.jpeg().length)
+                .build();
+        decoders = new Semaphore(maxConcurrent);
+        // A full queue rejects the decode; the tile asks again shortly
+        decoder = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(64), r -> {
+                    Thread thread = new Thread(r, "thumbnail-decode");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        // A full queue drops the grab; the tile asks again after the TTL
+        grabber = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(64), r -> {
+            Thread thread = new Thread(r, "thumbnail-grab");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    @PreDestroy
+    void shutdown() {
+        decoder.shutdownNow();
+        grabber.shutdownNow();
+    }
+
+    public long getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    /**
+     * Cached thumbnail, else null while one is decoded from a local segment in
+     * the background (or, with no local segment, grabbed).
+     */
+    public Thumbnail getThumbnail(String nvrId, int channelId) {
+        String streamId = hlsService.getStreamId(nvrId, channelId);
+        Thumbnail thumbnail = cache.getIfPresent(streamId);
+        if (thumbnail != null) {
+            meterRegistry.counter("thumbnail.requests", "result", "hit").increment();
+            return thumbnail;
+        }
+        meterRegistry.counter("thumbnail.requests", "result", "miss").increment();
+        scheduleDecode(nvrId, channelId, streamId);
+        return null;
+    }
+
+    private void scheduleDecode(String nvrId, int channelId, String streamId) {
+        if (!decoding.add(streamId)) {
+            return;
+        }
+        try {
+            decoder.execute(() -> {
+                try {
+                    Thumbnail thumbnail = fromLocalSegment(nvrId, channelId, streamId);
+                    if (thumbnail != null) {
+                        cache.put(streamId, thumbnail);
+                    } else if (grabEnabled && !hlsService.isStreamActive(nvrId, channelId)) {
+                        // A running session's segments will do once it has written one
+                        scheduleGrab(nvrId, channelId, streamId);
+                    }
+                } finally {
+                    decoding.remove(streamId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            decoding.remove(streamId);
+        }
+    }
+
+    private Thumbnail fromLocalSegment(String nvrId, int channelId, String streamId) {
+        try {
+            byte[] jpeg = null;
+            if (segmentStore.isEnabled()) {
+                HlsSegmentStore.SegmentResource segment = segmentStore.openLatestSegment(streamId);
+                if (segment != null) {
+                    try (InputStream in = segment.getInputStream()) {
+                        jpeg = decode(List.of("-f", "mpegts", "-i", "pipe:0"), in, DECODE_TIMEOUT_SECONDS);
+                    }
+                }
+            } else if (hlsService.isStreamActive(nvrId, channelId)) {
+                Path segment = latestLiveSegment(hlsService.getHlsPlaylistPath(nvrId, channelId).getParent());
+                if (segment != null) {
+                    jpeg = decodeFile(segment);
+                }
+            }
+            if (jpeg == null && recordingService.isEnabled()) {
+                Path segment = latestRecordedSegment(streamId);
+                if (segment != null) {
+                    jpeg = decodeFile(segment);
+                }
+            }
+            return jpeg != null ? new Thumbnail(jpeg, System.currentTimeMillis()) : null;
+        } catch (IOException e) {
+            log.debug("[{}] Could not decode thumbnail from local segment: {}", streamId, e.getMessage());
+            return null;
+        }
+    }
+
+    private static Path latestLiveSegment(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return null;
+        }
+        // Segments appear under their final name only once complete (temp_file)
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> HlsOutputWatcher.isMainSegment(file.getFileName().toString()))
+                    .max(Comparator.comparingLong(file -> file.toFile().lastModified()))
+                    .orElse(null);
+        }
+    }
+
+    private Path latestRecordedSegment(String streamId) {
+        long now = System.currentTimeMillis();
+        List<RecordingPlaybackService.RecordedSegment> segments =
+                playbackService.findSegments(streamId, now - RECENT_RECORDING_MS, now);
+        if (segments.isEmpty()) {
+            return null;
+        }
+        // The newest segment is still being written, but it starts on a keyframe
+        return playbackService.getSegmentFile(streamId, segments.get(segments.size() - 1).segment());
+    }
+
+    private byte[] decodeFile(Path segment) throws IOException {
+        return decode(List.of("-f", "mpegts", "-i", segment.toString()), null, DECODE_TIMEOUT_SECONDS);
+    }
+
+    private void scheduleGrab(String nvrId, int channelId, String streamId) {
+        long now = System.currentTimeMillis();
+        long minInterval = TimeUnit.SECONDS.toMillis(grabMinIntervalSeconds);
+        Long scheduled = lastGrabAt.compute(streamId,
+                (id, last) -> last != null && now - last < minInterval ? last : now);
+        if (scheduled != now) {
+            return;
+        }
+        grabber.execute(() -> grab(nvrId, channelId, streamId));
+    }
+
+    private void grab(String nvrId, int channelId, String streamId) {
+        String owner = GRAB_OWNER_PREFIX + streamId;
+        String url = rtspLimiter.getRestreamUrl(nvrId, channelId, true);
+        // A thumbnail never waits for, or takes, an NVR's last sessions from live viewers
+        if (url == null && !rtspLimiter.tryAcquire(owner,
+                List.of(RtspSessionLimiter.pathName(nvrId, channelId, true)), StreamPriority.LOW)) {
+            meterRegistry.counter("thumbnail.grabs", "result", "limited").increment();
+            return;
+        }
+        try {
+            if (url == null) {
+                url = nvrService.generateStreamUrl(nvrService.getNvrById(nvrId), channelId, true);
+            }
+            List<String> input = List.of("-rtsp_transport", "tcp", "-stimeout", "5000000", "-i", url);
+            byte[] jpeg = decode(input, null, GRAB_TIMEOUT_SECONDS);
+            if (jpeg != null) {
+                cache.put(streamId, new Thumbnail(jpeg, System.currentTimeMillis()));
+                meterRegistry.counter("thumbnail.grabs", "result", "ok").increment();
+                return;
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("[{}] Thumbnail grab failed: {}", streamId, e.getMessage());
+        } finally {
+            rtspLimiter.release(owner);
+        }
+        meterRegistry.counter("thumbnail.grabs", "result", "failed").increment();
+    }
+
+    /**
+     * Runs FFmpeg on the given input and returns the first video frame as a
+     * scaled JPEG, or null if none could be produced in time.
+     *
+     * @param stdin fed to FFmpeg's standard input, if not null
+     */
+    private byte[] decode(List<String> input, InputStream stdin, long timeoutSeconds) throws IOException {
+        try {
+            if (!decoders.tryAcquire(timeoutSeconds, TimeUnit.SECONDS)) {
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        Process process = null;
+        try {
+            List<String> command = new ArrayList<>();
+            command.add("ffmpeg");
+            command.add("-hide_banner");
+            command.add("-loglevel");
+            command.add("error");
+            command.addAll(input);
+            command.add("-frames:v");
+            command.add("1");
+            command.add("-vf");
+            command.add("scale=" + width + ":-2");
+            command.add("-q:v");
+            command.add("5");
+            command.add("-f");
+            command.add("image2");
+            command.add("-c:v");
+            command.add("mjpeg");
+            command.add("pipe:1");
+
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+            process = pb.start();
+            // Bounds the read below too, e.g. a camera that connects but never sends a frame
+            CompletableFuture.delayedExecutor(timeoutSeconds, TimeUnit.SECONDS).execute(process::destroyForcibly);
+            if (stdin == null) {
+                process.getOutputStream().close();
+            } else {
+                // One scaled JPEG fits in the pipe buffer, so stdout can wait until stdin is written
+                try (OutputStream out = process.getOutputStream()) {
+                    stdin.transferTo(out);
+                } catch (IOException e) {
+                    // FFmpeg stops reading once it has its frame
+                }
+            }
+            ByteArrayOutputStream jpeg = new ByteArrayOutputStream(32 * 1024);
+            try (InputStream out = process.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = out.read(buffer)) != -1) {
+                    if (jpeg.size() + read > MAX_JPEG_BYTES) {
+                        return null;
+                    }
+                    jpeg.write(buffer, 0, read);
+                }
+            }
+            if (process.waitFor() != 0 || jpeg.size() == 0) {
+                return null;
+            }
+            return jpeg.toByteArray();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            decoders.release();
+            if (process != null && process.isAlive()) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    public record Thumbnail(byte[] jpeg, long capturedAt) {
+
+        public String eTag() {
+            return "\"thumb-" + capturedAt + "-" + jpeg.length + "\"";
+        }
+    }
+}
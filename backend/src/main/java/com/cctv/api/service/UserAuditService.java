@@ -44,19 +44,41 @@ public class UserAuditService {
     }
 
     public void logNvrAccess(String username, String nvrId, String ipAddress) {
-        log.info("[logNvrAccess] Logging NVR access for user: {}, NVR: {}, IP: {}",
-                username, nvrId, ipAddress);
+        logNvrAccess(username, nvrId, null, ipAddress);
+    }
+
+    /**
+     * Logs a live view of one camera; the channel feeds stream pre-warming.
+     */
+    public void logNvrAccess(String username, String nvrId, Integer channelId, String ipAddress) {
+        log.info("[logNvrAccess] Logging NVR access for user: {}, NVR: {}, Channel: {}, IP: {}",
+                username, nvrId, channelId, ipAddress);
 
         UserAudit audit = new UserAudit();
         audit.setUsername(username);
         audit.setAction(AuditAction.VIEW_NVR);
         audit.setNvrId(nvrId);
+        audit.setChannelId(channelId);
         audit.setIpAddress(ipAddress);
 
         userAuditRepository.save(audit);
         log.debug("[logNvrAccess] NVR access audit entry created for user: {}", username);
     }
 
+    public void logClipExport(String username, String nvrId, String ipAddress) {
+        log.info("[logClipExport] Logging clip export for user: {}, NVR: {}, IP: {}",
+                username, nvrId, ipAddress);
+
+        UserAudit audit = new UserAudit();
+        audit.setUsername(username);
+        audit.setAction(AuditAction.EXPORT_CLIP);
+        audit.setNvrId(nvrId);
+        audit.setIpAddress(ipAddress);
+
+        userAuditRepository.save(audit);
+        log.debug("[logClipExport] Clip export audit entry created for user: {}", username);
+    }
+
     public List<UserAudit> getUserAuditHistory(String username) {
         log.info("[getUserAuditHistory] Fetching audit history for user: {}", username);
         List<UserAudit> history = userAuditRepository.findByUsernameOrderByTimestampDesc(username);
@@ -0,0 +1,178 @@
+package com.cctv.api.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Per-stream viewer leases. A lease is taken when a viewer fetches the
+ * playlist and renewed on every segment fetch; expiry is driven by a
+ * {@link DelayQueue}, so the idle listener fires within one lease period of
+ * the last viewer leaving without scanning every session.
+ */
+@Slf4j
+@Service
+public class ViewerLeaseTracker {
+
+    private final Map<String, Map<String, Lease>> leases = new ConcurrentHashMap<>();
+    private final DelayQueue<Expiry> expiries = new DelayQueue<>();
+    private volatile Consumer<String> idleListener = streamId -> {
+    };
+    private Thread expiryThread;
+
+    @Value("${hls.viewer.lease.seconds:10}")
+    private long leaseSeconds;
+
+    @PostConstruct
+    void init() {
+        expiryThread = new Thread(this::processExpiries, "hls-viewer-leases");
+        expiryThread.setDaemon(true);
+        expiryThread.start();
+    }
+
+    @PreDestroy
+    void shutdown() {
+        expiryThread.interrupt();
+    }
+
+    /**
+     * Called with the stream ID when its last lease expires.
+     */
+    public void onStreamIdle(Consumer<String> listener) {
+        this.idleListener = listener;
+    }
+
+    /**
+     * Takes or renews the viewer's lease on a stream.
+     */
+    public void touch(String streamId, String viewerKey) {
+        touch(streamId, viewerKey, TimeUnit.SECONDS.toMillis(leaseSeconds));
+    }
+
+    public void touch(String streamId, String viewerKey, long durationMs) {
+        long expiresAt = System.currentTimeMillis() + durationMs;
+        Map<String, Lease> viewers = leases.get(streamId);
+        Lease lease = viewers != null ? viewers.get(viewerKey) : null;
+        if (lease != null) {
+            // Renewals only move the deadline; the queue entry is re-armed lazily on expiry
+            lease.expiresAt = Math.max(lease.expiresAt, expiresAt);
+            return;
+        }
+        leases.compute(streamId, (id, current) -> {
+            Map<String, Lease> map = current != null ? current : new ConcurrentHashMap<>();
+            Lease existing = map.get(viewerKey);
+            if (existing != null) {
+                existing.expiresAt = Math.max(existing.expiresAt, expiresAt);
+            } else {
+                Lease created = new Lease(streamId, viewerKey, expiresAt);
+                map.put(viewerKey, created);
+                expiries.put(new Expiry(created, expiresAt));
+                log.debug("[{}] Viewer {} joined ({} watching)", streamId, viewerKey, map.size());
+            }
+            return map;
+        });
+    }
+
+    public int getViewerCount(String streamId) {
+        Map<String, Lease> viewers = leases.get(streamId);
+        return viewers != null ? viewers.size() : 0;
+    }
+
+    public Map<String, Integer> getViewerCounts() {
+        Map<String, Integer> counts = new HashMap<>();
+        leases.forEach((streamId, viewers) -> counts.put(streamId, viewers.size()));
+        return counts;
+    }
+
+    /**
+     * Drops all leases of a stream that was stopped for another reason.
+     */
+    public void clear(String streamId) {
+        Map<String, Lease> viewers = leases.remove(streamId);
+        if (viewers != null) {
+            viewers.values().forEach(lease -> lease.released = true);
+        }
+    }
+
+    private void processExpiries() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Expiry expiry;
+            try {
+                expiry = expiries.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Lease lease = expiry.lease;
+            if (lease.released) {
+                continue;
+            }
+            long expiresAt = lease.expiresAt;
+            if (expiresAt > expiry.deadline) {
+                expiries.put(new Expiry(lease, expiresAt));
+                continue;
+            }
+            expire(lease);
+        }
+    }
+
+    private void expire(Lease lease) {
+        boolean[] idle = new boolean[1];
+        leases.computeIfPresent(lease.streamId, (id, viewers) -> {
+            if (viewers.remove(lease.viewerKey, lease)) {
+                log.debug("[{}] Viewer {} lease expired ({} watching)", id, lease.viewerKey, viewers.size());
+                idle[0] = viewers.isEmpty();
+            }
+            return viewers.isEmpty() ? null : viewers;
+        });
+        if (idle[0]) {
+            try {
+                idleListener.accept(lease.streamId);
+            } catch (RuntimeException e) {
+                log.error("[{}] Idle listener failed", lease.streamId, e);
+            }
+        }
+    }
+
+    private static final class Lease {
+        private final String streamId;
+        private final String viewerKey;
+        private volatile long expiresAt;
+        private volatile boolean released;
+
+        private Lease(String streamId, String viewerKey, long expiresAt) {
+            this.streamId = streamId;
+            this.viewerKey = viewerKey;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Expiry implements Delayed {
+        private final Lease lease;
+        private final long deadline;
+
+        private Expiry(Lease lease, long deadline) {
+            this.lease = lease;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(deadline, ((Expiry) other).deadline);
+        }
+    }
+}
@@ -9,7 +9,12 @@ CREATE TABLE IF NOT EXISTS cameras (
     channel INT,
     stream_uri VARCHAR(2048),
     profile_token VARCHAR(512),
-    status VARCHAR(50)
+    status VARCHAR(50),
+    pinned BOOLEAN DEFAULT FALSE,
+    recording BOOLEAN DEFAULT FALSE,
+    video_codec VARCHAR(50),
+    video_width INT,
+    video_height INT
 );
 
 CREATE TABLE IF NOT EXISTS users (
@@ -35,6 +40,7 @@ CREATE TABLE IF NOT EXISTS nvrs (
     password VARCHAR(255),
     type VARCHAR(255),
     channels INT DEFAULT 32,
+    max_rtsp_sessions INT,
     onvif_port VARCHAR(255),
     onvif_username VARCHAR(255),
     onvif_password VARCHAR(255)
@@ -46,10 +52,13 @@ CREATE TABLE IF NOT EXISTS user_audit (
     action VARCHAR(50) NOT NULL,
     location VARCHAR(255),
     nvr_id VARCHAR(255),
+    channel_id INT,
     timestamp TIMESTAMP NOT NULL,
     ip_address VARCHAR(50)
 );
 
+CREATE INDEX IF NOT EXISTS idx_user_audit_action_timestamp ON user_audit (action, timestamp);
+
 CREATE TABLE IF NOT EXISTS user_assigned_cameras (
     user_id VARCHAR(255) NOT NULL,
     camera_id VARCHAR(255) NOT NULL,
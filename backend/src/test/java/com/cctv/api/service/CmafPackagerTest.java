@@ -0,0 +1,204 @@
+package com.cctv.api.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class CmafPackagerTest {
+
+    private static final int TIMESCALE = 1000;
+    private static final long KEYFRAME_FLAGS = 0x02000000L;
+    private static final long DELTA_FLAGS = 0x01010000L;
+
+    private CmafPackager packager;
+
+    @BeforeEach
+    void setUp() {
+        packager = new CmafPackager("cam", mock(HlsOutputWatcher.class), 2.0, 0.5, 5);
+        packager.onConnected();
+    }
+
+    @Test
+    void reassemblesBoxesSplitAcrossReads() {
+        byte[] fragment = concat(moof(500, KEYFRAME_FLAGS), mdat(new byte[100]));
+        byte[] stream = concat(init(), fragment);
+
+        // One byte per read splits every header and body
+        for (byte b : stream) {
+            packager.onData(ByteBuffer.wrap(new byte[] {b}));
+        }
+
+        String playlist = playlist();
+        assertTrue(playlist.contains(
+                "#EXT-X-PART:DURATION=0.500,URI=\"" + partName(playlist, 0) + "\",INDEPENDENT=YES"));
+        assertArrayEquals(fragment, packager.awaitResource(partName(playlist, 0)).join());
+        assertNotNull(packager.awaitResource(initName(playlist)).join());
+    }
+
+    @Test
+    void framesLargesizeBoxes() {
+        byte[] payload = new byte[300];
+        payload[299] = 42;
+        byte[] fragment = concat(moof(500, KEYFRAME_FLAGS), largeMdat(payload));
+        byte[] stream = concat(init(), fragment);
+
+        // Split right after the 8-byte compact header so the largesize arrives in a later read
+        int split = init().length + moof(500, KEYFRAME_FLAGS).length + 8;
+        packager.onData(ByteBuffer.wrap(stream, 0, split));
+        packager.onData(ByteBuffer.wrap(stream, split, stream.length - split));
+
+        String playlist = playlist();
+        assertArrayEquals(fragment, packager.awaitResource(partName(playlist, 0)).join());
+    }
+
+    @Test
+    void startsSegmentsOnlyOnKeyframesPastTheTarget() {
+        packager.onData(ByteBuffer.wrap(init()));
+        // A delta frame before the first keyframe cannot open a segment
+        part(DELTA_FLAGS);
+        part(KEYFRAME_FLAGS);
+        part(DELTA_FLAGS);
+        part(DELTA_FLAGS);
+        part(DELTA_FLAGS);
+        // Target reached, but a delta frame must stay in the open segment
+        part(DELTA_FLAGS);
+        assertFalse(playlist().contains("#EXTINF"));
+
+        part(KEYFRAME_FLAGS);
+
+        String playlist = playlist();
+        assertTrue(playlist.contains("#EXTINF:2.500,\nseg_"));
+        assertEquals(1, count(playlist, "#EXTINF"));
+        // Sequences 0..4 went into segment 0, sequence 5 opens segment 1
+        assertTrue(playlist.contains("part_" + token(playlist) + "_5.m4s\",INDEPENDENT=YES"));
+        assertTrue(playlist.contains("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"part_" + token(playlist) + "_6.m4s\""));
+        assertEquals(5 * fragmentSize(),
+                packager.awaitResource("seg_" + token(playlist) + "_0.m4s").join().length);
+    }
+
+    @Test
+    void blockingReloadWaitsForTheRequestedPart() {
+        packager.onData(ByteBuffer.wrap(init()));
+        part(KEYFRAME_FLAGS);
+
+        CompletableFuture<byte[]> secondPart = packager.awaitPlaylist(0L, 1);
+        CompletableFuture<byte[]> wholeSegment = packager.awaitPlaylist(0L, null);
+        CompletableFuture<byte[]> nextSegment = packager.awaitPlaylist(1L, 0);
+        assertTrue(packager.awaitPlaylist(0L, 0).isDone());
+        assertThrows(IllegalArgumentException.class, () -> packager.awaitPlaylist(3L, 0));
+        String hint = partName(playlist(), 1);
+        CompletableFuture<byte[]> hinted = packager.awaitResource(hint);
+        assertFalse(secondPart.isDone());
+        assertFalse(hinted.isDone());
+
+        part(DELTA_FLAGS);
+        assertTrue(secondPart.isDone());
+        assertTrue(new String(secondPart.join(), StandardCharsets.UTF_8).contains(hint));
+        assertEquals(fragmentSize(), hinted.join().length);
+        assertFalse(wholeSegment.isDone());
+
+        part(DELTA_FLAGS);
+        part(DELTA_FLAGS);
+        assertFalse(wholeSegment.isDone());
+        assertFalse(nextSegment.isDone());
+
+        part(KEYFRAME_FLAGS);
+        assertTrue(wholeSegment.isDone());
+        assertTrue(nextSegment.isDone());
+        assertTrue(new String(wholeSegment.join(), StandardCharsets.UTF_8).contains("#EXTINF:2.000,"));
+    }
+
+    // ---- helpers ----
+
+    private void part(long sampleFlags) {
+        packager.onData(ByteBuffer.wrap(concat(moof(500, sampleFlags), mdat(new byte[16]))));
+    }
+
+    private static int fragmentSize() {
+        return moof(500, KEYFRAME_FLAGS).length + mdat(new byte[16]).length;
+    }
+
+    private String playlist() {
+        return new String(packager.awaitPlaylist(null, null).join(), StandardCharsets.UTF_8);
+    }
+
+    private static String token(String playlist) {
+        Matcher m = Pattern.compile("init_([^_]+)_").matcher(playlist);
+        assertTrue(m.find(), playlist);
+        return m.group(1);
+    }
+
+    private static String initName(String playlist) {
+        return "init_" + token(playlist) + "_0.mp4";
+    }
+
+    private static String partName(String playlist, long sequence) {
+        return "part_" + token(playlist) + "_" + sequence + ".m4s";
+    }
+
+    private static int count(String text, String needle) {
+        return text.split(Pattern.quote(needle), -1).length - 1;
+    }
+
+    private static byte[] init() {
+        byte[] mdhd = fullBox("mdhd", 0, uint32(0), uint32(0), uint32(TIMESCALE), uint32(0), new byte[4]);
+        byte[] trak = box("trak", box("mdia", mdhd));
+        byte[] trex = fullBox("trex", 0, uint32(1), uint32(1), uint32(0), uint32(0), uint32(DELTA_FLAGS));
+        return concat(box("ftyp", "iso6".getBytes(StandardCharsets.US_ASCII), uint32(0)),
+                box("moov", trak, box("mvex", trex)));
+    }
+
+    /** One-sample fragment; trun carries the duration and the first sample's flags. */
+    private static byte[] moof(long duration, long sampleFlags) {
+        byte[] tfhd = fullBox("tfhd", 0, uint32(1));
+        byte[] trun = fullBox("trun", 0x000104, uint32(1), uint32(sampleFlags), uint32(duration));
+        return box("moof", box("traf", tfhd, trun));
+    }
+
+    private static byte[] mdat(byte[] payload) {
+        return box("mdat", payload);
+    }
+
+    private static byte[] largeMdat(byte[] payload) {
+        ByteBuffer buf = ByteBuffer.allocate(16 + payload.length);
+        buf.putInt(1).put("mdat".getBytes(StandardCharsets.US_ASCII)).putLong(16L + payload.length).put(payload);
+        return buf.array();
+    }
+
+    private static byte[] fullBox(String type, int flags, byte[]... fields) {
+        return box(type, concat(uint32(flags & 0xFFFFFF)), concat(fields));
+    }
+
+    private static byte[] box(String type, byte[]... children) {
+        byte[] body = concat(children);
+        ByteBuffer buf = ByteBuffer.allocate(8 + body.length);
+        buf.putInt(8 + body.length).put(type.getBytes(StandardCharsets.US_ASCII)).put(body);
+        return buf.array();
+    }
+
+    private static byte[] uint32(long value) {
+        return ByteBuffer.allocate(4).putInt((int) value).array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,124 @@
+package com.cctv.api.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Supervises 500 stub processes ({@code sleep}) the way FFmpeg sessions are
+ * supervised, and reports the threads and resident memory that costs. The
+ * JDK keeps one "process reaper" thread per child regardless; the supervisor
+ * itself must not add threads per process. A benchmark, so only run with
+ * {@code mvn test -Pbenchmark}.
+ */
+@Slf4j
+@Tag("benchmark")
+@EnabledOnOs(OS.LINUX)
+class FFmpegProcessSupervisorTest {
+
+    private static final int SESSIONS = 500;
+    private static final String REAPER_THREAD = "process reaper";
+
+    @TempDir
+    Path tempDir;
+
+    private FFmpegProcessSupervisor supervisor;
+    private final List<Process> processes = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        supervisor = new FFmpegProcessSupervisor();
+        ReflectionTestUtils.setField(supervisor, "hlsRootDir", tempDir.resolve("hls").toString());
+        ReflectionTestUtils.setField(supervisor, "logDir", tempDir.resolve("logs").toString());
+        ReflectionTestUtils.setField(supervisor, "reapTimeoutSeconds", 5L);
+        ReflectionTestUtils.setField(supervisor, "maxLogBytes", 1024L * 1024);
+        ReflectionTestUtils.setField(supervisor, "pollIntervalMs", 500L);
+        supervisor.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        processes.forEach(Process::destroyForcibly);
+        supervisor.shutdown();
+    }
+
+    @Test
+    void supervisesManyProcessesWithoutAThreadEach() throws Exception {
+        CountDownLatch exited = new CountDownLatch(SESSIONS);
+        FFmpegProcessSupervisor.Handler handler = new FFmpegProcessSupervisor.Handler() {
+            @Override
+            public void onLogLine(String line) {
+            }
+
+            @Override
+            public void onExit(int exitCode) {
+                exited.countDown();
+            }
+        };
+        List<ProcessBuilder> builders = new ArrayList<>();
+        List<Path> logFiles = new ArrayList<>();
+        for (int i = 0; i < SESSIONS; i++) {
+            ProcessBuilder pb = new ProcessBuilder("sleep", "60");
+            logFiles.add(supervisor.redirectLog("bench_" + i, pb));
+            builders.add(pb);
+        }
+
+        int threadsBefore = Thread.getAllStackTraces().size();
+        long rssBefore = residentKb();
+        for (ProcessBuilder pb : builders) {
+            processes.add(pb.start());
+        }
+        int threadsStarted = nonReaperThreads();
+
+        long started = System.nanoTime();
+        for (int i = 0; i < SESSIONS; i++) {
+            supervisor.supervise("bench_" + i, processes.get(i), logFiles.get(i), handler);
+        }
+        long superviseMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        int threadsSupervised = nonReaperThreads();
+        long rssSupervised = residentKb();
+
+        log.info("{} supervised processes: {} threads ({} before), {} besides process reapers; "
+                + "RSS {} KB -> {} KB ({} KB per process); supervise() took {} ms in total",
+                SESSIONS, Thread.getAllStackTraces().size(), threadsBefore, threadsSupervised, rssBefore,
+                rssSupervised, (rssSupervised - rssBefore) / SESSIONS, superviseMs);
+
+        processes.forEach(Process::destroy);
+        assertTrue(exited.await(30, TimeUnit.SECONDS), "every exit is delivered");
+        // Thread pools elsewhere in the JVM may start a thread meanwhile, but not one per process
+        assertTrue(threadsSupervised - threadsStarted <= 2,
+                "supervision added " + (threadsSupervised - threadsStarted) + " threads");
+    }
+
+    private static int nonReaperThreads() {
+        return (int) Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> !thread.getName().startsWith(REAPER_THREAD))
+                .count();
+    }
+
+    private static long residentKb() throws IOException {
+        for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("\\D", ""));
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,59 @@
+package com.cctv.api.service;
+
+import com.cctv.api.constant.AppConstants;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HlsOutputWatcherTest {
+
+    private static final String STREAM = "nvr1_1";
+
+    @TempDir
+    Path streamDir;
+
+    private HlsOutputWatcher watcher;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        watcher = new HlsOutputWatcher();
+        watcher.init();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        watcher.shutdown();
+    }
+
+    @Test
+    void lostEventsInvalidateThePlaylistVersion() throws IOException {
+        watcher.watch(STREAM, streamDir);
+        long initial = watcher.getPlaylistVersion(STREAM);
+
+        overflow();
+
+        // Only the variant may have changed: new version, but not playable yet
+        long afterVariant = watcher.getPlaylistVersion(STREAM);
+        assertTrue(afterVariant > initial);
+        assertFalse(watcher.awaitPlaylist(STREAM).isDone());
+
+        Files.write(streamDir.resolve(AppConstants.HLS_PLAYLIST_NAME), new byte[0]);
+        overflow();
+
+        assertTrue(watcher.getPlaylistVersion(STREAM) > afterVariant);
+        assertTrue(watcher.awaitPlaylist(STREAM).isDone());
+    }
+
+    private void overflow() {
+        ReflectionTestUtils.invokeMethod(watcher, "onEventsLost", STREAM, streamDir);
+    }
+}
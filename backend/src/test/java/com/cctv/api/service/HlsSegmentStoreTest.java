@@ -0,0 +1,91 @@
+package com.cctv.api.service;
+
+import com.cctv.api.exception.StreamCapacityException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class HlsSegmentStoreTest {
+
+    private static final String STREAM = "nvr1_1";
+    private static final int GRANULE = 256 * 1024;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private HlsSegmentStore store;
+
+    @BeforeEach
+    void setUp() {
+        store = new HlsSegmentStore(meterRegistry, mock(HlsOutputWatcher.class));
+        ReflectionTestUtils.setField(store, "storeMode", "memory");
+        ReflectionTestUtils.setField(store, "segmentsPerStream", 8);
+        ReflectionTestUtils.setField(store, "maxBytes", 2L * GRANULE);
+        ReflectionTestUtils.setField(store, "ingestUrl", "http://127.0.0.1:8080/internal/hls");
+        store.registerMetrics();
+        store.openStream(STREAM);
+    }
+
+    @Test
+    void storesBodiesLargerThanTheDeclaredLength() throws IOException {
+        ReflectionTestUtils.setField(store, "maxBytes", 4L * GRANULE);
+        byte[] body = randomBytes(GRANULE + 1000);
+
+        // No Content-Length: the buffer starts at one granule and has to grow
+        assertTrue(store.putSegment(STREAM, "segment_1.ts", new ByteArrayInputStream(body), -1));
+
+        try (InputStream in = store.openSegment(STREAM, "segment_1.ts").getInputStream()) {
+            assertArrayEquals(body, in.readAllBytes());
+        }
+    }
+
+    @Test
+    void refusesUploadsWhenOnlyPinnedSegmentsAreLeftToEvict() throws IOException {
+        store.putSegment(STREAM, "segment_1.ts", new ByteArrayInputStream(randomBytes(1000)), 1000);
+        store.putSegment(STREAM, "segment_2.ts", new ByteArrayInputStream(randomBytes(1000)), 1000);
+        InputStream first = store.openSegment(STREAM, "segment_1.ts").getInputStream();
+        InputStream second = store.openSegment(STREAM, "segment_2.ts").getInputStream();
+
+        assertThrows(StreamCapacityException.class, () -> store.putSegment(STREAM, "segment_3.ts",
+                new ByteArrayInputStream(randomBytes(1000)), 1000));
+        assertEquals(1, meterRegistry.counter("hls.memory.rejections").count());
+
+        // Once the viewers finish, their buffers are reused without going over the cap
+        first.close();
+        second.close();
+        byte[] body = randomBytes(1000);
+        assertTrue(store.putSegment(STREAM, "segment_3.ts", new ByteArrayInputStream(body), 1000));
+        try (InputStream in = store.openSegment(STREAM, "segment_3.ts").getInputStream()) {
+            assertArrayEquals(body, in.readAllBytes());
+        }
+        assertEquals(2.0 * GRANULE, meterRegistry.find("hls.memory.allocated.bytes").gauge().value());
+    }
+
+    @Test
+    void evictsTheOldestSegmentToStayUnderTheCap() throws IOException {
+        for (int i = 1; i <= 3; i++) {
+            store.putSegment(STREAM, "segment_" + i + ".ts", new ByteArrayInputStream(randomBytes(1000)), 1000);
+        }
+
+        assertNull(store.openSegment(STREAM, "segment_1.ts"));
+        assertEquals(1, meterRegistry.counter("hls.memory.evictions", "reason", "capacity").count());
+        assertEquals(2.0 * GRANULE, meterRegistry.find("hls.memory.allocated.bytes").gauge().value());
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,163 @@
+package com.cctv.api.service;
+
+import com.cctv.api.exception.StreamCapacityException;
+import com.cctv.api.model.StreamPriority;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class HlsServiceTest {
+
+    private static final int CALLERS = 100;
+    private static final int MAX_STREAMS = 10;
+    private static final int START_THREADS = 4;
+
+    private final HlsSegmentStore segmentStore = mock(HlsSegmentStore.class);
+    private final HlsStorageManager storage = mock(HlsStorageManager.class);
+    private final HlsOutputWatcher outputWatcher = mock(HlsOutputWatcher.class);
+    private final StreamCostBudget costBudget = mock(StreamCostBudget.class);
+    private final RtspSessionLimiter rtspLimiter = mock(RtspSessionLimiter.class);
+    private final HlsPlaylistCache playlistCache = mock(HlsPlaylistCache.class);
+    private final LowLatencyHlsService lowLatency = mock(LowLatencyHlsService.class);
+    private StreamAdmissionService admission;
+    private HlsService hlsService;
+    private ExecutorService callers;
+
+    @BeforeEach
+    void setUp() {
+        admission = new StreamAdmissionService(new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(admission, "maxConcurrentStreams", MAX_STREAMS);
+        ReflectionTestUtils.setField(admission, "admissionWaitMs", 100L);
+        ReflectionTestUtils.setField(admission, "retryAfterSeconds", 5L);
+        admission.init();
+
+        hlsService = new HlsService(mock(NvrService.class), segmentStore, storage, outputWatcher,
+                mock(ViewerLeaseTracker.class), admission, costBudget, mock(StreamCapabilityService.class),
+                rtspLimiter, mock(FFmpegTelemetryService.class), mock(StreamRestartPolicy.class),
+                mock(FFmpegProcessSupervisor.class), playlistCache, lowLatency);
+        ReflectionTestUtils.setField(hlsService, "startThreads", START_THREADS);
+        hlsService.init();
+
+        callers = Executors.newFixedThreadPool(CALLERS);
+    }
+
+    @AfterEach
+    void tearDown() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    void concurrentStartsOfOneStreamLaunchOnce() throws Exception {
+        AtomicInteger launches = new AtomicInteger();
+        Consumer<FFmpegSession> launcher = session -> {
+            launches.incrementAndGet();
+            try {
+                // Keep the launch in flight while the other callers arrive
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        FFmpegSession.Listener listener = mock(FFmpegSession.Listener.class);
+
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<CompletableFuture<Void>>> starts = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            starts.add(callers.submit(() -> {
+                go.await();
+                return hlsService.startIfNotActive("nvr1_1", StreamPriority.NORMAL, listener, launcher);
+            }));
+        }
+        go.countDown();
+        for (Future<CompletableFuture<Void>> start : starts) {
+            start.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(1, launches.get());
+        assertEquals(1, hlsService.getActiveSessions().size());
+        assertEquals(MAX_STREAMS - 1, admission.getAvailableSlots());
+    }
+
+    @Test
+    void failedLaunchReleasesEverythingItReserved() {
+        Consumer<FFmpegSession> launcher = session -> {
+            throw new StreamCapacityException("CPU budget exhausted", 5);
+        };
+
+        CompletableFuture<Void> startup = hlsService.startIfNotActive("nvr1_1", StreamPriority.NORMAL,
+                mock(FFmpegSession.Listener.class), launcher);
+
+        ExecutionException failure = assertThrows(ExecutionException.class,
+                () -> startup.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(StreamCapacityException.class, failure.getCause());
+        assertTrue(hlsService.getActiveSessions().isEmpty());
+        assertEquals(MAX_STREAMS, admission.getAvailableSlots());
+        verify(outputWatcher).unwatch("nvr1_1");
+        verify(playlistCache).evict("nvr1_1");
+        verify(segmentStore).removeStream("nvr1_1");
+        verify(lowLatency).close("nvr1_1");
+        verify(storage).releaseStreamDir("nvr1_1");
+        verify(costBudget).release("nvr1_1");
+        verify(rtspLimiter).release("nvr1_1");
+    }
+
+    @Test
+    void shutdownFailsStartupsStillQueued() throws Exception {
+        Set<String> launched = ConcurrentHashMap.newKeySet();
+        CountDownLatch allThreadsBusy = new CountDownLatch(START_THREADS);
+        Consumer<FFmpegSession> launcher = session -> {
+            launched.add(session.getStreamId());
+            allThreadsBusy.countDown();
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted");
+            }
+        };
+
+        Map<String, CompletableFuture<Void>> startups = new HashMap<>();
+        for (int i = 0; i < START_THREADS + 2; i++) {
+            startups.put("nvr1_" + i, hlsService.startIfNotActive("nvr1_" + i, StreamPriority.NORMAL,
+                    mock(FFmpegSession.Listener.class), launcher));
+        }
+        assertTrue(allThreadsBusy.await(5, TimeUnit.SECONDS));
+
+        hlsService.stopAllSessions();
+
+        for (Map.Entry<String, CompletableFuture<Void>> startup : startups.entrySet()) {
+            ExecutionException failure = assertThrows(ExecutionException.class,
+                    () -> startup.getValue().get(5, TimeUnit.SECONDS));
+            if (!launched.contains(startup.getKey())) {
+                assertInstanceOf(StreamCapacityException.class, failure.getCause());
+            }
+        }
+        assertEquals(START_THREADS, launched.size());
+        assertTrue(hlsService.getActiveSessions().isEmpty());
+    }
+}
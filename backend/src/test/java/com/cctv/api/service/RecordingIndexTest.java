@@ -0,0 +1,112 @@
+package com.cctv.api.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RecordingIndexTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void writesFixedSizeEntriesAfterAHeader() throws IOException {
+        Path file = dir.resolve(RecordingIndex.FILE_NAME);
+        try (RecordingIndex index = RecordingIndex.openForAppend(file)) {
+            index.append(1_000, 1, 0, RecordingIndex.FLAG_KEYFRAME | RecordingIndex.FLAG_SEGMENT_START);
+            index.append(3_000, 1, 376, RecordingIndex.FLAG_KEYFRAME);
+        }
+
+        ByteBuffer raw = ByteBuffer.wrap(Files.readAllBytes(file));
+        assertEquals(0x43524958, raw.getInt(0));
+        assertEquals(1, raw.getInt(4));
+        assertEquals(2, raw.getLong(8));
+        assertEquals(1_000, raw.getLong(16));
+        assertEquals(1, raw.getLong(24));
+        assertEquals(0, raw.getLong(32));
+        assertEquals(RecordingIndex.FLAG_KEYFRAME | RecordingIndex.FLAG_SEGMENT_START, raw.getInt(40));
+        assertEquals(3_000, raw.getLong(48));
+        assertEquals(376, raw.getLong(64));
+        assertEquals(RecordingIndex.FLAG_KEYFRAME, raw.getInt(72));
+    }
+
+    @Test
+    void floorFindsTheLastEntryAtOrBeforeATime() throws IOException {
+        try (RecordingIndex index = RecordingIndex.openForAppend(dir.resolve(RecordingIndex.FILE_NAME))) {
+            index.append(1_000, 1, 0, RecordingIndex.FLAG_SEGMENT_START);
+            index.append(2_000, 1, 188, RecordingIndex.FLAG_KEYFRAME);
+            index.append(2_000, 1, 376, RecordingIndex.FLAG_KEYFRAME);
+            index.append(3_000, 2, 0, RecordingIndex.FLAG_SEGMENT_START);
+
+            assertEquals(-1, index.floor(999));
+            assertEquals(0, index.floor(1_000));
+            assertEquals(0, index.floor(1_999));
+            assertEquals(2, index.floor(2_000));
+            assertEquals(2, index.floor(2_999));
+            assertEquals(3, index.floor(Long.MAX_VALUE));
+        }
+    }
+
+    @Test
+    void growsPastThePreallocatedEntriesAndReopensWhereItLeftOff() throws IOException {
+        Path file = dir.resolve(RecordingIndex.FILE_NAME);
+        try (RecordingIndex index = RecordingIndex.openForAppend(file)) {
+            for (int i = 0; i < 1500; i++) {
+                index.append(i * 10L, i, 0, RecordingIndex.FLAG_SEGMENT_START);
+            }
+        }
+        try (RecordingIndex index = RecordingIndex.openForAppend(file)) {
+            assertEquals(1500, index.count());
+            index.append(15_000, 1500, 0, RecordingIndex.FLAG_SEGMENT_START);
+        }
+
+        try (RecordingIndex index = RecordingIndex.openForRead(file)) {
+            assertEquals(1501, index.count());
+            assertEquals(14_990, index.timestamp(1499));
+            assertEquals(1500, index.segment(1500));
+            assertEquals(1024, index.floor(10_245));
+        }
+    }
+
+    @Test
+    void readerOpenedDuringAppendSeesOnlyCommittedEntries() throws IOException {
+        Path file = dir.resolve(RecordingIndex.FILE_NAME);
+        try (RecordingIndex writer = RecordingIndex.openForAppend(file)) {
+            writer.append(1_000, 1, 0, RecordingIndex.FLAG_SEGMENT_START);
+            writer.append(2_000, 2, 0, RecordingIndex.FLAG_SEGMENT_START);
+
+            // The preallocated tail is not data: the reader goes by the committed count
+            try (RecordingIndex reader = RecordingIndex.openForRead(file)) {
+                assertEquals(2, reader.count());
+                writer.append(3_000, 3, 0, RecordingIndex.FLAG_SEGMENT_START);
+                assertEquals(2, reader.count());
+                assertEquals(1, reader.floor(Long.MAX_VALUE));
+                assertEquals(2, reader.segment(1));
+            }
+
+            // Entries past the writer's first growth are visible to a later reader
+            for (int i = 4; i <= 1100; i++) {
+                writer.append(i * 1_000L, i, 0, RecordingIndex.FLAG_SEGMENT_START);
+            }
+            try (RecordingIndex reader = RecordingIndex.openForRead(file)) {
+                assertEquals(1100, reader.count());
+                assertEquals(1100, reader.segment(reader.floor(1_100_000)));
+            }
+        }
+    }
+
+    @Test
+    void rejectsFilesThatAreNotAnIndex() throws IOException {
+        Path file = Files.write(dir.resolve(RecordingIndex.FILE_NAME), new byte[64]);
+
+        assertThrows(IOException.class, () -> RecordingIndex.openForRead(file));
+        assertThrows(IOException.class, () -> RecordingIndex.openForRead(dir.resolve("missing.idx")));
+    }
+}
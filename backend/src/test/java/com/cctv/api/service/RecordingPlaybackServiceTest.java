@@ -0,0 +1,160 @@
+package com.cctv.api.service;
+
+import com.cctv.api.repository.CameraRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class RecordingPlaybackServiceTest {
+
+    private static final String STREAM = "1_1";
+    private static final long HOUR_MS = 3_600_000;
+
+    @TempDir
+    Path root;
+
+    private RecordingService recordingService;
+    private RecordingPlaybackService playback;
+    private long hour;
+
+    @BeforeEach
+    void setUp() {
+        recordingService = new RecordingService(mock(CameraRepository.class), mock(NvrService.class),
+                mock(StreamCostBudget.class), mock(RtspSessionLimiter.class), mock(FFmpegProcessSupervisor.class),
+                mock(LoopbackIngestServer.class), new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(recordingService, "rootDir", root.toString());
+        playback = new RecordingPlaybackService(recordingService);
+        ReflectionTestUtils.setField(playback, "segmentSeconds", 10);
+        ReflectionTestUtils.setField(playback, "maxRangeHours", 24L);
+        hour = recordingService.getBucketStart(1_700_000_000_000L);
+    }
+
+    @Test
+    void seeksBackToTheSegmentOfTheKeyframeBeforeFrom() throws IOException {
+        // The second segment has keyframes of its own after its first
+        try (RecordingIndex index = openForAppend(hour)) {
+            append(index, hour, true);
+            append(index, hour + 10_000, true);
+            append(index, hour + 12_000, false);
+            append(index, hour + 14_000, false);
+            append(index, hour + 20_000, true);
+        }
+
+        List<RecordingPlaybackService.RecordedSegment> segments = playback.findSegments(STREAM, hour + 15_000,
+                hour + 25_000);
+
+        assertEquals(List.of(segment(hour + 10_000), segment(hour + 20_000)), segments);
+        String playlist = render(hour + 15_000, hour + 25_000);
+        assertTrue(playlist.contains("#EXT-X-START:TIME-OFFSET=5.000,PRECISE=YES\n"));
+    }
+
+    @Test
+    void startsInThePreviousHourWhenASegmentSpansTheBoundary() throws IOException {
+        index(hour - HOUR_MS, HOUR_MS - 15_000, HOUR_MS - 5_000);
+        index(hour, 5_000, 15_000);
+        index(hour + HOUR_MS, 5_000);
+
+        List<RecordingPlaybackService.RecordedSegment> segments = playback.findSegments(STREAM, hour + 2_000,
+                hour + HOUR_MS + 6_000);
+
+        // The range also continues into the following hour's bucket
+        assertEquals(List.of(segment(hour - 5_000), segment(hour + 5_000), segment(hour + 15_000),
+                segment(hour + HOUR_MS + 5_000)), segments);
+        String playlist = render(hour + 2_000, hour + 20_000);
+        assertTrue(playlist.contains("#EXT-X-START:TIME-OFFSET=7.000,PRECISE=YES\n"));
+        assertTrue(playlist.contains("recording/" + (hour - 5_000) / 1000 + ".ts\n"));
+    }
+
+    @Test
+    void ignoresAPreviousHourSegmentThatEndedBeforeFrom() throws IOException {
+        index(hour - HOUR_MS, HOUR_MS - 60_000);
+        index(hour, 5_000, 15_000);
+
+        List<RecordingPlaybackService.RecordedSegment> segments = playback.findSegments(STREAM, hour + 2_000,
+                hour + 20_000);
+
+        assertEquals(List.of(segment(hour + 5_000), segment(hour + 15_000)), segments);
+        assertTrue(render(hour + 2_000, hour + 20_000).contains("#EXT-X-START:TIME-OFFSET=0.000,PRECISE=YES\n"));
+    }
+
+    @Test
+    void marksADiscontinuityOnlyWhereTheRecorderWasDown() throws IOException {
+        // 14 s between starts is jitter (at most 1.5 segments); 26 s is a gap
+        index(hour, 0, 10_000, 24_000, 50_000, 60_000);
+
+        String playlist = render(hour, hour + 65_000);
+
+        assertEquals(1, count(playlist, "#EXT-X-DISCONTINUITY\n"));
+        assertEquals(2, count(playlist, "#EXT-X-PROGRAM-DATE-TIME:"));
+        assertTrue(playlist.contains("#EXTINF:14.000,\nrecording/" + (hour + 10_000) / 1000 + ".ts\n"
+                + "#EXTINF:10.000,\nrecording/" + (hour + 24_000) / 1000 + ".ts\n#EXT-X-DISCONTINUITY\n"));
+        assertTrue(playlist.contains("#EXT-X-TARGETDURATION:14\n"));
+        assertTrue(playlist.endsWith("#EXT-X-ENDLIST\n"));
+    }
+
+    @Test
+    void playlistIsCompleteOnlyOnceTheRecorderMovedPastTheRange() throws IOException {
+        index(hour, 0, 10_000, 20_000);
+
+        assertTrue(playback.buildPlaylist("op", STREAM, hour, hour + 15_000).complete());
+        assertFalse(playback.buildPlaylist("op", STREAM, hour, hour + 25_000).complete());
+        assertNull(playback.buildPlaylist("op", STREAM, hour + 2 * HOUR_MS, hour + 3 * HOUR_MS));
+        assertThrows(IllegalArgumentException.class,
+                () -> playback.buildPlaylist("op", STREAM, hour, hour + 25 * HOUR_MS));
+    }
+
+    private String render(long from, long to) {
+        return new String(playback.buildPlaylist("op", STREAM, from, to).body(), StandardCharsets.UTF_8);
+    }
+
+    private static RecordingPlaybackService.RecordedSegment segment(long startedAt) {
+        return new RecordingPlaybackService.RecordedSegment(startedAt / 1000, startedAt);
+    }
+
+    private static int count(String text, String needle) {
+        return text.split(needle, -1).length - 1;
+    }
+
+    /** Indexes one segment per offset into the bucket, named after its start. */
+    private void index(long bucket, long... offsets) throws IOException {
+        try (RecordingIndex index = openForAppend(bucket)) {
+            for (long offset : offsets) {
+                append(index, bucket + offset, true);
+            }
+        }
+    }
+
+    private static void append(RecordingIndex index, long timestamp, boolean segmentStart) throws IOException {
+        if (segmentStart) {
+            index.append(timestamp, timestamp / 1000, 0,
+                    RecordingIndex.FLAG_KEYFRAME | RecordingIndex.FLAG_SEGMENT_START);
+        } else {
+            index.append(timestamp, index.segment(index.count() - 1), 188, RecordingIndex.FLAG_KEYFRAME);
+        }
+    }
+
+    private RecordingIndex openForAppend(long bucket) throws IOException {
+        Path file = indexFile(bucket);
+        Files.createDirectories(file.getParent());
+        return RecordingIndex.openForAppend(file);
+    }
+
+    private Path indexFile(long bucket) {
+        return recordingService.getBucketDir(STREAM, bucket).resolve(RecordingIndex.FILE_NAME);
+    }
+}
@@ -0,0 +1,154 @@
+package com.cctv.api.service;
+
+import com.cctv.api.repository.CameraRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.mockito.Mockito.mock;
+
+class RecordingServiceTest {
+
+    private static final String STREAM = "1_1";
+
+    @TempDir
+    Path root;
+
+    private RecordingService recordingService;
+    private long hour;
+
+    @BeforeEach
+    void setUp() {
+        recordingService = new RecordingService(mock(CameraRepository.class), mock(NvrService.class),
+                mock(StreamCostBudget.class), mock(RtspSessionLimiter.class), mock(FFmpegProcessSupervisor.class),
+                mock(LoopbackIngestServer.class), new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(recordingService, "rootDir", root.toString());
+        hour = recordingService.getBucketStart(1_700_000_000_000L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(recordingService, "closeIndex", STREAM);
+    }
+
+    @Test
+    void indexesEveryKeyframeOfASegment() throws IOException {
+        long segment = hour / 1000 + 600;
+        // Keyframes at 0 s and 2 s of PTS, with a delta packet between them
+        writeSegment(segment, keyframe(90_000), delta(), keyframe(90_000 + 2 * 90_000));
+
+        recordingService.indexSegment(STREAM, segment + ".ts", 0, 10, segment * 1000 + 10_000);
+
+        try (RecordingIndex index = openIndex(hour)) {
+            assertEquals(2, index.count());
+            assertEquals(segment * 1000, index.timestamp(0));
+            assertEquals(segment, index.segment(0));
+            assertEquals(0, index.offset(0));
+            assertEquals(RecordingIndex.FLAG_KEYFRAME | RecordingIndex.FLAG_SEGMENT_START, index.flags(0));
+            assertEquals(segment * 1000 + 2_000, index.timestamp(1));
+            assertEquals(2 * MpegTsKeyframeScanner.PACKET_SIZE, index.offset(1));
+            assertEquals(RecordingIndex.FLAG_KEYFRAME, index.flags(1));
+        }
+        assertEquals(3L * MpegTsKeyframeScanner.PACKET_SIZE, recordingService.getArchiveBytes());
+    }
+
+    @Test
+    void startsANewIndexInEachHourBucket() throws IOException {
+        long last = hour / 1000 + 3590;
+        long next = hour / 1000 + 3600;
+        writeSegment(last, keyframe(0));
+        writeSegment(next, keyframe(0));
+
+        recordingService.indexSegment(STREAM, last + ".ts", 0, 10, last * 1000 + 10_000);
+        recordingService.indexSegment(STREAM, next + ".ts", 0, 10, next * 1000 + 10_000);
+
+        assertNotEquals(recordingService.getBucketDir(STREAM, hour),
+                recordingService.getBucketDir(STREAM, hour + 3_600_000));
+        try (RecordingIndex first = openIndex(hour); RecordingIndex second = openIndex(hour + 3_600_000)) {
+            assertEquals(1, first.count());
+            assertEquals(last, first.segment(0));
+            assertEquals(1, second.count());
+            assertEquals(next, second.segment(0));
+        }
+    }
+
+    @Test
+    void keepsIndexTimestampsNonDecreasingDespiteReportJitter() throws IOException {
+        long first = hour / 1000 + 100;
+        long second = first + 10;
+        writeSegment(first, keyframe(0));
+        writeSegment(second, keyframe(0));
+
+        recordingService.indexSegment(STREAM, first + ".ts", 0, 10, first * 1000 + 10_500);
+        // Reported early enough that it would appear to start before the previous segment
+        recordingService.indexSegment(STREAM, second + ".ts", 0, 12, first * 1000 + 10_000);
+
+        try (RecordingIndex index = openIndex(hour)) {
+            assertEquals(2, index.count());
+            assertEquals(index.timestamp(0), index.timestamp(1));
+        }
+    }
+
+    @Test
+    void skipsSegmentsWithUnexpectedNames() {
+        recordingService.indexSegment(STREAM, "garbage.ts", 0, 10, hour);
+
+        assertFalse(Files.exists(recordingService.getBucketDir(STREAM, hour).resolve(RecordingIndex.FILE_NAME)));
+    }
+
+    private RecordingIndex openIndex(long bucket) throws IOException {
+        return RecordingIndex.openForRead(recordingService.getBucketDir(STREAM, bucket)
+                .resolve(RecordingIndex.FILE_NAME));
+    }
+
+    private void writeSegment(long segment, byte[]... packets) throws IOException {
+        Path file = recordingService.getSegmentPath(STREAM, segment);
+        Files.createDirectories(file.getParent());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] packet : packets) {
+            out.writeBytes(packet);
+        }
+        Files.write(file, out.toByteArray());
+    }
+
+    /** Random access packet starting a video PES with the given PTS. */
+    private static byte[] keyframe(long pts) {
+        byte[] packet = filler();
+        packet[1] = 0x41; // payload_unit_start, PID 0x100
+        packet[3] = 0x30; // adaptation field and payload
+        packet[4] = 1;
+        packet[5] = 0x40; // random_access_indicator
+        byte[] pes = {0, 0, 1, (byte) 0xE0, 0, 0, (byte) 0x80, (byte) 0x80, 5,
+                (byte) (0x21 | ((pts >> 29) & 0x0E)), (byte) (pts >> 22), (byte) (0x01 | ((pts >> 14) & 0xFE)),
+                (byte) (pts >> 7), (byte) (0x01 | ((pts << 1) & 0xFE))};
+        System.arraycopy(pes, 0, packet, 6, pes.length);
+        return packet;
+    }
+
+    private static byte[] delta() {
+        byte[] packet = filler();
+        packet[1] = 0x01;
+        packet[3] = 0x10; // payload only
+        return packet;
+    }
+
+    private static byte[] filler() {
+        byte[] packet = new byte[MpegTsKeyframeScanner.PACKET_SIZE];
+        Arrays.fill(packet, (byte) 0xFF);
+        packet[0] = 0x47;
+        packet[2] = 0x00;
+        return packet;
+    }
+}
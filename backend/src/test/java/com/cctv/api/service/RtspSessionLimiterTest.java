@@ -0,0 +1,134 @@
+package com.cctv.api.service;
+
+import com.cctv.api.exception.StreamCapacityException;
+import com.cctv.api.model.NVR;
+import com.cctv.api.model.StreamPriority;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RtspSessionLimiterTest {
+
+    private final NvrService nvrService = mock(NvrService.class);
+    private final MediaMtxService mediaMtxService = mock(MediaMtxService.class);
+    private final NVR nvr = new NVR();
+    private SiteBandwidthBudget bandwidth;
+    private RtspSessionLimiter limiter;
+
+    @BeforeEach
+    void setUp() {
+        nvr.setId("a");
+        nvr.setLocation("HQ");
+        nvr.setMaxRtspSessions(2);
+        when(nvrService.getNvrById("a")).thenAnswer(invocation -> {
+            // Never queried while requests are queued on the limiter
+            assertFalse(Thread.holdsLock(limiter));
+            return nvr;
+        });
+        when(nvrService.getNvrById("b")).thenThrow(new RuntimeException("NVR not found with id: b"));
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        bandwidth = new SiteBandwidthBudget(meterRegistry);
+        ReflectionTestUtils.setField(bandwidth, "siteBudgets", "");
+        ReflectionTestUtils.setField(bandwidth, "lowPriorityShare", 0.8);
+        ReflectionTestUtils.setField(bandwidth, "mainBandwidth", 4_000_000L);
+        ReflectionTestUtils.setField(bandwidth, "substreamBandwidth", 600_000L);
+        bandwidth.init();
+
+        limiter = new RtspSessionLimiter(nvrService, mediaMtxService, bandwidth, meterRegistry);
+        ReflectionTestUtils.setField(limiter, "defaultMaxSessions", 0);
+        ReflectionTestUtils.setField(limiter, "waitMs", 10_000L);
+        ReflectionTestUtils.setField(limiter, "retryAfterSeconds", 5L);
+        ReflectionTestUtils.setField(limiter, "pollMs", 5_000L);
+        ReflectionTestUtils.setField(limiter, "mediamtxRtspUrl", "rtsp://mediamtx:8554");
+    }
+
+    @Test
+    void leasesAreAllOrNothingWithinTheNvrLimit() {
+        assertTrue(limiter.tryAcquire("s1", List.of("a_1"), StreamPriority.NORMAL));
+        // Main and substream together would be three sessions
+        assertFalse(limiter.tryAcquire("s2", List.of("a_2", "a_2_sub"), StreamPriority.NORMAL));
+        assertTrue(limiter.tryAcquire("s2", List.of("a_2"), StreamPriority.NORMAL));
+        assertFalse(limiter.tryAcquire("s3", List.of("a_3"), StreamPriority.HIGH));
+        assertEquals(Map.of("a", new RtspSessionLimiter.Usage(2, 2)), limiter.getUsage());
+
+        limiter.release("s1");
+
+        assertTrue(limiter.tryAcquire("s3", List.of("a_3"), StreamPriority.HIGH));
+        // An NVR that could not be loaded falls back to the default, unlimited
+        assertTrue(limiter.tryAcquire("s4", List.of("b_1", "b_2", "b_3"), StreamPriority.NORMAL));
+    }
+
+    @Test
+    void acquireGivesUpAfterTheWait() {
+        ReflectionTestUtils.setField(limiter, "waitMs", 50L);
+        limiter.acquire("s1", List.of("a_1", "a_2"), StreamPriority.NORMAL);
+
+        StreamCapacityException e = assertThrows(StreamCapacityException.class,
+                () -> limiter.acquire("s2", List.of("a_3"), StreamPriority.NORMAL));
+        assertEquals(5, e.getRetryAfterSeconds());
+    }
+
+    @Test
+    void pathsMediaMtxPullsCountAndCanBeRestreamed() {
+        when(mediaMtxService.isEnabled()).thenReturn(true);
+        when(mediaMtxService.getReadyPaths()).thenReturn(Mono.just(Map.of("a_1", 0L)));
+        limiter.pollMediaMtx();
+
+        assertEquals("rtsp://mediamtx:8554/a_1", limiter.getRestreamUrl("a", 1, false));
+        assertNull(limiter.getRestreamUrl("a", 1, true));
+        assertTrue(limiter.tryAcquire("s1", List.of("a_2"), StreamPriority.NORMAL));
+        assertFalse(limiter.tryAcquire("s2", List.of("a_3"), StreamPriority.NORMAL));
+    }
+
+    @Test
+    void mediaMtxPlaybackFallsBackToTheSubstreamThenFailsFast() {
+        nvr.setMaxRtspSessions(null);
+        ReflectionTestUtils.setField(bandwidth, "defaultBudgetKbps", 5_000L);
+
+        assertFalse(limiter.admitMediaMtxPath("a", 1, false));
+        // Another viewer of the pull just reserved shares it
+        assertFalse(limiter.admitMediaMtxPath("a", 1, false));
+        // 4000 + 4000 kbps is over the site budget, 4000 + 600 is not
+        assertTrue(limiter.admitMediaMtxPath("a", 2, false));
+
+        long startedAt = System.currentTimeMillis();
+        assertThrows(StreamCapacityException.class, () -> limiter.admitMediaMtxPath("a", 3, false));
+        // Rejected without waiting out nvr.rtsp.wait.ms on the request thread
+        assertTrue(System.currentTimeMillis() - startedAt < 1_000);
+    }
+
+    @Test
+    void limitsAreLoadedOnceAndRefreshedFromTheDatabase() {
+        assertTrue(limiter.tryAcquire("s1", List.of("a_1", "a_2"), StreamPriority.NORMAL));
+        assertFalse(limiter.tryAcquire("s2", List.of("a_3"), StreamPriority.NORMAL));
+        verify(nvrService, times(1)).getNvrById("a");
+
+        NVR edited = new NVR();
+        edited.setId("a");
+        edited.setLocation("HQ");
+        edited.setMaxRtspSessions(3);
+        when(nvrService.getAllNvrs()).thenReturn(List.of(edited));
+        limiter.refreshLimits();
+
+        assertTrue(limiter.tryAcquire("s2", List.of("a_3"), StreamPriority.NORMAL));
+        assertNotNull(limiter.getUsage().get("a"));
+        assertEquals(3, limiter.getUsage().get("a").limit());
+    }
+}
@@ -0,0 +1,74 @@
+package com.cctv.api.service;
+
+import com.cctv.api.model.StreamPriority;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SiteBandwidthBudgetTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private SiteBandwidthBudget bandwidth;
+
+    @BeforeEach
+    void setUp() {
+        bandwidth = new SiteBandwidthBudget(meterRegistry);
+        ReflectionTestUtils.setField(bandwidth, "defaultBudgetKbps", 0L);
+        ReflectionTestUtils.setField(bandwidth, "siteBudgets", "HQ:1000, Branch:500,broken:x");
+        ReflectionTestUtils.setField(bandwidth, "lowPriorityShare", 0.8);
+        ReflectionTestUtils.setField(bandwidth, "mainBandwidth", 4_000_000L);
+        ReflectionTestUtils.setField(bandwidth, "substreamBandwidth", 600_000L);
+        bandwidth.init();
+    }
+
+    @Test
+    void fitsWithinTheSiteBudget() {
+        assertTrue(bandwidth.fits("HQ", 500, 500, StreamPriority.NORMAL));
+        assertFalse(bandwidth.fits("HQ", 500, 501, StreamPriority.HIGH));
+        assertTrue(bandwidth.fits("Branch", 0, 500, StreamPriority.NORMAL));
+        // Nothing added always fits, and sites without a budget are unlimited
+        assertTrue(bandwidth.fits("HQ", 5_000, 0, StreamPriority.NORMAL));
+        assertTrue(bandwidth.fits("Elsewhere", 1e9, 1e9, StreamPriority.LOW));
+        assertTrue(bandwidth.fits("broken", 1e9, 1e9, StreamPriority.NORMAL));
+    }
+
+    @Test
+    void lowPriorityOnlyGetsItsShare() {
+        assertTrue(bandwidth.fits("HQ", 700, 100, StreamPriority.LOW));
+        assertFalse(bandwidth.fits("HQ", 700, 101, StreamPriority.LOW));
+        assertTrue(bandwidth.fits("HQ", 700, 101, StreamPriority.NORMAL));
+
+        assertEquals(1, meterRegistry.counter("site.bandwidth.rejections", "site", "HQ", "priority", "LOW").count());
+    }
+
+    @Test
+    void usageIsReplacedOnEveryUpdate() {
+        bandwidth.updateUsage(Map.of("HQ", 300.0, "Branch", 100.0));
+        bandwidth.updateUsage(Map.of("HQ", 50.0));
+
+        assertEquals(Map.of("HQ", new SiteBandwidthBudget.SiteUsage(50, 1000),
+                "Branch", new SiteBandwidthBudget.SiteUsage(0, 500)), bandwidth.getUsage());
+        // Gauges are registered once per site
+        assertEquals(2, meterRegistry.find("site.bandwidth.used").gauges().size());
+        assertEquals(0.05, meterRegistry.find("site.bandwidth.utilization").tag("site", "HQ").gauge().value());
+    }
+
+    @Test
+    void estimatesFromMeasurementsElseConfiguredBandwidth() {
+        assertEquals(4_000, bandwidth.estimateKbps("a_1"));
+        assertEquals(600, bandwidth.estimateKbps("a_1_sub"));
+
+        bandwidth.recordBitrate("a_1", 1_000);
+        bandwidth.recordBitrate("a_1", 2_000);
+        bandwidth.recordBitrate("a_1", 0);
+
+        assertEquals(1_200, bandwidth.estimateKbps("a_1"), 1e-9);
+    }
+}
@@ -0,0 +1,53 @@
+package com.cctv.api.service;
+
+import com.cctv.api.exception.StreamCapacityException;
+import com.cctv.api.model.StreamPriority;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StreamAdmissionServiceTest {
+
+    private StreamAdmissionService admission;
+    private final List<String> preempted = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        admission = new StreamAdmissionService(new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(admission, "maxConcurrentStreams", 1);
+        ReflectionTestUtils.setField(admission, "admissionWaitMs", 50L);
+        ReflectionTestUtils.setField(admission, "retryAfterSeconds", 5L);
+        admission.init();
+        admission.admit("running", StreamPriority.HIGH, List.of(), id -> false);
+    }
+
+    @Test
+    void neverPreemptsASessionTheRequestDoesNotOutrank() {
+        List<StreamAdmissionService.SessionSnapshot> running = List.of(
+                new StreamAdmissionService.SessionSnapshot("running", StreamPriority.HIGH, 0, 0));
+
+        assertThrows(StreamCapacityException.class,
+                () -> admission.admit("prewarm", StreamPriority.LOW, running, preempted::add));
+        assertTrue(preempted.isEmpty());
+    }
+
+    @Test
+    void preemptingRequestKeepsTheVictimsSlot() {
+        List<StreamAdmissionService.SessionSnapshot> running = List.of(
+                new StreamAdmissionService.SessionSnapshot("running", StreamPriority.NORMAL, 3, 0));
+
+        admission.admit("admin", StreamPriority.HIGH, running, preempted::add);
+
+        assertEquals(List.of("running"), preempted);
+        // The slot passed over directly; none went back to the pool for anyone else
+        assertEquals(0, admission.getAvailableSlots());
+    }
+}
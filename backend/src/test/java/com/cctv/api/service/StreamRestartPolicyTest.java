@@ -0,0 +1,105 @@
+package com.cctv.api.service;
+
+import com.cctv.api.exception.StreamCapacityException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StreamRestartPolicyTest {
+
+    private static final String STREAM = "a_1";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private StreamRestartPolicy policy;
+
+    @BeforeEach
+    void setUp() {
+        policy = new StreamRestartPolicy(meterRegistry);
+        ReflectionTestUtils.setField(policy, "initialBackoffMs", 1_000L);
+        ReflectionTestUtils.setField(policy, "maxBackoffMs", 8_000L);
+        ReflectionTestUtils.setField(policy, "breakerFailures", 3);
+        ReflectionTestUtils.setField(policy, "breakerOpenSeconds", 300L);
+        ReflectionTestUtils.setField(policy, "stableSeconds", 60L);
+    }
+
+    @Test
+    void backoffDoublesWithJitterUpToTheMaximum() {
+        for (int failures = 1; failures <= 8; failures++) {
+            long ceiling = Math.min(8_000, 1_000L << (failures - 1));
+            for (int sample = 0; sample < 200; sample++) {
+                long delay = ReflectionTestUtils.invokeMethod(policy, "backoffMs", failures);
+                assertTrue(delay >= ceiling / 2 && delay <= ceiling, failures + " failures: " + delay);
+            }
+        }
+    }
+
+    @Test
+    void restartsOnlyOnceTheBackoffElapsed() {
+        long before = System.currentTimeMillis();
+        assertEquals(StreamRestartPolicy.Decision.WAIT, policy.onFailure(STREAM));
+        assertEquals(StreamRestartPolicy.Decision.WAIT, policy.onFailure(STREAM));
+        long nextAttemptAt = (long) ReflectionTestUtils.getField(state(), "nextAttemptAt");
+        assertTrue(nextAttemptAt >= before + 500 && nextAttemptAt <= System.currentTimeMillis() + 1_000);
+
+        elapseBackoff();
+
+        assertEquals(StreamRestartPolicy.Decision.RESTART, policy.onFailure(STREAM));
+    }
+
+    @Test
+    void breakerOpensAfterRepeatedFailuresAndRetripsOnTheTrialStart() {
+        for (int failure = 1; failure < 3; failure++) {
+            assertEquals(StreamRestartPolicy.Decision.WAIT, policy.onFailure(STREAM));
+            elapseBackoff();
+            assertEquals(StreamRestartPolicy.Decision.RESTART, policy.onFailure(STREAM));
+        }
+        assertEquals(StreamRestartPolicy.Decision.TRIP, policy.onFailure(STREAM));
+
+        StreamCapacityException e = assertThrows(StreamCapacityException.class,
+                () -> policy.checkStartAllowed(STREAM));
+        assertTrue(e.getRetryAfterSeconds() > 290 && e.getRetryAfterSeconds() <= 300);
+        assertEquals(1, meterRegistry.counter("hls.watchdog.breaker.trips", "stream", STREAM).count());
+
+        // Half-open: the trial start is allowed, and a single failure trips it again
+        ReflectionTestUtils.setField(state(), "openUntil", System.currentTimeMillis() - 1);
+        assertDoesNotThrow(() -> policy.checkStartAllowed(STREAM));
+        assertEquals(StreamRestartPolicy.Decision.TRIP, policy.onFailure(STREAM));
+    }
+
+    @Test
+    void aStableRunClearsTheHistory() {
+        policy.onFailure(STREAM);
+
+        // Healthy but only just launched: the pending restart is called off, the history kept
+        policy.onHealthy(STREAM, System.currentTimeMillis());
+        assertFalse((boolean) ReflectionTestUtils.getField(state(), "pendingRestart"));
+        assertEquals(1, ReflectionTestUtils.getField(state(), "failures"));
+
+        policy.onHealthy(STREAM, System.currentTimeMillis() - 61_000);
+        assertTrue(states().isEmpty());
+        assertEquals(StreamRestartPolicy.Decision.WAIT, policy.onFailure(STREAM));
+        assertEquals(1, ReflectionTestUtils.getField(state(), "failures"));
+    }
+
+    private void elapseBackoff() {
+        ReflectionTestUtils.setField(state(), "nextAttemptAt", System.currentTimeMillis() - 1);
+    }
+
+    private Object state() {
+        return states().get(STREAM);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> states() {
+        return (Map<String, Object>) ReflectionTestUtils.getField(policy, "states");
+    }
+}
@@ -252,6 +252,8 @@ const CameraCard: React.FC<CameraCardProps> = ({
                     levelLoadingMaxRetry: 20,
                     fragLoadingMaxRetry: 20,
                     manifestLoadingRetryDelay: 500,
+                    // Small tiles stay on the substream variant of a master playlist
+                    capLevelToPlayerSize: true,
                     enableWorker: true
                 });
 
@@ -420,7 +422,7 @@ const CameraCard: React.FC<CameraCardProps> = ({
                     )}
                 </div>
             ) : (
-                <img src={camera.thumbnail} alt={camera.name} loading="lazy" />
+                <img src={camera.thumbnail ? `${BASE_URL}${camera.thumbnail}` : undefined} alt={camera.name} loading="lazy" />
             )}
 
             <div className="camera-overlay">
@@ -1,5 +1,5 @@
 import React, { useState, useEffect } from 'react';
-import { Typography, Table, Input, Button, Modal, Form, Space, message, Select, Spin, Collapse, Tag, Row, Col, TreeSelect, Checkbox, Tree } from 'antd';
+import { Typography, Table, Input, InputNumber, Button, Modal, Form, Space, message, Select, Spin, Collapse, Tag, Row, Col, TreeSelect, Checkbox, Tree } from 'antd';
 import {
     PlusOutlined,
     SearchOutlined,
@@ -561,6 +561,15 @@ const Configuration: React.FC = () => {
                                 <Input.Password placeholder={editingNvr ? "Leave blank to keep current" : ""} />
                             </Form.Item>
                         </Col>
+                        <Col span={8}>
+                            <Form.Item
+                                name="maxRtspSessions"
+                                label="Max RTSP Sessions"
+                                tooltip="Concurrent streams the NVR accepts. Leave blank for the server default."
+                            >
+                                <InputNumber min={1} style={{ width: '100%' }} />
+                            </Form.Item>
+                        </Col>
                     </Row>
 
                     <Form.Item label="ONVIF Settings">
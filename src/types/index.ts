@@ -12,6 +12,7 @@ export interface NVR {
     status: CAM_STATUS;
     type: NVR_TYPE;
     channels: number;
+    maxRtspSessions?: number;
     onvifPort?: string;
     onvifUsername?: string;
     onvifPassword?: string;